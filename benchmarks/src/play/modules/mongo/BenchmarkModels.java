@@ -0,0 +1,89 @@
+package play.modules.mongo;
+
+import java.util.Date;
+
+import org.bson.types.ObjectId;
+
+/**
+ * Models with the shapes of the test application's Car, Driver and
+ * MongoTestEntity. The benchmarks do not run the Play enhancer, so the
+ * members it would add are declared by hand.
+ */
+public class BenchmarkModels {
+
+	public static class Car extends MongoModel {
+		public String name;
+		public String colour;
+		public int topSpeed;
+
+		public Driver driver;
+
+		private ObjectId _id;
+
+		public Car() {
+		}
+
+		public Car(String name, String colour, int topSpeed) {
+			this.name = name;
+			this.colour = colour;
+			this.topSpeed = topSpeed;
+		}
+
+		@Override
+		public ObjectId get_id() {
+			return _id;
+		}
+
+		@Override
+		public void set_id(ObjectId _id) {
+			this._id = _id;
+		}
+	}
+
+	public static class Driver {
+		public String name;
+		public Date dob;
+
+		public Driver() {
+		}
+
+		public Driver(String name, Date dob) {
+			this.name = name;
+			this.dob = dob;
+		}
+	}
+
+	public static class TestEntity extends MongoModel {
+		public Boolean testBool;
+		public Integer testInt;
+		public String testStr;
+		public Date testDate;
+
+		private ObjectId _id;
+
+		@Override
+		public ObjectId get_id() {
+			return _id;
+		}
+
+		@Override
+		public void set_id(ObjectId _id) {
+			this._id = _id;
+		}
+	}
+
+	public static Car car(int i) {
+		Car car = new Car("Toyota v" + i, i % 2 == 0 ? "white" : "red", 150 + i);
+		car.driver = new Driver("Driver " + i, new Date(i * 86400000L));
+		return car;
+	}
+
+	public static TestEntity testEntity(int i) {
+		TestEntity entity = new TestEntity();
+		entity.testBool = i % 2 == 0;
+		entity.testInt = i;
+		entity.testStr = "str" + i;
+		entity.testDate = new Date(i);
+		return entity;
+	}
+}
@@ -0,0 +1,124 @@
+package play.modules.mongo;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.bson.types.ObjectId;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import play.modules.mongo.BenchmarkModels.Car;
+import play.modules.mongo.BenchmarkModels.TestEntity;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.MongoClient;
+import com.mongodb.ReadPreference;
+import com.mongodb.ServerAddress;
+
+/**
+ * MongoCursor.fetch hydration of pre-built documents, without a server.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CursorBenchmark {
+
+	@Param({ "10", "1000" })
+	public int size;
+
+	// keeps the driver quiet about the server which is never there
+	private static final Logger driverLogger = Logger.getLogger("org.mongodb.driver");
+
+	private MongoClient client;
+	private DBCollection collection;
+
+	private List<DBObject> cars;
+	private List<DBObject> entities;
+
+	@Setup
+	public void setup() throws Exception {
+		driverLogger.setLevel(Level.OFF);
+		// the client never connects, the collection is only needed to create cursors
+		client = new MongoClient(new ServerAddress("localhost", 1));
+		collection = client.getDB("benchmark").getCollection("car");
+
+		cars = new ArrayList<DBObject>(size);
+		entities = new ArrayList<DBObject>(size);
+		for (int i = 0; i < size; i++) {
+			DBObject car = MongoCodec.toDBObject(BenchmarkModels.car(i));
+			car.put("_id", new ObjectId());
+			cars.add(car);
+
+			DBObject entity = MongoCodec.toDBObject(BenchmarkModels.testEntity(i));
+			entity.put("_id", new ObjectId());
+			entities.add(entity);
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		client.close();
+	}
+
+	@Benchmark
+	public List<Car> fetchCars() {
+		return new MongoCursor(new ListCursor(collection, cars), Car.class).fetch();
+	}
+
+	@Benchmark
+	public List<TestEntity> fetchTestEntities() {
+		return new MongoCursor(new ListCursor(collection, entities), TestEntity.class).fetch();
+	}
+
+	/**
+	 * A cursor over a list of documents instead of a server response.
+	 */
+	static class ListCursor extends DBCursor {
+		private final Iterator<DBObject> documents;
+
+		ListCursor(DBCollection collection, List<DBObject> documents) {
+			super(collection, new BasicDBObject(), null, ReadPreference.primary());
+			this.documents = documents.iterator();
+		}
+
+		@Override
+		public boolean hasNext() {
+			return documents.hasNext();
+		}
+
+		@Override
+		public DBObject next() {
+			return documents.next();
+		}
+
+		@Override
+		public DBCursor limit(int n) {
+			return this;
+		}
+
+		@Override
+		public DBCursor skip(int n) {
+			return this;
+		}
+	}
+}
@@ -0,0 +1,79 @@
+package play.modules.mongo;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.BasicBSONEncoder;
+import org.bson.types.ObjectId;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import play.modules.mongo.BenchmarkModels.Car;
+
+import com.mongodb.DBCollection;
+import com.mongodb.DBDecoder;
+import com.mongodb.DBObject;
+import com.mongodb.DefaultDBDecoder;
+
+/**
+ * Decoding of BSON documents into models, as read by a cursor: the driver's
+ * decoder followed by MongoCodec, against MongoDecoder.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DecoderBenchmark {
+
+	@Param({ "10", "1000" })
+	public int size;
+
+	private List<byte[]> documents;
+
+	private DBDecoder defaultDecoder;
+	private DBDecoder streamingDecoder;
+
+	@Setup
+	public void setup() {
+		BasicBSONEncoder encoder = new BasicBSONEncoder();
+		documents = new ArrayList<byte[]>(size);
+		for (int i = 0; i < size; i++) {
+			Car car = BenchmarkModels.car(i);
+			car.set_id(new ObjectId());
+			documents.add(encoder.encode(MongoCodec.toDBObject(car)));
+		}
+		defaultDecoder = DefaultDBDecoder.FACTORY.create();
+		streamingDecoder = MongoDecoder.factory(Car.class).create();
+	}
+
+	@Benchmark
+	public List<Car> defaultDecoder() {
+		return decode(defaultDecoder);
+	}
+
+	@Benchmark
+	public List<Car> streamingDecoder() {
+		return decode(streamingDecoder);
+	}
+
+	private List<Car> decode(DBDecoder decoder) {
+		List<Car> cars = new ArrayList<Car>(size);
+		for (byte[] document : documents) {
+			DBObject dbObject = decoder.decode(document, (DBCollection) null);
+			cars.add(MongoCodec.fromDBObject(dbObject, Car.class));
+		}
+		return cars;
+	}
+}
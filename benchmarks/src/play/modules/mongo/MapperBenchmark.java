@@ -0,0 +1,97 @@
+package play.modules.mongo;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import play.modules.mongo.BenchmarkModels.Car;
+import play.modules.mongo.BenchmarkModels.TestEntity;
+
+import com.mongodb.DBObject;
+
+/**
+ * MongoMapper.convertValue from a model to a Map and back, as MongoDB.save
+ * and MongoCursor.fetch used to, against the MongoCodec conversions from
+ * a model to a DBObject and back.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MapperBenchmark {
+
+	private Car car;
+	private TestEntity entity;
+
+	@SuppressWarnings("rawtypes")
+	private Map carMap;
+	@SuppressWarnings("rawtypes")
+	private Map entityMap;
+
+	private DBObject carDBObject;
+	private DBObject entityDBObject;
+
+	@Setup
+	public void setup() {
+		car = BenchmarkModels.car(1);
+		entity = BenchmarkModels.testEntity(1);
+		carMap = MongoMapper.convertValue(car, Map.class);
+		entityMap = MongoMapper.convertValue(entity, Map.class);
+		carDBObject = MongoCodec.toDBObject(car);
+		entityDBObject = MongoCodec.toDBObject(entity);
+	}
+
+	@Benchmark
+	@SuppressWarnings("rawtypes")
+	public Map carToMap() {
+		return MongoMapper.convertValue(car, Map.class);
+	}
+
+	@Benchmark
+	public Car carFromMap() {
+		return MongoMapper.convertValue(carMap, Car.class);
+	}
+
+	@Benchmark
+	@SuppressWarnings("rawtypes")
+	public Map testEntityToMap() {
+		return MongoMapper.convertValue(entity, Map.class);
+	}
+
+	@Benchmark
+	public TestEntity testEntityFromMap() {
+		return MongoMapper.convertValue(entityMap, TestEntity.class);
+	}
+
+	@Benchmark
+	public DBObject carToDBObject() {
+		return MongoCodec.toDBObject(car);
+	}
+
+	@Benchmark
+	public Car carFromDBObject() {
+		return MongoCodec.fromDBObject(carDBObject, Car.class);
+	}
+
+	@Benchmark
+	public DBObject testEntityToDBObject() {
+		return MongoCodec.toDBObject(entity);
+	}
+
+	@Benchmark
+	public TestEntity testEntityFromDBObject() {
+		return MongoCodec.fromDBObject(entityDBObject, TestEntity.class);
+	}
+}
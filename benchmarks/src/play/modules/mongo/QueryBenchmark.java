@@ -0,0 +1,80 @@
+package play.modules.mongo;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.mongodb.DBObject;
+
+/**
+ * Query string parsing and binding : MongoDB.createQueryDbObject through the
+ * query cache, MongoQuery.compile without it, createOrderDbObject and
+ * extractKeys.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QueryBenchmark {
+
+	@Param({
+		"byNameAndColour",
+		"testInt > ?2 and testStr = ?1",
+		"(testStr = ?1 and testInt in (1, 2, 3)) or testBool = ?3",
+		"name like ?1"
+	})
+	public String query;
+
+	private Object[] params = { "Toy%", 150, true };
+
+	private String inListQuery;
+
+	@Setup
+	public void setup() {
+		StringBuilder sb = new StringBuilder("name in (");
+		for (int i = 0; i < 1000; i++) {
+			if (i > 0) {
+				sb.append(", ");
+			}
+			sb.append("'name").append(i).append("'");
+		}
+		inListQuery = sb.append(")").toString();
+	}
+
+	@Benchmark
+	public DBObject createQueryDbObject() {
+		return MongoDB.createQueryDbObject(query, params);
+	}
+
+	@Benchmark
+	public DBObject compileAndBind() {
+		return MongoQuery.compile(query).bind(params);
+	}
+
+	@Benchmark
+	public DBObject compileInList() {
+		return MongoQuery.compile(inListQuery).bind(params);
+	}
+
+	@Benchmark
+	public DBObject createOrderDbObject() {
+		return MongoDB.createOrderDbObject("byNameAnd-TopSpeed");
+	}
+
+	@Benchmark
+	public String extractKeys() {
+		return MongoDB.extractKeys("byNameAndColourAndDriver.name");
+	}
+}
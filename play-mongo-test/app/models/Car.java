@@ -1,5 +1,6 @@
 package models;
 
+import play.modules.mongo.MongoCursor;
 import play.modules.mongo.MongoEntity;
 import play.modules.mongo.MongoModel;
 
@@ -21,5 +22,17 @@ public class Car extends MongoModel {
 		this.topSpeed = topSpeed;
 	}
 	
+	// implemented by the enhancer
+	public static MongoCursor findByNameAndColour(String name, String colour) {
+		return null;
+	}
+	
+	public static long countByName(String name) {
+		return 0;
+	}
+	
+	public static long countByTopSpeed(int topSpeed) {
+		return 0;
+	}
 	
 }
@@ -0,0 +1,21 @@
+package models;
+
+import java.util.Date;
+
+import play.modules.mongo.MongoEntity;
+import play.modules.mongo.MongoModel;
+
+@MongoEntity(value = "click", writeConcern = "UNACKNOWLEDGED", readPreference = "secondaryPreferred")
+public class Click extends MongoModel {
+
+	public String url;
+	public Date date;
+
+	public Click(){
+	}
+
+	public Click(String url) {
+		this.url = url;
+		this.date = new Date();
+	}
+}
@@ -0,0 +1,21 @@
+package models;
+
+import java.util.List;
+
+import play.modules.mongo.MongoEntity;
+import play.modules.mongo.MongoModel;
+
+@MongoEntity("part")
+public class Part extends MongoModel {
+
+	public String name;
+	public List<String> tags;
+	public Object data;
+
+	public Part(){
+	}
+
+	public Part(String name) {
+		this.name = name;
+	}
+}
@@ -0,0 +1,416 @@
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+/**
+ * The query parser as it was before MongoQuery, kept unchanged as a
+ * reference for {@link QueryParserTest}.
+ */
+public class LegacyQueryParser {
+
+	/**
+	 * A class to link a list of conditions and the logic applied 
+	 * (required if more than one condition in the list)   
+	 */
+	private static class LogicalBlock {
+		private BasicDBList conds = new BasicDBList();
+		private String logic;
+	}
+	
+	/**
+	 * Extracts parameter names from a query string
+	 * 
+	 * @param queryString - the query string
+	 * @return The BasicDBObject representing the query in Java Mongo DB format
+	 */
+	public static DBObject parseQuery(String queryString, Object[] values) {
+		
+		LinkedList<LogicalBlock> lExprQueue = new LinkedList<LogicalBlock>();
+		lExprQueue.add(new LogicalBlock());
+		
+		String lLastKey = null;
+		String lLastOperator = null;
+		Object lLastValue = null;
+		boolean lLastNegative = false;
+		
+		String lParsedQuery = queryString;
+		
+        while (lParsedQuery.length() > 0) {
+    		if (lLastKey == null) {
+        		// space
+    			while (lParsedQuery.startsWith(" ")) {
+    				lParsedQuery = lParsedQuery.substring(1);
+    			}
+            	if (lParsedQuery.toUpperCase().startsWith("OR")) {
+    				if (lExprQueue.getLast().logic == null) {
+    					lExprQueue.getLast().logic = "$or";
+    				}
+    				else if (!lExprQueue.getLast().logic.equals("$or")) {
+    		        	throw new IllegalArgumentException("Brackets needded to mix AND and OR operators at " + lParsedQuery + ", in " + queryString);
+    				}
+    				lParsedQuery = lParsedQuery.substring(2);
+    			}
+            	else if (lParsedQuery.toUpperCase().startsWith("AND")) {
+    				if (lExprQueue.getLast().logic == null) {
+    					lExprQueue.getLast().logic = "$and";
+    				}
+    				else if (!lExprQueue.getLast().logic.equals("$and")) {
+    		        	throw new IllegalArgumentException("Brackets needded to mix AND and OR operators at " + lParsedQuery + ", in " + queryString);
+    				}
+    				lParsedQuery = lParsedQuery.substring(3);
+            	}
+            	else if (lParsedQuery.startsWith("(")) { // logical parenthesis
+        			lExprQueue.add(new LogicalBlock());
+        			lParsedQuery = lParsedQuery.substring(1);
+        		}
+            	else {
+                	int lFirstSpace = lParsedQuery.indexOf(' ');
+            		if (lFirstSpace > 0) {
+            			lLastKey = lParsedQuery.substring(0, lFirstSpace);
+            			lParsedQuery = lParsedQuery.substring(lFirstSpace);
+            		}
+            		else {
+            			throw new IllegalArgumentException("Missing space after key it at " + lParsedQuery + " , in " + queryString);
+            		}
+            	}
+    		}
+    		else if (lLastOperator == null) {
+    			String part = null;
+        		int lFirstSpace = lParsedQuery.indexOf(' ');
+        		if (lFirstSpace > 0) {
+        			part = lParsedQuery.substring(0, lFirstSpace);
+        		}
+        		else {
+        			throw new IllegalArgumentException("Missing space after operator at " + lParsedQuery + ", in " + queryString);
+        		}
+    			
+    			if (part.equals("=") || part.equals("==")) {
+    				lLastOperator = "";  // default operator
+    			}
+    			else if (part.equals("!=") || part.equals("<>")) {
+    				lLastOperator = "$ne";
+    			}
+    			else if (part.equals(">")) {
+    				lLastOperator = "$gt";
+    			}
+    			else if (part.equals(">=")) {
+    				lLastOperator = "$gte";
+    			}
+    			else if (part.equals("<")) {
+    				lLastOperator = "$lt";
+    			}
+    			else if (part.equals("<=")) {
+    				lLastOperator = "$lte";
+    			}
+    			else if (part.equalsIgnoreCase("LIKE")) {
+    				lLastOperator = "$regex";
+    			}
+    			else if (part.equalsIgnoreCase("IN")) {
+    				lLastOperator = "$in";
+    			}
+    			else if (part.equalsIgnoreCase("IS")) {
+    				lLastOperator = "IS";
+    			}
+    			else if (part.equalsIgnoreCase("NOT")) {
+    				lLastOperator = "NOT";
+    			}
+    			else {
+    				throw new IllegalArgumentException("Unsupported operator at " + lParsedQuery + ", in " + queryString);
+    			}
+    			lParsedQuery = lParsedQuery.substring(lFirstSpace);
+    		}
+    		else if (lLastOperator.equals("IS")) {
+    			if (lParsedQuery.toUpperCase().startsWith("NULL")) { 
+    				lLastOperator = ""; // default operator 
+    				lLastValue = ""; // default value => change into null when building object
+    				lParsedQuery = lParsedQuery.substring(4);
+    			}
+    			else if (lParsedQuery.toUpperCase().startsWith("NOT")) {
+    				lLastOperator = "ISNOT";
+    				lParsedQuery = lParsedQuery.substring(3);
+    			}
+    			else {
+    				throw new IllegalArgumentException("Unsupported operator after IS at " + lParsedQuery + ", in " + queryString);
+    			}
+    		}
+    		else if (lLastOperator.equals("NOT")) {
+    			if (lParsedQuery.toUpperCase().startsWith("LIKE")) { // native mongo operator
+    				lLastOperator = "$regex";
+    				lLastNegative = true;
+    				lParsedQuery = lParsedQuery.substring(4);
+    			}
+    			else if (lParsedQuery.toUpperCase().startsWith("IN")) {
+    				lLastOperator = "$nin";
+    				lParsedQuery = lParsedQuery.substring(2);
+    			}
+    			else {
+    				throw new IllegalArgumentException("Unsupported operator after NOT at " + lParsedQuery + ", in " + queryString);
+    			}
+    		}
+    		else if (lLastOperator.equals("ISNOT")) {
+    			if (lParsedQuery.toUpperCase().startsWith("NULL")) { 
+    				lLastOperator = "$ne";
+    				lLastValue = ""; // default value => change into null when building object
+        			lParsedQuery = lParsedQuery.substring(4);
+    			}
+    			else {
+    				throw new IllegalArgumentException("Unsupported operator after IS NOT at " + lParsedQuery + ", in " + queryString);
+    			}
+    		}
+    		else if (lLastValue == null) {
+    			if (lParsedQuery.startsWith("?")) { //JPA like param numbering
+        			int nb = 0;
+        			lParsedQuery = lParsedQuery.substring(1);
+        			String nbStr = lParsedQuery;
+        			
+					int lSp = lParsedQuery.indexOf(' ');
+					int lEnd = lParsedQuery.indexOf(')');
+					int lMin = -1;
+					if (lSp >= 0) lMin = lSp;
+					if (lEnd >= 0 && (lEnd < lMin || lMin < 0)) lMin = lEnd;
+					try {
+						if (lMin >= 0) {
+							nbStr = nbStr.substring(0, lMin);
+						}
+						nb = Integer.parseInt(nbStr);
+					}
+					catch (NumberFormatException nfe) {
+						throw new IllegalArgumentException("Unsupported parameter number at  " + lParsedQuery + ", in " + queryString);
+					}
+					if (nb > values.length) {
+        				throw new IllegalArgumentException("Missing parameter number at " + lParsedQuery + ", in " + queryString);
+					}
+					lLastValue = values[nb - 1];
+					lParsedQuery = lParsedQuery.substring(String.valueOf(nb).length());
+    			}
+    			else if (lParsedQuery.startsWith("(")) { // list
+    				lLastValue = new ArrayList();
+    				lParsedQuery = lParsedQuery.substring(1);
+    				while (!lParsedQuery.isEmpty()) {
+    					if (lParsedQuery.startsWith(")")) { // end
+							lParsedQuery = lParsedQuery.substring(1);
+							break;
+    					}
+    					else if (lParsedQuery.startsWith(",")) { // next
+							lParsedQuery = lParsedQuery.substring(1);
+    					}
+    					else if (lParsedQuery.startsWith(" ")) { // space
+							lParsedQuery = lParsedQuery.substring(1);
+    					}
+    					else if (lParsedQuery.startsWith("'")) { //chain 
+    	    				lParsedQuery = lParsedQuery.substring(1);
+    						char lLastChar = 0;
+    						StringBuilder lSb = new StringBuilder();
+    						while (!lParsedQuery.isEmpty()) {
+    							char lCurrChar = lParsedQuery.charAt(0);
+    							lParsedQuery = lParsedQuery.substring(1);
+    							if (lCurrChar == '\'' && lLastChar != '\\') {
+        							lLastChar = lCurrChar;
+    								break;
+    							}
+    							else {
+        							lLastChar = lCurrChar;
+    								lSb.append(lCurrChar);
+    							}
+    						}
+    						if (lLastChar == '\'') {
+        						((List)lLastValue).add(lSb.toString());
+    						}
+    						else {
+    							throw new IllegalArgumentException("Unsupported list string value at  " + lParsedQuery + ", in " + queryString);
+    						}
+    					}
+    					else { // number
+    						int lSp = lParsedQuery.indexOf(' ');
+    						int lNext = lParsedQuery.indexOf(',');
+    						int lEnd = lParsedQuery.indexOf(')');
+    						int lMin = -1;
+    						if (lSp >= 0) lMin = lSp;
+    						if (lNext >= 0 && (lNext < lMin  || lMin < 0)) lMin = lNext;
+    						if (lEnd >= 0 && (lEnd < lMin || lMin < 0)) lMin = lEnd;
+    						try {
+    							String lNumberStr = lParsedQuery;
+    							if (lMin >= 0) {
+    								lNumberStr = lNumberStr.substring(0, lMin);
+    							}
+    							((List)lLastValue).add(Double.valueOf(lNumberStr));
+    						}
+    						catch (NumberFormatException nfe) {
+    							throw new IllegalArgumentException("Unsupported list number value at  " + lParsedQuery + ", in " + queryString);
+    						}
+    						if (lMin >= 0) {
+    							lParsedQuery = lParsedQuery.substring(lMin);
+    						}
+    						else {
+    							lParsedQuery = "";
+    						}
+    					}
+    				}
+    			}
+    			else { // single/simple type
+    				if (lParsedQuery.startsWith("'")) { //chain 
+	    				lParsedQuery = lParsedQuery.substring(1);
+						char lLastChar = 0;
+						StringBuilder lSb = new StringBuilder();
+						while (!lParsedQuery.isEmpty()) {
+							char lCurrChar = lParsedQuery.charAt(0);
+							lParsedQuery = lParsedQuery.substring(1);
+							if (lCurrChar == '\'' && lLastChar != '\\') {
+    							lLastChar = lCurrChar;
+								break;
+							}
+							else {
+    							lLastChar = lCurrChar;
+								lSb.append(lCurrChar);
+							}
+						}
+						if (lLastChar == '\'') {
+							lLastValue = lSb.toString();
+						}
+						else {
+							throw new IllegalArgumentException("Unsupported string value at  " + lParsedQuery + ", in " + queryString);
+						}
+
+    				}
+    				else { // number
+						int lSp = lParsedQuery.indexOf(' ');
+						int lEnd = lParsedQuery.indexOf(')');
+						int lMin = -1;
+						if (lSp >= 0) lMin = lSp;
+						if (lEnd >= 0 && (lEnd < lMin || lMin < 0)) lMin = lEnd;
+						try {
+							String lNumberStr = lParsedQuery;
+							if (lMin >= 0) {
+								lNumberStr = lNumberStr.substring(0, lMin);
+							}
+							lLastValue = Double.valueOf(lNumberStr);
+						}
+						catch (NumberFormatException nfe) {
+							throw new IllegalArgumentException("Unsupported number value at  " + lParsedQuery + ", in " + queryString);
+						}
+						if (lMin >= 0) {
+							lParsedQuery = lParsedQuery.substring(lMin);
+						}
+						else {
+							lParsedQuery = "";
+						}
+    				}
+    			}
+    		}
+    		
+    		if (lLastValue != null) {
+    			// on a tout pour construire une condition
+    			BasicDBObject lCond = new BasicDBObject();
+    			if (lLastOperator.equals("") || lLastOperator.equals("$eq"))  { // default operator
+    				if (lLastValue.equals("")) {
+    					lCond.put(lLastKey, null); // x is null
+    				}
+    				else {
+    					lCond.put(lLastKey, lLastValue); // x = y
+    				}
+    			}
+    			else if (lLastOperator.equals("$ne"))  {
+    				if (lLastValue.equals("")) {
+    					lCond.put(lLastKey, new BasicDBObject("$ne", null)); // x is not null
+    				}
+    				else {
+    					lCond.put(lLastKey, new BasicDBObject("$ne", lLastValue)); // x != y
+    				}
+    			}
+    			else if (lLastOperator.equals("$regex"))  { 
+    				// transform sql syntax to Pattern
+    				String lExpr = (String)lLastValue;
+    				if (lExpr.startsWith("%")) {
+    					lExpr = ".*" + lExpr.substring(1);
+    				}
+    				else {
+    					lExpr = "^" + lExpr;
+    				}
+    				if (lExpr.endsWith("%")) {
+    					lExpr = lExpr.substring(0, lExpr.length()-1) + ".*";
+    				}
+    				else {
+    					lExpr = lExpr + "$";
+    				}
+    				// inside chars
+    				lExpr = lExpr.replace('?', '.');
+					lExpr = lExpr.replaceAll("%", ".*");
+    				if (lLastNegative) {
+    					lCond.put(lLastKey, new BasicDBObject("$not", Pattern.compile(lExpr))); // x not like y
+    				}
+    				else {
+    					lCond.put(lLastKey,  Pattern.compile(lExpr)); // x like y
+    				}
+    			}
+    			else if (lLastOperator.equals("$in") || lLastOperator.equals("$nin"))  {
+    				BasicDBList inList = new BasicDBList();
+    				inList.addAll((List)lLastValue);
+					lCond.put(lLastKey, new BasicDBObject(lLastOperator, inList)); // x not in (y, z)
+    			}
+    			else { // default case
+					lCond.put(lLastKey, new BasicDBObject(lLastOperator, lLastValue)); // x ? z
+    			}
+    			// add condition to the list of current logical block 
+    			lExprQueue.getLast().conds.add(lCond);
+    			
+        		lLastKey = null;
+				lLastOperator = null;
+				lLastValue = null;
+				lLastNegative = false;
+    		}
+    		// space
+			while (lParsedQuery.startsWith(" ")) {
+				lParsedQuery = lParsedQuery.substring(1);
+			}
+			// closing logical block
+        	if (lParsedQuery.startsWith(")")) {
+        		// requires at least two blocks : current and parent
+        		if (lExprQueue.size() <= 1) {
+		        	throw new IllegalArgumentException("Missing brackets at " + lParsedQuery + ", in " + queryString);
+        		}
+        		LogicalBlock lClosedBlock = lExprQueue.pollLast();
+        		LogicalBlock lParentBlock = lExprQueue.getLast();
+        		if (lClosedBlock.logic == null) {
+        			if (lClosedBlock.conds.size() == 1) {
+            			lParentBlock.conds.add(lClosedBlock.conds.iterator().next());
+        			}
+        			else {
+    		        	throw new IllegalArgumentException("Missing logic at " + lParsedQuery + ", in " + queryString);
+        			}
+        		}
+        		else {
+        			// encapsulate condidtion and logic in parent
+        			lParentBlock.conds.add(new BasicDBObject(lClosedBlock.logic, lClosedBlock.conds));
+        		}
+				lParsedQuery = lParsedQuery.substring(1);
+        	}
+        	// space
+			while (lParsedQuery.startsWith(" ")) {
+				lParsedQuery = lParsedQuery.substring(1);
+			}
+        }
+        
+        if (lExprQueue.size() != 1) {
+        	throw new IllegalArgumentException("Not enough closing brackets in global logic in " + queryString);
+        }
+        LogicalBlock lGlobalExpr = lExprQueue.pollLast();
+        
+        if (lGlobalExpr.logic == null) {
+        	// requires only one condition in the block
+        	if (lGlobalExpr.conds.size() == 1) {
+            	return (BasicDBObject)lGlobalExpr.conds.iterator().next();
+        	}
+        	else {
+            	throw new IllegalArgumentException("Missing logical operators in global logic in" + queryString);
+        	}
+        }
+        else {
+        	return new BasicDBObject(lGlobalExpr.logic, lGlobalExpr.conds);
+        }
+	}
+}
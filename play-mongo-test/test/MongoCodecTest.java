@@ -0,0 +1,125 @@
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import models.Car;
+import models.Driver;
+import models.MongoTestEntity;
+
+import org.bson.BasicBSONEncoder;
+import org.bson.types.ObjectId;
+import org.junit.Test;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.util.JSON;
+
+import play.modules.mongo.MongoCodec;
+import play.modules.mongo.MongoDecoder;
+import play.modules.mongo.MongoMapper;
+import play.test.UnitTest;
+
+public class MongoCodecTest extends UnitTest {
+
+	public static class Engine {
+		private int power;
+		public List<String> options;
+
+		public int getPower() {
+			return power;
+		}
+
+		public void setPower(int power) {
+			this.power = power;
+		}
+	}
+
+	@Test
+	public void sameDocumentAsJackson() {
+		Car car = new Car("Toyota", "white", 160);
+		car.driver = new Driver("Andrew", new Date(0));
+		assertEquals(jackson(car), JSON.serialize(MongoCodec.toDBObject(car)));
+
+		MongoTestEntity entity = new MongoTestEntity();
+		entity.testStr = "un";
+		entity.testDate = new Date(1000);
+		assertEquals(jackson(entity), JSON.serialize(MongoCodec.toDBObject(entity)));
+
+		// mapped by Jackson because of its getter and setter
+		Engine engine = new Engine();
+		engine.setPower(120);
+		assertEquals(jackson(engine), JSON.serialize(MongoCodec.toDBObject(engine)));
+	}
+
+	@Test
+	public void roundTrip() {
+		Car car = new Car("Toyota", "white", 160);
+		car.driver = new Driver("Andrew", new Date(0));
+		car.set_id(new ObjectId());
+
+		DBObject dbObject = MongoCodec.toDBObject(car);
+		assertEquals(car.get_id(), dbObject.get("_id"));
+		assertTrue(dbObject.get("driver") instanceof DBObject);
+
+		Car copy = MongoCodec.fromDBObject(dbObject, Car.class);
+		assertEquals(car.get_id(), copy.get_id());
+		assertEquals("Toyota", copy.name);
+		assertEquals("white", copy.colour);
+		assertEquals(160, copy.topSpeed);
+		assertEquals("Andrew", copy.driver.name);
+		assertEquals(new Date(0), copy.driver.dob);
+	}
+
+	@Test
+	public void convertsNumbers() {
+		DBObject dbObject = new BasicDBObject("name", "Toyota").append("topSpeed", 160.0);
+		assertEquals(160, MongoCodec.fromDBObject(dbObject, Car.class).topSpeed);
+
+		dbObject = new BasicDBObject("testInt", 5L).append("testBool", null).append("unknown", "x");
+		MongoTestEntity entity = MongoCodec.fromDBObject(dbObject, MongoTestEntity.class);
+		assertEquals(Integer.valueOf(5), entity.testInt);
+		assertNull(entity.testBool);
+	}
+
+	@Test
+	public void streamingDecoder() {
+		Car car = new Car("Toyota", "white", 160);
+		car.driver = new Driver("Andrew", new Date(0));
+		car.set_id(new ObjectId());
+		DBObject dbObject = MongoCodec.toDBObject(car);
+		dbObject.put("unknown", "x");
+		byte[] bytes = new BasicBSONEncoder().encode(dbObject);
+
+		DBObject decoded = MongoDecoder.factory(Car.class).create().decode(bytes, (DBCollection) null);
+		// the accessors generated by Play do not get in the way
+		assertTrue(decoded instanceof MongoDecoder.ModelObject);
+		assertEquals("x", decoded.get("unknown"));
+		Car copy = MongoCodec.fromDBObject(decoded, Car.class);
+		assertEquals(car.get_id(), copy.get_id());
+		assertEquals("Toyota", copy.name);
+		assertEquals(160, copy.topSpeed);
+		assertEquals("Andrew", copy.driver.name);
+		assertEquals(new Date(0), copy.driver.dob);
+
+		// left to the driver
+		dbObject.put("pattern", Pattern.compile("^T"));
+		bytes = new BasicBSONEncoder().encode(dbObject);
+		decoded = MongoDecoder.factory(Car.class).create().decode(bytes, (DBCollection) null);
+		assertTrue(decoded.get("pattern") instanceof Pattern);
+		assertEquals("Andrew", MongoCodec.fromDBObject(decoded, Car.class).driver.name);
+	}
+
+	@Test
+	public void unsavedModelHasNoId() {
+		assertFalse(MongoCodec.toDBObject(new Car("Toyota", "white", 160)).containsField("_id"));
+	}
+
+	@SuppressWarnings("rawtypes")
+	private static String jackson(Object object) {
+		Map map = MongoMapper.convertValue(object, Map.class);
+		map.remove("_id");
+		return JSON.serialize(map);
+	}
+}
@@ -1,14 +1,42 @@
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import models.Car;
+import models.Click;
 import models.Driver;
+import models.Part;
 
 import org.bson.types.ObjectId;
 import org.junit.Before;
 import org.junit.Test;
 
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.MongoClientOptions;
+import com.mongodb.MongoException;
+import com.mongodb.ReadPreference;
+import com.mongodb.ServerAddress;
+import com.mongodb.WriteConcern;
+
+import play.modules.mongo.MongoBatchLoader;
+import play.modules.mongo.MongoBulkSaveException;
+import play.modules.mongo.MongoCursor;
+import play.modules.mongo.MongoDB;
+import play.modules.mongo.MongoMetrics;
+import play.modules.mongo.MongoModel;
+import play.modules.mongo.MongoOptions;
+import play.modules.mongo.MongoPage;
+import play.modules.mongo.MongoPlugin;
+import play.modules.mongo.MongoRegistry;
+import play.modules.mongo.MongoSlowLog;
+import play.Play;
+import play.exceptions.ConfigurationException;
 import play.test.UnitTest;
 
 public class MongoModelTest extends UnitTest {
@@ -60,6 +88,343 @@ public class MongoModelTest extends UnitTest {
     	assertEquals("Toyota v1", c.name);
     }
     
+    @Test
+    public void streaming(){
+    	Car car = new Car("Toyota", "white", 150);
+    	car.driver = new Driver("Andrew", new java.util.Date(0));
+    	car.save();
+    	new Car("Holden", "blue", 160).save();
+    	
+    	List<Car> cars = Car.find().streaming().order("byName").fetch();
+    	assertEquals(2, cars.size());
+    	assertEquals("Holden", cars.get(0).name);
+    	assertEquals(160, cars.get(0).topSpeed);
+    	assertNull(cars.get(0).driver);
+    	assertEquals(car.get_id(), cars.get(1).get_id());
+    	assertEquals("Andrew", cars.get(1).driver.name);
+    	assertEquals(new java.util.Date(0), cars.get(1).driver.dob);
+    }
+    
+    @Test
+    public void iterate(){
+    	for (int i = 1; i <= 25; i++){
+    		new Car("Toyota v"+i, "white", 150+i).save();
+    	}
+    	
+    	int count = 0;
+    	for (MongoModel model : Car.find().batchSize(50)){
+    		assertTrue(model instanceof Car);
+    		count++;
+    	}
+    	assertEquals(25, count);
+    	
+    	final int[] topSpeeds = new int[1];
+    	long visited = Car.find("byColour", "white").streaming().batchSize(50).each(new MongoCursor.Callback<Car>() {
+    		public void call(Car car) {
+    			topSpeeds[0] += car.topSpeed;
+    		}
+    	});
+    	assertEquals(25, visited);
+    	assertEquals(25 * 150 + 25 * 26 / 2, topSpeeds[0]);
+    }
+    
+    @Test
+    public void readAhead(){
+    	for (int i = 1; i <= 250; i++){
+    		new Car("Toyota v"+i, "white", 150+i).save();
+    	}
+    	
+    	List<Car> cars = Car.find().order("byTopSpeed").readAhead().fetch();
+    	assertEquals(250, cars.size());
+    	assertEquals(151, cars.get(0).topSpeed);
+    	assertEquals(400, cars.get(249).topSpeed);
+    	
+    	assertEquals(20, Car.find().readAhead(1).fetch(2, 20).size());
+    	
+    	// leaving early stops the reading
+    	MongoCursor cursor = Car.find().batchSize(10).readAhead(1);
+    	int count = 0;
+    	for (MongoModel model : cursor){
+    		if (++count == 5){
+    			break;
+    		}
+    	}
+    	cursor.close();
+    	assertFalse(cursor.iterator().hasNext());
+    	
+    	final int[] visited = new int[1];
+    	assertEquals(250, Car.find().streaming().readAhead().each(new MongoCursor.Callback<Car>() {
+    		public void call(Car car) {
+    			visited[0]++;
+    		}
+    	}));
+    	assertEquals(250, visited[0]);
+    }
+    
+    @Test
+    @SuppressWarnings("unchecked")
+    public void objectFieldChangedInPlace(){
+    	Part part = new Part("wheel");
+    	part.data = new BasicDBObject("size", 17).append("sizes", new BasicDBList());
+    	part.save();
+    	
+    	Part found = MongoDB.findById(Part.getCollectionName(), Part.class, part.get_id());
+    	((Map<String, Object>) found.data).put("size", 18);
+    	((List<Object>) ((Map<String, Object>) found.data).get("sizes")).add(16);
+    	found.save();
+    	
+    	found = MongoDB.findById(Part.getCollectionName(), Part.class, part.get_id());
+    	assertEquals(18, ((Map<String, Object>) found.data).get("size"));
+    	assertEquals(java.util.Arrays.asList(16), ((Map<String, Object>) found.data).get("sizes"));
+    	MongoRegistry.of(Part.class).getCollection().remove(new BasicDBObject());
+    }
+    
+    @Test
+    public void readAheadFailure(){
+    	DBCollection parts = MongoRegistry.of(Part.class).getCollection();
+    	parts.remove(new BasicDBObject());
+    	parts.insert(new BasicDBObject("name", "broken").append("tags", "not a list"));
+    	for (int i = 1; i <= 50; i++){
+    		new Part("part "+i).save();
+    	}
+    	
+    	// the reading ahead stops when a model cannot be built
+    	MongoCursor cursor = Part.find().batchSize(10).readAhead(1);
+    	try {
+    		cursor.fetch();
+    		fail();
+    	} catch (ClassCastException e) {
+    		// the tags are not a list
+    	} finally {
+    		parts.remove(new BasicDBObject());
+    	}
+    	assertFalse(cursor.iterator().hasNext());
+    }
+    
+    @Test
+    public void busyWorkers(){
+    	List<ObjectId> ids = new java.util.ArrayList<ObjectId>();
+    	for (int i = 1; i <= 1200; i++){
+    		Car car = new Car("Toyota v"+i, "white", 150);
+    		car.save();
+    		ids.add(car.get_id());
+    	}
+    	
+    	// one worker, started again with the new size
+    	MongoPlugin plugin = new MongoPlugin();
+    	Play.configuration.setProperty("mongo.connectionsPerHost", "1");
+    	plugin.onApplicationStop();
+    	try {
+    		// holds the worker, waiting for room to read ahead
+    		MongoCursor cursor = Car.find().batchSize(10).readAhead(1);
+    		assertTrue(cursor.iterator().hasNext());
+    		
+    		// read on the calling thread meanwhile
+    		assertEquals(1200, Car.findByIds(ids).size());
+    		assertEquals(1200, Car.find().readAhead().fetch().size());
+    		cursor.close();
+    	} finally {
+    		Play.configuration.remove("mongo.connectionsPerHost");
+    		plugin.onApplicationStop();
+    	}
+    }
+    
+    @Test
+    public void keysetPages(){
+    	for (int i = 1; i <= 25; i++){
+    		new Car("Toyota v"+i, i % 2 == 0 ? "white" : "red", 150 + i % 7).save();
+    	}
+    	List<Car> all = Car.find().order("by-TopSpeedAnd-_id").fetch();
+    	
+    	List<Car> read = new java.util.ArrayList<Car>();
+    	String token = null;
+    	int pages = 0;
+    	do {
+    		MongoPage<Car> page = Car.find().order("by-TopSpeed").fetchPage(token, 10);
+    		read.addAll(page.getModels());
+    		token = page.getNextPageToken();
+    		pages++;
+    	} while (token != null);
+    	assertEquals(3, pages);
+    	assertEquals(25, read.size());
+    	for (int i = 0; i < all.size(); i++){
+    		assertEquals(all.get(i).get_id(), read.get(i).get_id());
+    	}
+    	
+    	// the pages of a query
+    	MongoPage<Car> whites = Car.find("byColour", "white").order("byName").fetchPage(null, 10);
+    	assertTrue(whites.hasNext());
+    	whites = Car.find("byColour", "white").order("byName").fetchPage(whites.getNextPageToken(), 10);
+    	assertFalse(whites.hasNext());
+    	assertEquals(2, whites.getModels().size());
+    	assertEquals("white", whites.getModels().get(0).colour);
+    	
+    	token = Car.find().order("by-TopSpeed").fetchPage(null, 10).getNextPageToken();
+    	try {
+    		Car.find().order("byName").fetchPage(token, 10);
+    		fail("token of another order");
+    	} catch (IllegalArgumentException e) {
+    	}
+    	
+    	// the sort keys are read along with the selected fields
+    	read.clear();
+    	token = null;
+    	do {
+    		MongoPage<Car> page = Car.find().select("name").order("by-TopSpeed").fetchPage(token, 10);
+    		read.addAll(page.getModels());
+    		token = page.getNextPageToken();
+    	} while (token != null);
+    	assertEquals(25, read.size());
+    	for (int i = 0; i < all.size(); i++){
+    		assertEquals(all.get(i).get_id(), read.get(i).get_id());
+    	}
+    	assertTrue(read.get(0).isLoaded("topSpeed"));
+    	try {
+    		Car.find().exclude("topSpeed").order("by-TopSpeed").fetchPage(null, 10);
+    		fail("excluded sort key");
+    	} catch (IllegalArgumentException e) {
+    	}
+    }
+    
+    @Test
+    public void parallelScan(){
+    	// spread over a hundred days so that the _id space can be split
+    	DBCollection collection = MongoDB.db().getCollection(Car.getCollectionName());
+    	for (int i = 0; i < 100; i++){
+    		ObjectId id = new ObjectId(new java.util.Date(System.currentTimeMillis() - i * 86400000L));
+    		collection.insert(new BasicDBObject("_id", id).append("name", "Toyota v"+i).append("colour", i % 2 == 0 ? "white" : "red").append("topSpeed", 150));
+    	}
+    	
+    	final java.util.Set<ObjectId> ids = java.util.Collections.synchronizedSet(new java.util.HashSet<ObjectId>());
+    	final java.util.Set<String> threads = java.util.Collections.synchronizedSet(new java.util.HashSet<String>());
+    	long count = MongoDB.parallelScan(Car.getCollectionName(), new BasicDBObject(), Car.class, 4, new MongoCursor.Callback<Car>() {
+    		public void call(Car car) {
+    			ids.add(car.get_id());
+    			threads.add(Thread.currentThread().getName());
+    		}
+    	});
+    	assertEquals(100, count);
+    	assertEquals(100, ids.size());
+    	assertTrue(threads.size() > 1);
+    	
+    	count = MongoDB.parallelScan(Car.getCollectionName(), "byColour", new Object[]{ "white" }, Car.class, 4, new MongoCursor.Callback<Car>() {
+    		public void call(Car car) {
+    			assertEquals("white", car.colour);
+    		}
+    	});
+    	assertEquals(50, count);
+    	
+    	try {
+    		MongoDB.parallelScan(Car.getCollectionName(), new BasicDBObject(), Car.class, 4, new MongoCursor.Callback<Car>() {
+    			public void call(Car car) {
+    				if (car.name.equals("Toyota v42")){
+    					throw new IllegalStateException(car.name);
+    				}
+    			}
+    		});
+    		fail("the exception of the callback");
+    	} catch (IllegalStateException e) {
+    		assertEquals("Toyota v42", e.getMessage());
+    	}
+    }
+    
+    @Test
+    public void projection() throws Exception {
+    	Car car = new Car("Toyota", "white", 150);
+    	car.driver = new Driver("Andrew", new java.util.Date(0));
+    	car.save();
+    	
+    	Car selected = Car.find().select("name, driver.name").first();
+    	assertEquals(car.get_id(), selected.get_id());
+    	assertEquals("Toyota", selected.name);
+    	assertEquals("Andrew", selected.driver.name);
+    	assertNull(selected.driver.dob);
+    	assertNull(selected.colour);
+    	assertTrue(selected.isLoaded("name"));
+    	assertTrue(selected.isLoaded("driver"));
+    	assertFalse(selected.isLoaded("colour"));
+    	
+    	Car excluded = Car.find().exclude("driver").first();
+    	assertEquals("white", excluded.colour);
+    	assertNull(excluded.driver);
+    	assertFalse(excluded.isLoaded("driver"));
+    	assertTrue(excluded.isLoaded("colour"));
+    	
+    	// saving a partly loaded model leaves the other fields alone
+    	excluded.colour = "red";
+    	excluded.save();
+    	Car saved = Car.find().first();
+    	assertEquals("red", saved.colour);
+    	assertEquals("Andrew", saved.driver.name);
+    	
+    	excluded.load();
+    	assertTrue(excluded.isLoaded("driver"));
+    	assertEquals("Andrew", excluded.driver.name);
+    	assertEquals("red", excluded.colour);
+    	
+    	// the getter generated by Play loads the rest of the document
+    	Car lazy = Car.find().select("name").lazy().first();
+    	assertEquals("red", Car.class.getMethod("getColour").invoke(lazy));
+    	assertEquals(150, lazy.topSpeed);
+    }
+    
+    @Test
+    public void changedFields(){
+    	Car car = new Car("Toyota", "white", 150);
+    	car.driver = new Driver("Andrew", new java.util.Date(0));
+    	car.save();
+    	
+    	for (boolean streaming : new boolean[]{ false, true }){
+	    	MongoCursor cursor = Car.find();
+	    	Car read = (streaming ? cursor.streaming() : cursor).first();
+	    	
+	    	// changed behind the back of the model
+	    	DBCollection collection = MongoDB.db().getCollection(Car.getCollectionName());
+	    	collection.update(new BasicDBObject("_id", car.get_id()), new BasicDBObject("$set", new BasicDBObject("colour", "blue").append("driver.dob", new java.util.Date(1000))));
+	    	
+	    	// nothing changed, nothing is written
+	    	read.save();
+	    	Car saved = Car.find().first();
+	    	assertEquals("blue", saved.colour);
+	    	
+	    	// only the changed values are written
+	    	read.topSpeed = 170;
+	    	read.driver.name = "Sam";
+	    	read.save();
+	    	saved = Car.find().first();
+	    	assertEquals(170, saved.topSpeed);
+	    	assertEquals("Sam", saved.driver.name);
+	    	assertEquals("blue", saved.colour);
+	    	assertEquals(new java.util.Date(1000), saved.driver.dob);
+	    	
+	    	// and then nothing again
+	    	collection.update(new BasicDBObject("_id", car.get_id()), new BasicDBObject("$set", new BasicDBObject("topSpeed", 150)));
+	    	read.save();
+	    	saved = Car.find().first();
+	    	assertEquals(150, saved.topSpeed);
+	    	collection.update(new BasicDBObject("_id", car.get_id()), new BasicDBObject("$set", new BasicDBObject("colour", "white").append("driver.name", "Andrew")));
+    	}
+    }
+    
+    @Test
+    public void updateDocument(){
+    	DBObject original = new BasicDBObject("_id", new ObjectId()).append("name", "Toyota").append("topSpeed", 150)
+    			.append("driver", new BasicDBObject("name", "Andrew").append("age", 30)).append("extra", true);
+    	DBObject current = new BasicDBObject("name", "Toyota").append("topSpeed", 150L)
+    			.append("driver", new BasicDBObject("name", "Sam").append("age", 30)).append("colour", "red");
+    	
+    	DBObject update = MongoDB.createUpdateDbObject(original, current, false);
+    	assertEquals(new BasicDBObject("driver.name", "Sam").append("colour", "red"), update.get("$set"));
+    	assertEquals(new BasicDBObject("extra", 1), update.get("$unset"));
+    	
+    	assertTrue(MongoDB.createUpdateDbObject(current, current, false).keySet().isEmpty());
+    	
+    	// values missing from the embedded documents read through a projection are left alone
+    	original = new BasicDBObject("driver", new BasicDBObject("name", "Andrew"));
+    	current = new BasicDBObject("driver", new BasicDBObject("name", "Andrew").append("age", null));
+    	assertTrue(MongoDB.createUpdateDbObject(original, current, true).keySet().isEmpty());
+    }
+    
     @Test
     public void query(){
     	new Car("Toyota", "white", 150).save();
@@ -75,6 +440,20 @@ public class MongoModelTest extends UnitTest {
     	assertEquals(2, whiteToyotas.size());
     }
     
+    @Test
+    public void dynamicFinders(){
+    	new Car("Toyota", "white", 150).save();
+    	new Car("Toyota", "red", 150).save();
+    	new Car("Toyota", "white", 160).save();
+    	new Car("Holden", "white", 150).save();
+    	
+    	List<Car> whiteToyotas = Car.findByNameAndColour("Toyota", "white").fetch();
+    	assertEquals(2, whiteToyotas.size());
+    	
+    	assertEquals(3, Car.countByName("Toyota"));
+    	assertEquals(1, Car.countByTopSpeed(160));
+    }
+    
     @Test
     public void ordering(){
     	new Car("AToyota", "white", 150).save();
@@ -107,6 +486,36 @@ public class MongoModelTest extends UnitTest {
     	assertEquals(4, Car.count("byName", "Toyota"));
     }
     
+    @Test
+    public void cheapCounts(){
+    	assertFalse(Car.exists("byName", "Toyota"));
+    	assertNull(Car.find("byName", "Toyota").first());
+    	
+    	for (int i = 0; i < 10; i++){
+    		new Car("Toyota", "white", 150 + i).save();
+    	}
+    	new Car("Holden", "blue", 150).save();
+    	
+    	assertTrue(Car.exists("byName", "Toyota"));
+    	assertTrue(Car.exists("topSpeed > ?1", 158));
+    	assertFalse(Car.exists("byColour", "red"));
+    	
+    	assertEquals(5, Car.countUpTo(5, "byName", "Toyota"));
+    	assertEquals(10, Car.countUpTo(100, "byName", "Toyota"));
+    	assertEquals(1, Car.countUpTo(100, "byColour", "blue"));
+    	
+    	assertEquals(11, Car.estimatedCount());
+    	// kept for a while
+    	new Car("Holden", "red", 150).save();
+    	assertEquals(11, Car.estimatedCount());
+    	MongoDB.setEstimatedCountTtl(0);
+    	try {
+    		assertEquals(12, Car.estimatedCount());
+    	} finally {
+    		MongoDB.setEstimatedCountTtl(MongoDB.DEFAULT_ESTIMATED_COUNT_TTL);
+    	}
+    }
+    
     @Test
     public void delete(){
     	new Car("Toyota", "white", 150).save();
@@ -160,6 +569,442 @@ public class MongoModelTest extends UnitTest {
     	assertEquals("car", colName);
     }
     
+    @Test
+    public void findByIds(){
+    	List<ObjectId> ids = new java.util.ArrayList<ObjectId>();
+    	for (int i = 1; i <= 1200; i++){
+    		Car car = new Car("Toyota v"+i, "white", 150);
+    		car.save();
+    		ids.add(car.get_id());
+    	}
+    	java.util.Collections.reverse(ids);
+    	ids.add(2, new ObjectId());
+    	
+    	// three queries
+    	List<Car> cars = Car.findByIds(ids);
+    	assertEquals(1200, cars.size());
+    	assertEquals("Toyota v1200", cars.get(0).name);
+    	assertEquals("Toyota v1198", cars.get(2).name);
+    	assertEquals("Toyota v1", cars.get(1199).name);
+    	
+    	java.util.Map<ObjectId, Car> byId = Car.findMapByIds(ids.subList(0, 4));
+    	assertEquals(3, byId.size());
+    	assertEquals(java.util.Arrays.asList(ids.get(0), ids.get(1), ids.get(3)), new java.util.ArrayList<ObjectId>(byId.keySet()));
+    	assertEquals("Toyota v1199", byId.get(ids.get(1)).name);
+    	
+    	assertTrue(Car.findByIds(java.util.Collections.<ObjectId>emptyList()).isEmpty());
+    	
+    	// read on first use, along with the other queued ids
+    	MongoBatchLoader<Car> loader = MongoBatchLoader.of(Car.class);
+    	assertSame(loader, MongoBatchLoader.of(Car.class));
+    	loader.queue(ids.get(0)).queue(ids.get(1)).queue(ids.get(2));
+    	assertEquals("Toyota v1200", loader.get(ids.get(0)).name);
+    	assertNull(loader.get(ids.get(2)));
+    	Car.deleteAll();
+    	assertEquals("Toyota v1199", loader.get(ids.get(1)).name);
+    }
+    
+    @Test
+    public void saveAll(){
+    	Car saved = new Car("Toyota", "white", 150);
+    	saved.save();
+    	saved.colour = "red";
+    	
+    	List<Car> cars = new java.util.ArrayList<Car>();
+    	cars.add(saved);
+    	for (int i = 0; i < 1200; i++){
+    		cars.add(new Car("Toyota v" + i, "blue", 100 + i));
+    	}
+    	Car.saveAll(cars);
+    	
+    	assertEquals(1201, Car.count());
+    	for (Car car : cars){
+    		assertNotNull(car.get_id());
+    	}
+    	List<Car> found = Car.findByIds(java.util.Arrays.asList(saved.get_id(), cars.get(1000).get_id()));
+    	assertEquals("red", found.get(0).colour);
+    	assertEquals("Toyota v999", found.get(1).name);
+    	
+    	// saved models are up to date, only changed ones are written
+    	cars.get(1).topSpeed = 10;
+    	Car.saveAll(cars, true);
+    	found = Car.findByIds(java.util.Arrays.asList(cars.get(1).get_id()));
+    	assertEquals(10, found.get(0).topSpeed);
+    	assertEquals(1201, Car.count());
+    }
+    
+    @Test
+    public void saveAllFailures(){
+    	MongoRegistry.collection("car").createIndex(new BasicDBObject("name", 1), new BasicDBObject("unique", true));
+    	new Car("Toyota", "white", 150).save();
+    	
+    	List<Car> cars = new java.util.ArrayList<Car>();
+    	cars.add(new Car("Mazda", "red", 120));
+    	cars.add(new Car("Toyota", "blue", 130));
+    	cars.add(new Car("Honda", "black", 140));
+    	try {
+    		Car.saveAll(cars);
+    		fail();
+    	} catch (MongoBulkSaveException e) {
+    		assertEquals(1, e.getFailures().size());
+    		assertSame(cars.get(1), e.getFailures().get(0).getModel());
+    	}
+    	assertNotNull(cars.get(0).get_id());
+    	assertNull(cars.get(1).get_id());
+    	assertNotNull(cars.get(2).get_id());
+    	assertEquals(3, Car.count());
+    	
+    	// ordered, the models after the failure are not saved
+    	cars = new java.util.ArrayList<Car>();
+    	cars.add(new Car("Toyota", "blue", 130));
+    	cars.add(new Car("Fiat", "green", 110));
+    	try {
+    		Car.saveAll(cars, true);
+    		fail();
+    	} catch (MongoBulkSaveException e) {
+    		assertEquals(2, e.getFailures().size());
+    	}
+    	assertNull(cars.get(0).get_id());
+    	assertNull(cars.get(1).get_id());
+    }
+
+    @Test
+    public void saveAllNetworkFailure(){
+    	Car stored = new Car("Toyota", "white", 150);
+    	stored.save();
+    	stored.topSpeed = 160;
+    	List<Car> cars = new java.util.ArrayList<Car>();
+    	cars.add(stored);
+    	cars.add(new Car("Mazda", "red", 120));
+
+    	// the client of the collection is gone, as after a failure of the network
+    	MongoDB.db().getMongo().close();
+    	try {
+    		Car.saveAll(cars);
+    		fail();
+    	} catch (RuntimeException e) {
+    		assertFalse(e instanceof MongoBulkSaveException);
+    	} finally {
+    		MongoDB.reset();
+    	}
+    	assertEquals(stored.get_id(), cars.get(0).get_id());
+    	assertNull(cars.get(1).get_id());
+
+    	// inserted when saved again
+    	Car.saveAll(cars);
+    	assertEquals(2, Car.count());
+    	assertEquals(160, Car.find("byName", "Toyota").<Car>first().topSpeed);
+    }
+
+    @Test
+    public void writeBehind(){
+    	MongoPlugin plugin = new MongoPlugin();
+    	Play.configuration.setProperty("mongo.writeBehind", "true");
+    	plugin.onConfigurationRead();
+    	try {
+    		plugin.beforeInvocation();
+    		Car car = new Car("Toyota", "white", 150);
+    		car.save();
+    		car.topSpeed = 160;
+    		car.save();
+    		new Car("Mazda", "red", 120).save();
+    		
+    		// written when the invocation ends
+    		assertNotNull(car.get_id());
+    		assertEquals(0, Car.count());
+    		plugin.afterInvocation();
+    		assertEquals(2, Car.count());
+    		List<Car> found = Car.findByIds(java.util.Arrays.asList(car.get_id()));
+    		assertEquals(160, found.get(0).topSpeed);
+    		
+    		// dropped when it fails
+    		car.colour = "blue";
+    		car.save();
+    		plugin.onInvocationException(new RuntimeException());
+    		plugin.afterInvocation();
+    		found = Car.findByIds(java.util.Arrays.asList(car.get_id()));
+    		assertEquals("white", found.get(0).colour);
+    		
+    		// flushed before a delete
+    		new Car("Honda", "black", 140).save();
+    		Car.delete("byName", "Honda");
+    		assertEquals(2, Car.count());
+    		
+    		// written by the background thread, at the latest when it stops
+    		Play.configuration.setProperty("mongo.writeBehind.background", "true");
+    		plugin.onConfigurationRead();
+    		plugin.beforeInvocation();
+    		new Car("Fiat", "green", 110).save();
+    		plugin.afterInvocation();
+    		plugin.onApplicationStop();
+    		assertEquals(3, Car.count());
+    	} finally {
+    		plugin.invocationFinally();
+    		Play.configuration.remove("mongo.writeBehind");
+    		Play.configuration.remove("mongo.writeBehind.background");
+    		plugin.onConfigurationRead();
+    	}
+    }
+    
+    @Test
+    public void atomicUpdates(){
+    	Car car = new Car("Toyota", "white", 150);
+    	car.save();
+    	new Car("Toyota", "blue", 100).save();
+    	new Car("Mazda", "red", 120).save();
+    	
+    	assertEquals(2, Car.update("byName", "inc topSpeed 5, set colour ?2", "Toyota", "green"));
+    	assertEquals(2, Car.count("colour = ?1", "green"));
+    	assertEquals(1, Car.count("topSpeed = ?1", 155));
+    	
+    	assertTrue(Car.updateById(car.get_id(), "set driver ?1", new Driver("Sam", new java.util.Date())));
+    	assertFalse(Car.updateById(new ObjectId(), "inc topSpeed 1"));
+    	
+    	Car updated = Car.findAndModify("byName", "inc topSpeed 10", "Mazda");
+    	assertEquals(130, updated.topSpeed);
+    	Car before = Car.findAndModify(false, "byName", "inc topSpeed 10", "Mazda");
+    	assertEquals(130, before.topSpeed);
+    	assertNull(Car.findAndModify("byName", "inc topSpeed 10", "Fiat"));
+    	
+    	List<Car> found = Car.findByIds(java.util.Arrays.asList(car.get_id()));
+    	assertEquals("Sam", found.get(0).driver.name);
+    	assertEquals(155, found.get(0).topSpeed);
+    }
+    
+    @Test
+    public void writeConcernAndReadPreference(){
+    	Click.delete("byUrl", "/home");
+    	DBCollection clicks = MongoRegistry.of(Click.class).getCollection();
+    	assertEquals(WriteConcern.UNACKNOWLEDGED, clicks.getWriteConcern());
+    	assertEquals(ReadPreference.secondaryPreferred(), clicks.getReadPreference());
+    	assertEquals(MongoDB.db().getWriteConcern(), MongoRegistry.of(Car.class).getCollection().getWriteConcern());
+    	
+    	// acknowledged, readable from the primary right away
+    	Click click = new Click("/home");
+    	click.save(WriteConcern.ACKNOWLEDGED);
+    	assertNotNull(click.get_id());
+    	Click found = (Click) Click.find().readPreference(ReadPreference.primary()).first();
+    	assertEquals("/home", found.url);
+    	Click.delete("byUrl", "/home");
+    }
+
+    @Test
+    public void unacknowledgedUpdates(){
+    	Click click = new Click("/home");
+    	click.save(WriteConcern.ACKNOWLEDGED);
+
+    	// the server is not asked how many models matched
+    	assertEquals(-1, Click.update("byUrl", "set url ?2", "/home", "/index"));
+    	assertTrue(Click.updateById(new ObjectId(), "set url '/about'"));
+
+    	// applied all the same
+    	DBCollection clicks = MongoRegistry.of(Click.class).getCollection();
+    	long deadline = System.currentTimeMillis() + 2000;
+    	while (clicks.getCount(new BasicDBObject("url", "/index")) == 0 && System.currentTimeMillis() < deadline){
+    		Thread.yield();
+    	}
+    	assertEquals(1, clicks.getCount(new BasicDBObject("url", "/index")));
+    	Click.delete("byUrl", "/index");
+    }
+    
+    @Test
+    public void connectionOptions(){
+    	java.util.Properties conf = new java.util.Properties();
+    	conf.setProperty("mongo.hosts", "localhost:27018, localhost");
+    	conf.setProperty("mongo.connectionsPerHost", "250");
+    	conf.setProperty("mongo.threadsAllowedToBlockForConnectionMultiplier", "10");
+    	conf.setProperty("mongo.maxWaitTime", "2000");
+    	conf.setProperty("mongo.socketKeepAlive", "true");
+    	conf.setProperty("mongo.readPreference", "secondaryPreferred");
+    	
+    	List<ServerAddress> seeds = MongoOptions.seeds(conf);
+    	assertEquals(2, seeds.size());
+    	assertEquals(27018, seeds.get(0).getPort());
+    	assertEquals(27017, seeds.get(1).getPort());
+    	
+    	// IPv6, with a port between brackets only
+    	java.util.Properties ipv6 = new java.util.Properties();
+    	ipv6.setProperty("mongo.hosts", "[::1]:27019, ::1, [::1]");
+    	seeds = MongoOptions.seeds(ipv6);
+    	assertEquals(3, seeds.size());
+    	assertEquals(27019, seeds.get(0).getPort());
+    	assertEquals(27017, seeds.get(1).getPort());
+    	assertEquals(27017, seeds.get(2).getPort());
+    	assertEquals(seeds.get(1).getHost(), seeds.get(0).getHost());
+    	
+    	MongoClientOptions options = MongoOptions.options(conf);
+    	assertEquals(250, options.getConnectionsPerHost());
+    	assertEquals(10, options.getThreadsAllowedToBlockForConnectionMultiplier());
+    	assertEquals(2000, options.getMaxWaitTime());
+    	assertTrue(options.isSocketKeepAlive());
+    	assertEquals(ReadPreference.secondaryPreferred(), options.getReadPreference());
+    	
+    	conf.setProperty("mongo.maxWaitTime", "soon");
+    	try {
+    		MongoOptions.options(conf);
+    		fail();
+    	} catch (ConfigurationException e) {
+    		// expected
+    	}
+    }
+    
+    @Test
+    public void reconnect(){
+    	DB before = MongoDB.db();
+    	MongoPlugin plugin = new MongoPlugin();
+    	
+    	// reported as the cause of the failure of an invocation
+    	plugin.onInvocationException(new RuntimeException(new MongoException.Network("down", new java.io.IOException())));
+    	plugin.onInvocationException(new MongoException.Network("down", new java.io.IOException()));
+    	DB after = MongoDB.db();
+    	assertNotSame(before, after);
+    	assertSame(after, MongoDB.db());
+    	
+    	new Car("Toyota", "white", 150).save();
+    	assertEquals(1, Car.count());
+    	// the replaced client is closed later, still usable meanwhile
+    	assertEquals(1, before.getCollection(Car.getCollectionName()).count());
+    }
+    
+    @Test
+    public void stopClosesConnection(){
+    	DB before = MongoDB.db();
+    	MongoPlugin plugin = new MongoPlugin();
+    	
+    	// kept by a reload in dev mode
+    	Play.Mode mode = Play.mode;
+    	Play.mode = Play.Mode.DEV;
+    	plugin.onApplicationStop();
+    	assertSame(before, MongoDB.db());
+    	
+    	Play.mode = Play.Mode.PROD;
+    	try {
+    		plugin.onApplicationStop();
+    	} finally {
+    		Play.mode = mode;
+    	}
+    	try {
+    		before.getCollection(Car.getCollectionName()).count();
+    		fail();
+    	} catch (IllegalStateException e) {
+    		// closed
+    	}
+    	
+    	// connected again on next use
+    	assertNotSame(before, MongoDB.db());
+    	new Car("Toyota", "white", 150).save();
+    	assertEquals(1, Car.count());
+    }
+    
+    @Test
+    public void reloadKeepsConnection(){
+    	MongoPlugin plugin = new MongoPlugin();
+    	plugin.onConfigurationRead();
+    	DB before = MongoDB.db();
+    	plugin.onConfigurationRead();
+    	assertSame(before, MongoDB.db());
+    	
+    	// changed, connected again
+    	Play.configuration.setProperty("mongo.connectionsPerHost", "50");
+    	try {
+    		plugin.onConfigurationRead();
+    		assertNotSame(before, MongoDB.db());
+    	} finally {
+    		Play.configuration.remove("mongo.connectionsPerHost");
+    		plugin.onConfigurationRead();
+    	}
+    	new Car("Toyota", "white", 150).save();
+    	assertEquals(1, Car.count());
+    }
+
+    @Test
+    public void metrics(){
+    	MongoMetrics.reset();
+    	Car myCar = new Car("Toyota", "white", 150);
+    	myCar.save();
+    	new Car("Honda", "red", 140).save();
+    	myCar.topSpeed = 160;
+    	myCar.save();
+    	MongoDB.findById(Car.getCollectionName(), Car.class, myCar.get_id());
+    	assertEquals(2, Car.find().fetch().size());
+    	assertEquals(2, Car.find().streaming().fetch().size());
+    	assertEquals(2, Car.count());
+    	myCar.delete();
+
+    	Map<String, MongoMetrics.Snapshot> byOperation = new HashMap<String, MongoMetrics.Snapshot>();
+    	for (MongoMetrics.Snapshot snapshot : MongoMetrics.snapshot()){
+    		if (snapshot.getCollection().equals("car")){
+    			byOperation.put(snapshot.getOperation(), snapshot);
+    		}
+    	}
+    	assertEquals(2, byOperation.get(MongoMetrics.INSERT).getCount());
+    	assertEquals(1, byOperation.get(MongoMetrics.UPDATE).getCount());
+    	assertEquals(1, byOperation.get(MongoMetrics.FIND_BY_ID).getDocuments());
+    	MongoMetrics.Snapshot find = byOperation.get(MongoMetrics.FIND);
+    	assertEquals(2, find.getCount());
+    	assertEquals(4, find.getDocuments());
+    	assertTrue(find.getBytes() > 0);
+    	assertTrue(find.getPercentileMillis(50) <= find.getPercentileMillis(99));
+    	assertEquals(1, byOperation.get(MongoMetrics.COUNT).getCount());
+    	assertEquals(1, byOperation.get(MongoMetrics.DELETE).getCount());
+    	assertEquals(0, byOperation.get(MongoMetrics.DELETE).getErrors());
+
+    	MongoPlugin plugin = new MongoPlugin();
+    	assertTrue(plugin.getStatus().contains("save-insert"));
+    	assertEquals(6, plugin.getJsonStatus().getAsJsonArray("operations").size());
+    }
+
+    @Test
+    public void slowQueries(){
+    	new Car("Toyota", "white", 150).save();
+    	MongoPlugin plugin = new MongoPlugin();
+    	Play.configuration.setProperty("mongo.slowQuery.threshold", "0");
+    	Play.configuration.setProperty("mongo.slowQuery.explain", "1");
+    	Play.configuration.setProperty("mongo.slowQuery.maxPerMinute", "3");
+    	try {
+    		plugin.onConfigurationRead();
+    		long logged = MongoSlowLog.getLogged();
+    		long skipped = MongoSlowLog.getSkipped();
+    		assertEquals(1, Car.find("byName", "Toyota").order("by-TopSpeed").from(0).fetch(10).size());
+    		assertEquals(1, Car.count("colour = ?1", new Object[]{ "white" }));
+    		assertEquals(logged + 2, MongoSlowLog.getLogged());
+
+    		// a cursor left unread is not a query
+    		Car.find().close();
+    		assertEquals(logged + 2, MongoSlowLog.getLogged());
+
+    		// rate limited
+    		for (int i = 0; i < 3; i++){
+    			Car.count();
+    		}
+    		assertEquals(logged + 3, MongoSlowLog.getLogged());
+    		assertEquals(skipped + 2, MongoSlowLog.getSkipped());
+    	} finally {
+    		Play.configuration.remove("mongo.slowQuery.threshold");
+    		Play.configuration.remove("mongo.slowQuery.explain");
+    		Play.configuration.remove("mongo.slowQuery.maxPerMinute");
+    		plugin.onConfigurationRead();
+    	}
+    	long logged = MongoSlowLog.getLogged();
+    	Car.count();
+    	assertEquals(logged, MongoSlowLog.getLogged());
+    }
+
+    @Test
+    public void registry(){
+    	Car myCar = new Car("Toyota", "white", 150);
+    	myCar.save();
+    	
+    	MongoRegistry.Entry entry = MongoRegistry.of(Car.class);
+    	assertSame(entry, MongoRegistry.of(Car.class));
+    	assertEquals("car", entry.getCollectionName());
+    	assertSame(entry.getCollection(), MongoRegistry.collection("car"));
+    	assertEquals(1, entry.getCollection().getCount());
+    	
+    	Car found = (Car) entry.getFactory().findById(myCar.get_id());
+    	assertEquals("Toyota", found.name);
+    }
+    
     @Test
     public void mongoIndexes(){
     	Car myCar = new Car("Toyota", "white", 150);
@@ -0,0 +1,169 @@
+import java.util.Date;
+
+import org.junit.Test;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+import play.modules.mongo.MongoDB;
+import play.modules.mongo.MongoQuery;
+import play.test.UnitTest;
+
+/**
+ * Checks that the query parser builds the same query objects, and fails
+ * with the same messages, as the previous implementation. LIKE expressions
+ * are translated differently and checked on their own.
+ */
+public class QueryParserTest extends UnitTest {
+
+	private static final String[] QUERIES = {
+		"testInt = 1",
+		"testStr = 'deux'",
+		"testStr = ''",
+		"testStr = 'it\\'s'",
+		"testBool = ?1",
+		"testDate = ?2",
+		"testInt != 1",
+		"testStr <> 'deux'",
+		"testInt > 6",
+		"testInt >= 5",
+		"testInt < -3.5",
+		"testInt <= ?1",
+		"testInt in (1, 2, 3)",
+		"testStr in ('six', 'sept')",
+		"testStr in ('six','sept', 3)",
+		"testInt not in (1, 2, 3)",
+		"testInt IS null",
+		"testStr is not null",
+		"testStr = 'un' and testInt = 1",
+		"(testStr = 'un' and testInt = 1)",
+		"testStr = 'un' and (testInt = 1)",
+		"(testStr = 'un') and (testInt = 1)",
+		"(testStr = 'un') and testInt = 1",
+		"testStr = 'un'  and  testInt = 1 ",
+		"testStr = 'un' or testInt = 2 or testBool is null",
+		"testStr = 'un' and (testInt = 3 or testInt = 1)",
+		"testStr = 'un' or (testInt = 2 and testDate is null)",
+		"(testStr = ?1 and testInt in (1, 2)) or (testInt = ?2 and testBool = ?3)",
+		"x = 'a b c' and y = 'd)e'",
+		"a = 1 and(b = 2)",
+		"a in (1, 2",
+		// malformed queries
+		"",
+		"testInt",
+		"testInt =",
+		"testInt = 1 testStr = 'un'",
+		"testInt = 1 and testStr = 'un' or testBool = ?1",
+		"testInt foo 1",
+		"testInt is foo",
+		"testInt is not foo",
+		"testInt not foo",
+		"testInt = abc",
+		"testInt = ?x",
+		"testInt = ?3",
+		"testInt in (1, x)",
+		"testStr = 'unterminated",
+		"testStr in ('unterminated",
+		"(testInt = 1",
+		"testInt = 1)",
+		"(testInt = 1 testStr = 'un')",
+	};
+
+	private static final Object[] PARAMS = { "un", 2, new Date(0) };
+
+	@Test
+	public void sameAsLegacyParser() {
+		for (String query : QUERIES) {
+			assertEquals(query, parse(query, false), parse(query, true));
+		}
+	}
+
+	@Test
+	public void like() {
+		assertEquals("{ \"testStr\" : { \"$regex\" : \"^abc\"}}", parse("testStr like 'abc%'", false));
+		assertEquals("{ \"testStr\" : { \"$regex\" : \"abc$\"}}", parse("testStr like '%abc'", false));
+		assertEquals("{ \"testStr\" : { \"$regex\" : \"^abc$\"}}", parse("testStr like 'abc'", false));
+		assertEquals("{ \"testStr\" : { \"$regex\" : \"^a.*b.c\"}}", parse("testStr like 'a%b?c%'", false));
+		assertEquals("{ \"testStr\" : { \"$not\" : { \"$regex\" : \"a.c\"}}}", parse("testStr not like '%a?c%'", false));
+		assertEquals("{ \"testStr\" : { \"$regex\" : \"^un$\"}}", parse("testStr like ?1", false));
+	}
+
+	@Test
+	public void ilike() {
+		assertEquals("{ \"testStr\" : { \"$regex\" : \"^abc\" , \"$options\" : \"i\"}}", parse("testStr ilike 'abc%'", false));
+		assertEquals("{ \"testStr\" : { \"$not\" : { \"$regex\" : \"^abc$\" , \"$options\" : \"i\"}}}", parse("testStr not ilike 'abc'", false));
+	}
+
+	@Test
+	public void keysStartingWithLogicalOperators() {
+		// were taken for OR / AND followed by the rest of the key
+		assertEquals(new BasicDBObject("orderId", 1.0), MongoDB.createQueryDbObject("orderId = 1", PARAMS));
+		assertEquals(new BasicDBObject("andrew", "x"), MongoDB.createQueryDbObject("andrew = 'x'", PARAMS));
+	}
+
+	@Test
+	public void nestedBrackets() {
+		assertEquals(new BasicDBObject("a", 1.0), MongoDB.createQueryDbObject("((a = 1))", PARAMS));
+	}
+
+	@Test
+	public void longInList() {
+		StringBuilder lQuery = new StringBuilder("testStr in (");
+		BasicDBList lExpected = new BasicDBList();
+		for (int i = 0; i < 5000; i++) {
+			if (i > 0) {
+				lQuery.append(", ");
+			}
+			lQuery.append("'v").append(i).append("'");
+			lExpected.add("v" + i);
+		}
+		lQuery.append(")");
+
+		DBObject lQueryObject = MongoDB.createQueryDbObject(lQuery.toString(), PARAMS);
+		assertEquals(new BasicDBObject("testStr", new BasicDBObject("$in", lExpected)), lQueryObject);
+	}
+
+	@Test
+	public void updates() {
+		DBObject lUpdate = MongoDB.createUpdateDbObject("inc topSpeed 5, set colour ?1, set name 'it\\'s', unset driver, mul price 1.5", new Object[] { "red" });
+		assertEquals("{ \"$inc\" : { \"topSpeed\" : 5} , \"$set\" : { \"colour\" : \"red\" , \"name\" : \"it's\"} , \"$unset\" : { \"driver\" : \"\"} , \"$mul\" : { \"price\" : 1.5}}", lUpdate.toString());
+		assertEquals(Integer.class, ((DBObject) lUpdate.get("$inc")).get("topSpeed").getClass());
+
+		assertEquals("Unsupported operator at add x 1, in add x 1", parseUpdate("add x 1"));
+		assertEquals("Missing value at , in set x", parseUpdate("set x"));
+		assertEquals("Missing comma at set y 2, in set x 1 set y 2", parseUpdate("set x 1 set y 2"));
+		assertEquals("Duplicate set x, in set x 1, set x 2", parseUpdate("set x 1, set x 2"));
+		assertEquals("Missing parameter number at 2, in set x ?2", parseUpdate("set x ?2"));
+	}
+
+	@Test
+	public void shapes() {
+		DBObject lQuery = MongoDB.createQueryDbObject("byTestStrAndTestInt", new Object[] { "un", 1 });
+		lQuery.put("testInt", new BasicDBObject("$gt", 2));
+		assertEquals("{ \"testStr\" : \"?\" , \"testInt\" : { \"$gt\" : \"?\"}}", MongoQuery.shape(lQuery));
+		String lShape = MongoQuery.shape(MongoDB.createQueryDbObject("(testStr = ?1 and testInt in (1, 2)) or testStr like 'a%'", PARAMS));
+		assertEquals("{ \"$or\" : [ { \"$and\" : [ { \"testStr\" : \"?\"} , { \"testInt\" : { \"$in\" : \"?\"}}]} , { \"testStr\" : \"?\"}]}", lShape);
+		assertEquals(lShape, MongoQuery.shape(MongoDB.createQueryDbObject("(testStr = 'deux' and testInt in (3)) or testStr like '%b'", PARAMS)));
+	}
+
+	private static String parseUpdate(String update) {
+		try {
+			return MongoDB.createUpdateDbObject(update, new Object[] { "a" }).toString();
+		}
+		catch (IllegalArgumentException e) {
+			return e.getMessage();
+		}
+	}
+
+	private static String parse(String query, boolean legacy) {
+		try {
+			DBObject lQueryObject = legacy ? LegacyQueryParser.parseQuery(query, PARAMS) : MongoDB.createQueryDbObject(query, PARAMS);
+			// Pattern does not implement equals, compare the json forms
+			return lQueryObject.toString();
+		}
+		catch (IllegalArgumentException e) {
+			return e.getMessage();
+		}
+	}
+}
@@ -16,6 +16,7 @@ import com.mongodb.MongoClient;
 
 import play.modules.mongo.MongoDB;
 import play.modules.mongo.MongoEntity;
+import play.modules.mongo.MongoQueryCache;
 import play.test.UnitTest;
 
 import models.MongoTestEntity;
@@ -254,6 +255,21 @@ public class TestMongoDB extends UnitTest {
 
 	}
 
+	@Test
+	public void testILike() {
+		List<MongoTestEntity> lL1 = MongoTestEntity.find("testStr ilike 'SIX'").fetch();
+		assertEquals(1, lL1.size());
+		assertEquals("six", lL1.iterator().next().testStr);
+
+		List<MongoTestEntity> lL2 = MongoTestEntity.find("testStr ilike ?1", "Se%").fetch();
+		assertEquals(1, lL2.size());
+		assertEquals("sept", lL2.iterator().next().testStr);
+
+		List<MongoTestEntity> lL3 = MongoTestEntity.find("testStr not ilike '%TR%'").fetch();
+		assertEquals(5, lL3.size());
+		assertEquals("un", lL3.iterator().next().testStr);
+	}
+
 	@Test
 	public void testNotLike() {
 		List<MongoTestEntity> lL1 = MongoTestEntity.find("testStr not like 'six'").fetch();
@@ -349,4 +365,16 @@ public class TestMongoDB extends UnitTest {
 		assertEquals("un", lL2.iterator().next().testStr);
 
 	}
+
+	@Test
+	public void testQueryCache() {
+		List<MongoTestEntity> lL1 = MongoTestEntity.find("testInt > ?1 and testStr != ?2", 1, "six").fetch();
+		assertEquals(4, lL1.size());
+
+		long lHits = MongoQueryCache.hits();
+		List<MongoTestEntity> lL2 = MongoTestEntity.find("testInt > ?1 and testStr != ?2", 5, "six").fetch();
+		assertEquals(1, lL2.size());
+		assertEquals("sept", lL2.iterator().next().testStr);
+		assertEquals(lHits + 1, MongoQueryCache.hits());
+	}
 }
@@ -0,0 +1,140 @@
+package play.modules.mongo;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.bson.types.ObjectId;
+
+/**
+ * Collects the ids of the models needed while rendering a page, and reads
+ * all of them at once when the first one is needed. The models read are
+ * kept, each id is read once.
+ *
+ * {@link #of(Class)} returns the loader of the current request, forgotten
+ * by the plugin when the request ends. A loader is not thread safe.
+ *
+ * @param <T> - the type of the models
+ */
+public class MongoBatchLoader<T extends MongoModel> {
+
+	private static final ThreadLocal<Map<Class<?>, MongoBatchLoader<?>>> current = new ThreadLocal<Map<Class<?>, MongoBatchLoader<?>>>();
+
+	private final Class<T> clazz;
+	private final Set<ObjectId> queued = new LinkedHashSet<ObjectId>();
+	// null for the ids which were not found
+	private final Map<ObjectId, T> loaded = new HashMap<ObjectId, T>();
+
+	public MongoBatchLoader(Class<T> clazz) {
+		this.clazz = clazz;
+	}
+
+	/**
+	 * Returns the loader of a class for the current request.
+	 *
+	 * @param <T> - the type of the models
+	 * @param clazz - the class of the models
+	 * @return - the loader
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T extends MongoModel> MongoBatchLoader<T> of(Class<T> clazz) {
+		Map<Class<?>, MongoBatchLoader<?>> loaders = current.get();
+		if (loaders == null) {
+			loaders = new HashMap<Class<?>, MongoBatchLoader<?>>();
+			current.set(loaders);
+		}
+		MongoBatchLoader<T> loader = (MongoBatchLoader<T>) loaders.get(clazz);
+		if (loader == null) {
+			loader = new MongoBatchLoader<T>(clazz);
+			loaders.put(clazz, loader);
+		}
+		return loader;
+	}
+
+	/**
+	 * Forgets the loaders of the current request.
+	 */
+	static void clear() {
+		current.remove();
+	}
+
+	/**
+	 * Adds an id to read with the next batch.
+	 *
+	 * @param id - the id of a model
+	 * @return - the loader
+	 */
+	public MongoBatchLoader<T> queue(ObjectId id) {
+		if (id != null && !loaded.containsKey(id)) {
+			queued.add(id);
+		}
+		return this;
+	}
+
+	/**
+	 * Adds ids to read with the next batch.
+	 *
+	 * @param ids - the ids of models
+	 * @return - the loader
+	 */
+	public MongoBatchLoader<T> queue(Collection<ObjectId> ids) {
+		for (ObjectId id : ids) {
+			queue(id);
+		}
+		return this;
+	}
+
+	/**
+	 * Returns a model, reading it along with all the queued ids when it was
+	 * not read yet.
+	 *
+	 * @param id - the id of the model
+	 * @return - the model, null when there is none with this id
+	 */
+	public T get(ObjectId id) {
+		if (!loaded.containsKey(id)) {
+			queue(id);
+			load();
+		}
+		return loaded.get(id);
+	}
+
+	/**
+	 * Returns models, reading them along with all the queued ids when they
+	 * were not read yet.
+	 *
+	 * @param ids - the ids of the models
+	 * @return - the models found, in the order of their ids
+	 */
+	public List<T> get(Collection<ObjectId> ids) {
+		queue(ids);
+		load();
+		List<T> models = new ArrayList<T>(ids.size());
+		for (ObjectId id : ids) {
+			T model = loaded.get(id);
+			if (model != null) {
+				models.add(model);
+			}
+		}
+		return models;
+	}
+
+	/**
+	 * Reads the queued ids.
+	 */
+	public void load() {
+		if (queued.isEmpty()) {
+			return;
+		}
+		List<ObjectId> ids = new ArrayList<ObjectId>(queued);
+		queued.clear();
+		Map<ObjectId, T> found = MongoDB.findMapByIds(MongoRegistry.of(clazz).getCollectionName(), clazz, ids);
+		for (ObjectId id : ids) {
+			loaded.put(id, found.get(id));
+		}
+	}
+}
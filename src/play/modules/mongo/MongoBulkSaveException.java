@@ -0,0 +1,60 @@
+package play.modules.mongo;
+
+import java.util.Collections;
+import java.util.List;
+
+import com.mongodb.MongoException;
+
+/**
+ * Thrown by {@link MongoDB#saveAll} when some of the models could not be
+ * saved. The models which were saved have their _id and are up to date,
+ * the new models which were not saved have no _id.
+ */
+public class MongoBulkSaveException extends MongoException {
+
+	private static final long serialVersionUID = 1L;
+
+	private final List<Failure> failures;
+
+	MongoBulkSaveException(List<Failure> failures) {
+		super(failures.size() + " models could not be saved, the first one because of: " + failures.get(0).getMessage());
+		this.failures = Collections.unmodifiableList(failures);
+	}
+
+	/**
+	 * @return - the models which could not be saved, and why
+	 */
+	public List<Failure> getFailures() {
+		return failures;
+	}
+
+	/**
+	 * A model which could not be saved.
+	 */
+	public static class Failure {
+		private final MongoModel model;
+		private final int code;
+		private final String message;
+
+		Failure(MongoModel model, int code, String message) {
+			this.model = model;
+			this.code = code;
+			this.message = message;
+		}
+
+		public MongoModel getModel() {
+			return model;
+		}
+
+		/**
+		 * @return - the error code of the server, -1 for the models left out after a failure of an ordered save
+		 */
+		public int getCode() {
+			return code;
+		}
+
+		public String getMessage() {
+			return message;
+		}
+	}
+}
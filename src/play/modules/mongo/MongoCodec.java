@@ -0,0 +1,794 @@
+package play.modules.mongo;
+
+import java.io.UnsupportedEncodingException;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.AccessibleObject;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.commons.lang.StringUtils;
+import org.bson.types.ObjectId;
+import org.codehaus.jackson.type.JavaType;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+/**
+ * Converts models straight to and from DBObjects, without going through
+ * the intermediate Maps of a Jackson round-trip. The public fields of each
+ * class are looked up once and cached along with a converter for their
+ * type: simple values are copied as they are, nested objects, lists and
+ * maps are converted recursively.
+ *
+ * Getters and setters named after a public field are taken as plain
+ * accessors of the field, as Play generates them. Classes the codec can
+ * not reproduce the Jackson mapping of, because they declare other getters
+ * or setters or use Jackson annotations, and field types it does not know
+ * about, are still converted by {@link MongoMapper}, so both produce the
+ * same documents.
+ */
+public class MongoCodec {
+
+	private static final ConcurrentMap<Class<?>, MongoCodec> codecs = new ConcurrentHashMap<Class<?>, MongoCodec>();
+
+	private static final String JACKSON_PACKAGE = "org.codehaus.jackson";
+
+	private final Class<?> clazz;
+	private final Constructor<?> constructor;
+	private final Property[] properties;
+	private final Map<String, Property> propertiesByName;
+	// the UTF-8 names of the properties, matched by MongoDecoder
+	private final byte[][] nameBytes;
+	private final boolean model;
+	// false when the class is mapped by Jackson
+	private final boolean direct;
+
+	/**
+	 * Converts a model, or any other object, to a DBObject. The _id of
+	 * a model is only written once it has been assigned.
+	 *
+	 * @param object - the object to convert
+	 * @return - the DBObject holding the values of the object
+	 */
+	public static DBObject toDBObject(Object object) {
+		return of(object.getClass()).encode(object);
+	}
+
+	/**
+	 * Creates an instance of a model, or any other class, from a DBObject.
+	 *
+	 * @param <T> - the type to create
+	 * @param dbObject - the DBObject holding the values
+	 * @param clazz - the type to create
+	 * @return - the new instance
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public static <T> T fromDBObject(DBObject dbObject, Class<T> clazz) {
+		if (dbObject instanceof MongoDecoder.ModelObject) {
+			Object model = ((MongoDecoder.ModelObject) dbObject).getModel();
+			if (clazz.isInstance(model)) {
+				return (T) model;
+			}
+		}
+		Object object = of(clazz).decode(dbObject instanceof Map ? (Map) dbObject : dbObject.toMap());
+		if (object instanceof MongoModel) {
+			((MongoModel) object).setSnapshot(dbObject);
+		}
+		return (T) object;
+	}
+
+	/**
+	 * Converts a value bound to an update, of a type not known in advance,
+	 * as it would be stored in a field of its type.
+	 *
+	 * @param value - the value
+	 * @return - the value to store
+	 */
+	@SuppressWarnings("rawtypes")
+	static Object toValue(Object value) {
+		if (value == null || value instanceof String || value instanceof Number || value instanceof Boolean
+				|| value instanceof ObjectId || value instanceof DBObject) {
+			return value;
+		}
+		if (value instanceof Date) {
+			return new Date(((Date) value).getTime());
+		}
+		if (value instanceof Enum) {
+			return ((Enum) value).name();
+		}
+		if (value instanceof Collection) {
+			BasicDBList list = new BasicDBList();
+			for (Object e : (Collection) value) {
+				list.add(toValue(e));
+			}
+			return list;
+		}
+		if (isBean(value.getClass())) {
+			return toDBObject(value);
+		}
+		return MongoMapper.convertValue(value, Object.class);
+	}
+
+	/**
+	 * Returns the codec of a class, creating it on first use.
+	 *
+	 * @param clazz
+	 * @return
+	 */
+	static MongoCodec of(Class<?> clazz) {
+		MongoCodec codec = codecs.get(clazz);
+		if (codec == null) {
+			codec = new MongoCodec(clazz);
+			MongoCodec previous = codecs.putIfAbsent(clazz, codec);
+			if (previous != null) {
+				codec = previous;
+			}
+		}
+		return codec;
+	}
+
+	/**
+	 * Forgets the codecs of all classes, they refer to classes which
+	 * are replaced when the application is reloaded.
+	 */
+	public static void clear() {
+		codecs.clear();
+	}
+
+	/**
+	 * Copies the fields of a model which are not loaded from another instance.
+	 *
+	 * @param from - the instance holding the values
+	 * @param to - the partly loaded model
+	 */
+	static void copyUnloaded(MongoModel from, MongoModel to) {
+		try {
+			for (Class<?> c = to.getClass(); c != Object.class && c != MongoModel.class; c = c.getSuperclass()) {
+				for (Field field : c.getDeclaredFields()) {
+					int modifiers = field.getModifiers();
+					if (!Modifier.isStatic(modifiers) && !Modifier.isTransient(modifiers) && !Modifier.isFinal(modifiers) && !to.isLoaded(field.getName())) {
+						field.setAccessible(true);
+						field.set(to, field.get(from));
+					}
+				}
+			}
+		} catch (IllegalAccessException e) {
+			throw new IllegalArgumentException("Unable to copy " + to.getClass().getName(), e);
+		}
+	}
+
+	private MongoCodec(Class<?> clazz) {
+		this.clazz = clazz;
+		this.model = MongoModel.class.isAssignableFrom(clazz) && hasIdAccessors(clazz);
+
+		Constructor<?> defaultConstructor = null;
+		if (!Modifier.isAbstract(clazz.getModifiers()) && !clazz.isInterface()) {
+			try {
+				defaultConstructor = clazz.getDeclaredConstructor();
+				defaultConstructor.setAccessible(true);
+			} catch (NoSuchMethodException e) {
+				// mapped by Jackson
+			}
+		}
+		this.constructor = defaultConstructor;
+
+		List<Property> fields = new ArrayList<Property>();
+		this.direct = constructor != null && !hasJacksonAnnotation(clazz) && collectFields(clazz, fields) && !hasBeanAccessors(clazz, fields);
+		this.properties = fields.toArray(new Property[fields.size()]);
+		this.propertiesByName = new HashMap<String, Property>();
+		this.nameBytes = new byte[properties.length][];
+		for (int i = 0; i < properties.length; i++) {
+			propertiesByName.put(properties[i].name, properties[i]);
+			try {
+				nameBytes[i] = properties[i].name.getBytes("UTF-8");
+			} catch (UnsupportedEncodingException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+	}
+
+	/**
+	 * @return - true when the fields of the class are set directly,
+	 *           false when it is mapped by Jackson
+	 */
+	boolean isDirect() {
+		return direct;
+	}
+
+	/**
+	 * Creates an empty instance, to be filled with {@link #set}.
+	 *
+	 * @return - the new instance
+	 */
+	Object newInstance() {
+		try {
+			return constructor.newInstance();
+		} catch (Exception e) {
+			throw new IllegalArgumentException("Unable to create " + clazz.getName(), e);
+		}
+	}
+
+	/**
+	 * @return - the UTF-8 encoded names of the fields, in the order of their indexes
+	 */
+	byte[][] getNameBytes() {
+		return nameBytes;
+	}
+
+	/**
+	 * @param index - the index of a field
+	 * @return - the type of the field when it is a class whose fields are
+	 *           set directly as well, null otherwise
+	 */
+	Class<?> getNestedType(int index) {
+		Converter converter = properties[index].converter;
+		if (converter instanceof BeanConverter && of(((BeanConverter) converter).type).isDirect()) {
+			return ((BeanConverter) converter).type;
+		}
+		return null;
+	}
+
+	/**
+	 * Sets one value of a document on an instance.
+	 *
+	 * @param object - the instance
+	 * @param index - the index of the field
+	 * @param value - the value read from the document
+	 */
+	void set(Object object, int index, Object value) {
+		set(object, properties[index], value);
+	}
+
+	/**
+	 * Sets a field to an instance of its own type, without converting it.
+	 *
+	 * @param object - the instance
+	 * @param index - the index of the field
+	 * @param value - the value of the field
+	 */
+	void setDecoded(Object object, int index, Object value) {
+		if (!properties[index].settable) {
+			return;
+		}
+		try {
+			properties[index].field.set(object, value);
+		} catch (IllegalAccessException e) {
+			throw new IllegalArgumentException("Unable to set " + clazz.getName() + "." + properties[index].name, e);
+		}
+	}
+
+	/**
+	 * Sets one value of a document on an instance. The _id of a model
+	 * is set with its accessor.
+	 *
+	 * @param object - the instance
+	 * @param name - the name of the value in the document
+	 * @param value - the value read from the document
+	 * @return - false when the class has no field for the value
+	 */
+	boolean set(Object object, String name, Object value) {
+		Property property = propertiesByName.get(name);
+		if (property == null) {
+			if (model && value instanceof ObjectId && name.equals("_id")) {
+				((MongoModel) object).set_id((ObjectId) value);
+				return true;
+			}
+			return false;
+		}
+		set(object, property, value);
+		return true;
+	}
+
+	private void set(Object object, Property property, Object value) {
+		if (property.settable) {
+			try {
+				if (value != null) {
+					property.field.set(object, property.converter.decode(value));
+				}
+				else if (!property.field.getType().isPrimitive()) {
+					property.field.set(object, null);
+				}
+			} catch (IllegalAccessException e) {
+				throw new IllegalArgumentException("Unable to set " + clazz.getName() + "." + property.name, e);
+			}
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private DBObject encode(Object object) {
+		if (!direct) {
+			DBObject dbObject = new BasicDBObject(MongoMapper.convertValue(object, Map.class));
+			// Jackson writes the ObjectId as a bean
+			dbObject.removeField("_id");
+			if (model && ((MongoModel) object).get_id() != null) {
+				dbObject.put("_id", ((MongoModel) object).get_id());
+			}
+			return dbObject;
+		}
+
+		BasicDBObject dbObject = new BasicDBObject();
+		if (model && ((MongoModel) object).get_id() != null) {
+			dbObject.put("_id", ((MongoModel) object).get_id());
+		}
+		try {
+			for (Property property : properties) {
+				Object value = property.field.get(object);
+				dbObject.put(property.name, value == null ? null : property.converter.encode(value));
+			}
+		} catch (IllegalAccessException e) {
+			throw new IllegalArgumentException("Unable to read " + clazz.getName(), e);
+		}
+		return dbObject;
+	}
+
+	@SuppressWarnings("rawtypes")
+	private Object decode(Map values) {
+		Object id = values.get("_id");
+		Object object;
+		if (!direct) {
+			Map map = new LinkedHashMap(values);
+			if (model) {
+				map.remove("_id");
+			}
+			object = MongoMapper.convertValue(map, clazz);
+		}
+		else {
+			object = newInstance();
+			for (Property property : properties) {
+				if (values.containsKey(property.name)) {
+					set(object, property, values.get(property.name));
+				}
+			}
+		}
+
+		if (model && id instanceof ObjectId) {
+			((MongoModel) object).set_id((ObjectId) id);
+		}
+		return object;
+	}
+
+	/**
+	 * Collects the public instance fields of a class and its super classes,
+	 * in the order Jackson writes them.
+	 *
+	 * @return - false when a field can not be mapped directly
+	 */
+	private static boolean collectFields(Class<?> clazz, List<Property> fields) {
+		if (clazz == Object.class || clazz == MongoModel.class) {
+			return true;
+		}
+		if (!collectFields(clazz.getSuperclass(), fields)) {
+			return false;
+		}
+		for (Field field : clazz.getDeclaredFields()) {
+			int modifiers = field.getModifiers();
+			if (!Modifier.isPublic(modifiers) || Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers) || field.isSynthetic()) {
+				continue;
+			}
+			if (hasJacksonAnnotation(field)) {
+				return false;
+			}
+			field.setAccessible(true);
+			fields.add(new Property(field));
+		}
+		return true;
+	}
+
+	/**
+	 * Jackson maps getters and setters rather than fields, except the
+	 * ones of the public fields, which Play generates, and the _id accessors.
+	 */
+	private static boolean hasBeanAccessors(Class<?> clazz, List<Property> fields) {
+		Set<String> accessors = new HashSet<String>();
+		for (Property property : fields) {
+			String name = StringUtils.capitalize(property.name);
+			accessors.add("get" + name);
+			accessors.add("is" + name);
+			accessors.add("set" + name);
+		}
+		
+		for (Class<?> c = clazz; c != Object.class && c != MongoModel.class; c = c.getSuperclass()) {
+			for (Method method : c.getDeclaredMethods()) {
+				int modifiers = method.getModifiers();
+				if (!Modifier.isPublic(modifiers) || Modifier.isStatic(modifiers) || method.isSynthetic() || method.isBridge()) {
+					continue;
+				}
+				if (hasJacksonAnnotation(method)) {
+					return true;
+				}
+				String name = method.getName();
+				if (name.equals("get_id") || name.equals("set_id") || accessors.contains(name)) {
+					continue;
+				}
+				int parameters = method.getParameterTypes().length;
+				boolean getter = parameters == 0 && method.getReturnType() != void.class
+						&& ((name.startsWith("get") && name.length() > 3) || (name.startsWith("is") && name.length() > 2 && method.getReturnType() == boolean.class));
+				boolean setter = parameters == 1 && name.startsWith("set") && name.length() > 3;
+				if (getter || setter) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	private static boolean hasIdAccessors(Class<?> clazz) {
+		try {
+			return clazz.getMethod("get_id").getDeclaringClass() != MongoModel.class;
+		} catch (NoSuchMethodException e) {
+			return false;
+		}
+	}
+
+	private static boolean hasJacksonAnnotation(Class<?> clazz) {
+		for (Class<?> c = clazz; c != null && c != Object.class; c = c.getSuperclass()) {
+			if (hasJacksonAnnotation(c.getDeclaredAnnotations())) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static boolean hasJacksonAnnotation(AccessibleObject member) {
+		return hasJacksonAnnotation(member.getDeclaredAnnotations());
+	}
+
+	private static boolean hasJacksonAnnotation(Annotation[] annotations) {
+		for (Annotation annotation : annotations) {
+			if (annotation.annotationType().getName().startsWith(JACKSON_PACKAGE)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the converter of a declared type.
+	 *
+	 * @param type - the generic type of a field or of an element
+	 * @return
+	 */
+	private static Converter converter(Type type) {
+		if (type instanceof Class) {
+			Class<?> c = (Class<?>) type;
+			if (c == Object.class) {
+				return new ObjectConverter();
+			}
+			if (c.isPrimitive() || c == String.class || c == Boolean.class || c == ObjectId.class || NumberConverter.isNumber(c)) {
+				return new SimpleConverter(c);
+			}
+			if (c == Date.class) {
+				return new DateConverter(type);
+			}
+			if (c.isEnum() && !hasJacksonAnnotation(c)) {
+				return new EnumConverter(c);
+			}
+			if (isBean(c)) {
+				return new BeanConverter(c);
+			}
+		}
+		else if (type instanceof ParameterizedType) {
+			ParameterizedType parameterized = (ParameterizedType) type;
+			Type raw = parameterized.getRawType();
+			Type[] arguments = parameterized.getActualTypeArguments();
+			if (raw == List.class || raw == Collection.class || raw == ArrayList.class) {
+				return new CollectionConverter(converter(arguments[0]), false);
+			}
+			if (raw == Set.class || raw == HashSet.class) {
+				return new CollectionConverter(converter(arguments[0]), true);
+			}
+			if ((raw == Map.class || raw == LinkedHashMap.class || raw == HashMap.class) && arguments[0] == String.class) {
+				return new MapConverter(converter(arguments[1]), raw == HashMap.class);
+			}
+		}
+		return new JacksonConverter(type);
+	}
+
+	private static boolean isBean(Class<?> c) {
+		if (c.isInterface() || c.isArray() || Modifier.isAbstract(c.getModifiers())) {
+			return false;
+		}
+		String name = c.getName();
+		if (name.startsWith("java.") || name.startsWith("javax.") || name.startsWith("com.mongodb.") || name.startsWith("org.bson.")) {
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * A public field and the converter of its type.
+	 */
+	private static class Property {
+		final Field field;
+		final String name;
+		final boolean settable;
+		final Converter converter;
+
+		Property(Field field) {
+			this.field = field;
+			this.name = field.getName();
+			this.settable = !Modifier.isFinal(field.getModifiers());
+			this.converter = converter(field.getGenericType());
+		}
+	}
+
+	/**
+	 * Converts the values of one type, values are never null.
+	 */
+	private static abstract class Converter {
+		abstract Object encode(Object value);
+
+		abstract Object decode(Object value);
+	}
+
+	private static class SimpleConverter extends Converter {
+		private final Class<?> type;
+
+		SimpleConverter(Class<?> type) {
+			this.type = NumberConverter.wrapper(type);
+		}
+
+		Object encode(Object value) {
+			return value;
+		}
+
+		Object decode(Object value) {
+			if (type.isInstance(value)) {
+				return value;
+			}
+			if (value instanceof Number && NumberConverter.isNumber(type)) {
+				return NumberConverter.convert((Number) value, type);
+			}
+			return MongoMapper.convertValue(value, type);
+		}
+	}
+
+	private static class NumberConverter {
+		static boolean isNumber(Class<?> c) {
+			c = wrapper(c);
+			return c == Integer.class || c == Long.class || c == Double.class || c == Float.class || c == Short.class || c == Byte.class;
+		}
+
+		static Class<?> wrapper(Class<?> c) {
+			if (!c.isPrimitive()) {
+				return c;
+			}
+			if (c == int.class) {
+				return Integer.class;
+			}
+			if (c == long.class) {
+				return Long.class;
+			}
+			if (c == double.class) {
+				return Double.class;
+			}
+			if (c == float.class) {
+				return Float.class;
+			}
+			if (c == boolean.class) {
+				return Boolean.class;
+			}
+			if (c == short.class) {
+				return Short.class;
+			}
+			if (c == byte.class) {
+				return Byte.class;
+			}
+			return Character.class;
+		}
+
+		static Object convert(Number value, Class<?> type) {
+			if (type == Integer.class) {
+				return value.intValue();
+			}
+			if (type == Long.class) {
+				return value.longValue();
+			}
+			if (type == Double.class) {
+				return value.doubleValue();
+			}
+			if (type == Float.class) {
+				return value.floatValue();
+			}
+			if (type == Short.class) {
+				return value.shortValue();
+			}
+			return value.byteValue();
+		}
+	}
+
+	private static class DateConverter extends Converter {
+		private final Type type;
+
+		DateConverter(Type type) {
+			this.type = type;
+		}
+
+		Object encode(Object value) {
+			// dates are mutable, the document kept by a model must not change with it
+			return value == null ? null : new Date(((Date) value).getTime());
+		}
+
+		Object decode(Object value) {
+			if (value instanceof Date) {
+				return new Date(((Date) value).getTime());
+			}
+			if (value instanceof Number) {
+				return new Date(((Number) value).longValue());
+			}
+			return MongoMapper.convertValue(value, MongoMapper.constructType(type));
+		}
+	}
+
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	private static class EnumConverter extends Converter {
+		private final Class type;
+
+		EnumConverter(Class type) {
+			this.type = type;
+		}
+
+		Object encode(Object value) {
+			return ((Enum) value).name();
+		}
+
+		Object decode(Object value) {
+			if (value instanceof String) {
+				return Enum.valueOf(type, (String) value);
+			}
+			return MongoMapper.convertValue(value, type);
+		}
+	}
+
+	@SuppressWarnings("rawtypes")
+	private static class BeanConverter extends Converter {
+		private final Class<?> type;
+
+		BeanConverter(Class<?> type) {
+			this.type = type;
+		}
+
+		Object encode(Object value) {
+			// the codec is looked up when used, a class may refer to itself
+			return of(value.getClass()).encode(value);
+		}
+
+		Object decode(Object value) {
+			if (value instanceof Map) {
+				return of(type).decode((Map) value);
+			}
+			return MongoMapper.convertValue(value, type);
+		}
+	}
+
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	private static class CollectionConverter extends Converter {
+		private final Converter element;
+		private final boolean set;
+
+		CollectionConverter(Converter element, boolean set) {
+			this.element = element;
+			this.set = set;
+		}
+
+		Object encode(Object value) {
+			BasicDBList list = new BasicDBList();
+			for (Object e : (Collection) value) {
+				list.add(e == null ? null : element.encode(e));
+			}
+			return list;
+		}
+
+		Object decode(Object value) {
+			Collection values = (Collection) value;
+			Collection collection = set ? new HashSet(values.size() * 2) : new ArrayList(values.size());
+			for (Object e : values) {
+				collection.add(e == null ? null : element.decode(e));
+			}
+			return collection;
+		}
+	}
+
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	private static class MapConverter extends Converter {
+		private final Converter value;
+		private final boolean hash;
+
+		MapConverter(Converter value, boolean hash) {
+			this.value = value;
+			this.hash = hash;
+		}
+
+		Object encode(Object map) {
+			BasicDBObject dbObject = new BasicDBObject();
+			for (Map.Entry e : ((Map<?, ?>) map).entrySet()) {
+				dbObject.put((String) e.getKey(), e.getValue() == null ? null : value.encode(e.getValue()));
+			}
+			return dbObject;
+		}
+
+		Object decode(Object dbObject) {
+			Map<?, ?> values = (Map) dbObject;
+			Map map = hash ? new HashMap(values.size() * 2) : new LinkedHashMap(values.size() * 2);
+			for (Map.Entry e : values.entrySet()) {
+				map.put(e.getKey(), e.getValue() == null ? null : value.decode(e.getValue()));
+			}
+			return map;
+		}
+	}
+
+	/**
+	 * Fields declared as Object keep the values of the document.
+	 */
+	private static class ObjectConverter extends Converter {
+		Object encode(Object value) {
+			if (value instanceof String || value instanceof Number || value instanceof Boolean || value instanceof Date || value instanceof ObjectId) {
+				return value;
+			}
+			return MongoMapper.convertValue(value, Object.class);
+		}
+
+		Object decode(Object value) {
+			// the document kept by the model must not change with the field
+			return copy(value);
+		}
+
+		@SuppressWarnings({ "rawtypes", "unchecked" })
+		private static Object copy(Object value) {
+			if (value instanceof Date) {
+				return new Date(((Date) value).getTime());
+			}
+			if (value instanceof List) {
+				List copy = value instanceof BasicDBList ? new BasicDBList() : new ArrayList(((List) value).size());
+				for (Object e : (List) value) {
+					copy.add(copy(e));
+				}
+				return copy;
+			}
+			if (value instanceof DBObject) {
+				DBObject dbObject = (DBObject) value;
+				DBObject copy = new BasicDBObject();
+				for (String key : dbObject.keySet()) {
+					copy.put(key, copy(dbObject.get(key)));
+				}
+				return copy;
+			}
+			return value;
+		}
+	}
+
+	/**
+	 * Types the codec does not know about are converted by Jackson.
+	 */
+	private static class JacksonConverter extends Converter {
+		private final JavaType type;
+
+		JacksonConverter(Type type) {
+			this.type = MongoMapper.constructType(type);
+		}
+
+		Object encode(Object value) {
+			return MongoMapper.convertValue(value, Object.class);
+		}
+
+		Object decode(Object value) {
+			return MongoMapper.convertValue(value, type);
+		}
+	}
+}
@@ -0,0 +1,393 @@
+package play.modules.mongo;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import play.Logger;
+import play.Play;
+
+import com.mongodb.DB;
+import com.mongodb.MongoClient;
+import com.mongodb.MongoClientOptions;
+import com.mongodb.MongoException;
+import com.mongodb.MongoSocketException;
+import com.mongodb.MongoTimeoutException;
+import com.mongodb.ServerAddress;
+
+/**
+ * The client connected to the database, published to all the threads at
+ * once and replaced as a whole.
+ *
+ * When the network fails, the next call to {@link #db()} connects a new
+ * client and checks it reaches the servers, only one thread at a time; the
+ * other threads keep using the current client meanwhile. The replaced
+ * client is closed {@value #RETIRE_DELAY} ms later, once the operations and
+ * cursors still using it are done.
+ *
+ * When the new client cannot reach the servers either, the attempts are
+ * spaced out, twice as long each time up to {@value #MAX_BACKOFF} ms, and
+ * the calls in between fail at once instead of waiting for the servers: a
+ * failover does not turn into a storm of connections.
+ */
+class MongoConnection {
+
+	static final long INITIAL_BACKOFF = 100;
+	static final long MAX_BACKOFF = 30000;
+	static final long RETIRE_DELAY = 60000;
+
+	private static volatile MongoConnection current;
+
+	// held by the thread connecting a client
+	private static final ReentrantLock connecting = new ReentrantLock();
+
+	// a failure was reported, the next use connects a new client
+	private static volatile boolean reconnect;
+
+	// the breaker, 0 when the servers are reachable, else when the next client may be connected
+	private static volatile long retryAt;
+	private static int failures;
+	private static long lastFailure;
+	private static MongoException lastError;
+
+	// the replaced clients, closed after a delay
+	private static final List<MongoClient> retired = new ArrayList<MongoClient>();
+	private static ScheduledExecutorService retirer;
+
+	private final Settings settings;
+	private final MongoClient client;
+	private final DB db;
+
+	private MongoConnection(Settings settings, MongoClient client, DB db) {
+		this.settings = settings;
+		this.client = client;
+		this.db = db;
+	}
+
+	/**
+	 * Returns the database, connecting to it when there is no client yet or
+	 * when the network failed.
+	 *
+	 * @return - the database
+	 * @throws MongoException - when the servers cannot be reached
+	 */
+	static DB db() {
+		MongoConnection connection = current;
+		if (connection != null && retryAt == 0) {
+			if (reconnect) {
+				return reconnect();
+			}
+			return connection.db;
+		}
+		return connect();
+	}
+
+	/**
+	 * Connects a new client after a failure was reported, unless another
+	 * thread is already doing it: the current client is used meanwhile.
+	 * Trips the breaker when the new client cannot reach the servers.
+	 */
+	private static DB reconnect() {
+		if (!connecting.tryLock()) {
+			return current.db;
+		}
+		try {
+			if (reconnect) {
+				MongoConnection opened;
+				try {
+					opened = open(new Settings(Play.configuration), true);
+				} catch (MongoException e) {
+					retry(e);
+					throw e;
+				}
+				replace(opened);
+				Logger.info("reconnected to MongoDB");
+			}
+			return current.db;
+		} finally {
+			connecting.unlock();
+		}
+	}
+
+	private static DB connect() {
+		if (current == null) {
+			// the first connection, everyone waits for it
+			connecting.lock();
+		}
+		else if (!connecting.tryLock()) {
+			MongoConnection connection = current;
+			if (retryAt == 0) {
+				// just connected
+				return connection.db;
+			}
+			throw unavailable("another thread is connecting");
+		}
+		try {
+			MongoConnection connection = current;
+			boolean check = connection != null;
+			if (check) {
+				if (retryAt == 0) {
+					// connected meanwhile
+					return connection.db;
+				}
+				long wait = retryAt - System.currentTimeMillis();
+				if (wait > 0) {
+					throw unavailable("next attempt in " + wait + " ms");
+				}
+			}
+			MongoConnection opened;
+			try {
+				opened = open(new Settings(Play.configuration), check);
+			} catch (MongoException e) {
+				retry(e);
+				throw e;
+			}
+			replace(opened);
+			if (check) {
+				Logger.info("reconnected to MongoDB");
+			}
+			return opened.db;
+		} finally {
+			connecting.unlock();
+		}
+	}
+
+	/**
+	 * Connects a new client with the configuration, retiring the current one.
+	 */
+	static void reset() {
+		connecting.lock();
+		try {
+			replace(open(new Settings(Play.configuration), false));
+			synchronized (MongoConnection.class) {
+				failures = 0;
+			}
+		} finally {
+			connecting.unlock();
+		}
+	}
+
+	/**
+	 * Connects with the configuration, unless the current client was
+	 * connected with the same settings: in dev mode the application is
+	 * reloaded and its configuration read again on every change.
+	 */
+	static void configure() {
+		connecting.lock();
+		try {
+			Settings settings = new Settings(Play.configuration);
+			MongoConnection connection = current;
+			if (connection != null && connection.settings.equals(settings)) {
+				Logger.debug("MongoDB configuration unchanged, the connection is kept");
+				return;
+			}
+			replace(open(settings, false));
+			synchronized (MongoConnection.class) {
+				failures = 0;
+			}
+		} finally {
+			connecting.unlock();
+		}
+	}
+
+	/**
+	 * Closes the client and the replaced ones not closed yet, when the
+	 * application stops. The next call to {@link #db()} connects again.
+	 */
+	static void close() {
+		connecting.lock();
+		try {
+			MongoConnection connection = current;
+			current = null;
+			if (connection != null) {
+				connection.client.close();
+			}
+			synchronized (retired) {
+				for (MongoClient client : retired) {
+					client.close();
+				}
+				retired.clear();
+				if (retirer != null) {
+					retirer.shutdownNow();
+					retirer = null;
+				}
+			}
+		} finally {
+			connecting.unlock();
+		}
+	}
+
+	/**
+	 * Reports a failure of the network, the next call to {@link #db()}
+	 * connects a new client. The failures reported until then count as one.
+	 *
+	 * @param e - the failure
+	 */
+	static void failed(MongoException e) {
+		synchronized (MongoConnection.class) {
+			if (retryAt == 0 && !reconnect) {
+				lastError = e;
+				reconnect = true;
+				Logger.warn("MongoDB connection failed (%s), reconnecting on next use", e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Trips the breaker after a new client could not reach the servers, and
+	 * sets when the next one may be connected.
+	 */
+	private static synchronized void retry(MongoException e) {
+		long now = System.currentTimeMillis();
+		if (now - lastFailure > MAX_BACKOFF) {
+			// the previous failures are over
+			failures = 0;
+		}
+		failures++;
+		lastFailure = now;
+		lastError = e;
+		reconnect = false;
+		retryAt = now + Math.min(MAX_BACKOFF, INITIAL_BACKOFF << Math.min(failures - 1, 20));
+		Logger.warn("MongoDB connection failed (%s), attempt %d to reconnect in %d ms", e.getMessage(), failures, retryAt - now);
+	}
+
+	/**
+	 * Tells whether a failure, or one of its causes, is a failure to reach
+	 * the servers.
+	 *
+	 * @param e - the failure
+	 * @return - the failure of the network, null when there is none
+	 */
+	static MongoException networkFailure(Throwable e) {
+		for (Throwable t = e; t != null; t = t.getCause()) {
+			if (t instanceof MongoSocketException || t instanceof MongoTimeoutException) {
+				return (MongoException) t;
+			}
+			if (t.getCause() == t) {
+				break;
+			}
+		}
+		return null;
+	}
+
+	private static void replace(MongoConnection opened) {
+		MongoConnection previous = current;
+		current = opened;
+		synchronized (MongoConnection.class) {
+			retryAt = 0;
+			reconnect = false;
+			lastError = null;
+		}
+		if (previous != null) {
+			retire(previous.client);
+		}
+	}
+
+	/**
+	 * Closes a replaced client later, the other threads may still be
+	 * running operations or reading cursors with it.
+	 */
+	private static void retire(final MongoClient client) {
+		synchronized (retired) {
+			retired.add(client);
+			if (retirer == null) {
+				retirer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+					public Thread newThread(Runnable runnable) {
+						Thread thread = new Thread(runnable, "mongo-retire");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+			}
+			retirer.schedule(new Runnable() {
+				public void run() {
+					boolean open;
+					synchronized (retired) {
+						open = retired.remove(client);
+					}
+					if (open) {
+						client.close();
+					}
+				}
+			}, RETIRE_DELAY, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	private static MongoException unavailable(String reason) {
+		MongoException cause;
+		synchronized (MongoConnection.class) {
+			cause = lastError;
+		}
+		return new MongoException("MongoDB is unavailable, " + reason, cause);
+	}
+
+	/**
+	 * Connects a client.
+	 *
+	 * @param settings - the settings read from the configuration
+	 * @param check - true to check the servers can be reached
+	 * @return - the connection
+	 */
+	private static MongoConnection open(Settings settings, boolean check) {
+		Logger.info("initializing DB " + settings.seeds + "[" + settings.dbname + "]");
+
+		// a single server is connected to directly
+		MongoClient client = settings.seeds.size() == 1 ? new MongoClient(settings.seeds.get(0), settings.options) : new MongoClient(settings.seeds, settings.options);
+		try {
+			DB db = client.getDB(settings.dbname);
+			if (settings.username != null && settings.password != null) {
+				db.authenticate(settings.username, settings.password.toCharArray());
+			}
+			if (check) {
+				db.command("ping").throwOnError();
+			}
+			return new MongoConnection(settings, client, db);
+		} catch (RuntimeException e) {
+			client.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * The settings of the configuration a client is connected with.
+	 */
+	private static class Settings {
+		private final List<ServerAddress> seeds;
+		private final MongoClientOptions options;
+		private final String dbname;
+		private final String username;
+		private final String password;
+
+		Settings(Properties configuration) {
+			seeds = MongoOptions.seeds(configuration);
+			options = MongoOptions.options(configuration);
+			dbname = configuration.getProperty("mongo.database", "play." + configuration.getProperty("application.name"));
+			username = configuration.getProperty("mongo.username");
+			password = configuration.getProperty("mongo.password");
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Settings)) {
+				return false;
+			}
+			Settings other = (Settings) o;
+			return seeds.equals(other.seeds) && options.equals(other.options) && dbname.equals(other.dbname)
+				&& equal(username, other.username) && equal(password, other.password);
+		}
+
+		@Override
+		public int hashCode() {
+			return seeds.hashCode() * 31 + dbname.hashCode();
+		}
+
+		private static boolean equal(String a, String b) {
+			return a == null ? b == null : a.equals(b);
+		}
+	}
+}
@@ -1,13 +1,24 @@
 package play.modules.mongo;
 
+import java.io.Closeable;
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
-
-import org.bson.types.ObjectId;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
 import com.mongodb.DBCursor;
 import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+import com.mongodb.ReadPreference;
 
 
 /**
@@ -15,12 +26,36 @@ import com.mongodb.DBObject;
  * 
  * @author Andrew Louth
  */
-public class MongoCursor {
+public class MongoCursor implements Iterable<MongoModel>, Closeable {
 	
 	public DBCursor cursor;
 	@SuppressWarnings("rawtypes")
 	public Class clazz;
 	
+	// the top level fields of the projection, shared by the fetched models
+	private Set<String> projectedFields;
+	private boolean projectionExcludes;
+	private boolean lazy;
+	
+	// the sort given to order(), for the pages of fetchPage()
+	private DBObject order;
+	
+	// what the DBCursor does not tell, for the slow query log
+	private String queryString;
+	private Object[] params;
+	private DBObject sort;
+	private int skip;
+	
+	// the number of batches read ahead, 0 to read on the calling thread
+	private int readAheadBatches;
+	private ReadAhead readAhead;
+	
+	// the time spent reading the documents and their number, recorded once by MongoMetrics
+	private boolean read;
+	private long readNanos;
+	private long readDocuments;
+	private boolean recorded;
+	
 	/**
 	 * Constructor
 	 * 
@@ -50,31 +85,228 @@ public class MongoCursor {
 		}
 		
 		if (page > 1){
-			cursor.skip((page-1)*length);
+			skip = (page-1)*length;
+			cursor.skip(skip);
 		}
 		
-		while(cursor.hasNext()){
-			
-			DBObject dbObject = cursor.next();
-			Map map = dbObject.toMap();
-	
-			try {
-				ObjectId id = (ObjectId)map.remove("_id");
-				T model = (T) MongoMapper.convertValue(map, clazz);
-				model.set_id(id);
+		boolean fetched = false;
+		try {
+			while(hasNextDocument()){
 				
-				resultList.add(model);
-				
-			} catch (IllegalArgumentException e) {
-				e.printStackTrace();
-			} catch (SecurityException e) {
-				e.printStackTrace();
-			} 
+				DBObject dbObject = nextDocument();
+		
+				try {
+					resultList.add((T) toModel(dbObject));
+					
+				} catch (IllegalArgumentException e) {
+					e.printStackTrace();
+				} catch (SecurityException e) {
+					e.printStackTrace();
+				} 
+			}
+			fetched = true;
+		} finally {
+			if (!fetched){
+				// stops the reading ahead and releases the cursor on the server
+				close();
+			}
 		}
 
 		return resultList;
 	}
 	
+	private MongoModel toModel(DBObject dbObject){
+		MongoModel model = (MongoModel) MongoCodec.fromDBObject(dbObject, clazz);
+		if (projectedFields != null) {
+			model.setProjection(projectedFields, projectionExcludes, lazy);
+		}
+		return model;
+	}
+	
+	/**
+	 * Iterates over the models, which are read from the server one batch at
+	 * a time instead of all at once as by {@link #fetch()}. Close the cursor
+	 * when leaving the loop early.
+	 * 
+	 * @return - an iterator over the models
+	 */
+	public Iterator<MongoModel> iterator(){
+		return new Iterator<MongoModel>() {
+			public boolean hasNext() {
+				return hasNextDocument();
+			}
+			
+			public MongoModel next() {
+				return toModel(nextDocument());
+			}
+			
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+	
+	/**
+	 * Calls back for each model, reading them from the server one batch at
+	 * a time. The cursor is closed afterwards, even when the callback throws.
+	 * 
+	 * @param <T> - the specific type of MongoModel
+	 * @param callback - called with each model
+	 * @return - the number of models
+	 */
+	@SuppressWarnings("unchecked")
+	public <T extends MongoModel> long each(Callback<T> callback){
+		long count = 0;
+		try {
+			while (hasNextDocument()){
+				callback.call((T) toModel(nextDocument()));
+				count++;
+			}
+		} finally {
+			close();
+		}
+		return count;
+	}
+	
+	/**
+	 * Sets the number of documents read from the server at once.
+	 * 
+	 * @param batchSize - the number of documents of a batch
+	 * @return - the cursor
+	 */
+	public MongoCursor batchSize(int batchSize){
+		cursor.batchSize(batchSize);
+		return this;
+	}
+	
+	/**
+	 * Sets the members of a replica set the documents are read from,
+	 * instead of the read preference of the collection.
+	 * 
+	 * @param readPreference - the read preference, for example ReadPreference.secondaryPreferred()
+	 * @return - the cursor
+	 */
+	public MongoCursor readPreference(ReadPreference readPreference){
+		cursor.setReadPreference(readPreference);
+		return this;
+	}
+	
+	/**
+	 * Reads the documents on another thread while the models of the previous
+	 * ones are built and used, so that waiting for the next batch from the
+	 * server and building the models overlap. At most the given number of
+	 * batches are read ahead of the caller. Closing the cursor stops the
+	 * reading.
+	 * 
+	 * @param batches - the number of batches read ahead
+	 * @return - the cursor
+	 */
+	public MongoCursor readAhead(int batches){
+		if (batches < 1){
+			throw new IllegalArgumentException("At least one batch must be read ahead");
+		}
+		readAheadBatches = batches;
+		return this;
+	}
+	
+	/**
+	 * Reads two batches ahead, see {@link #readAhead(int)}.
+	 * 
+	 * @return - the cursor
+	 */
+	public MongoCursor readAhead(){
+		return readAhead(2);
+	}
+	
+	/**
+	 * Releases the cursor on the server.
+	 */
+	public void close(){
+		record(false);
+		if (readAhead != null){
+			readAhead.close();
+		}
+		else{
+			cursor.close();
+		}
+	}
+	
+	private boolean hasNextDocument(){
+		read = true;
+		long start = System.nanoTime();
+		try {
+			if (readAheadBatches != 0 && readAhead == null){
+				// started on first use, once the limit and skip are set
+				try {
+					readAhead = new ReadAhead(cursor, readAheadBatches);
+				} catch (RejectedExecutionException e) {
+					// all the workers are busy, read on the calling thread
+					readAheadBatches = 0;
+				}
+			}
+			boolean hasNext = readAheadBatches == 0 ? cursor.hasNext() : readAhead.hasNext();
+			readNanos += System.nanoTime() - start;
+			if (!hasNext){
+				record(false);
+			}
+			return hasNext;
+		} catch (RuntimeException e) {
+			readNanos += System.nanoTime() - start;
+			record(true);
+			throw e;
+		}
+	}
+	
+	private DBObject nextDocument(){
+		if (readAheadBatches != 0 && !hasNextDocument()){
+			throw new NoSuchElementException();
+		}
+		read = true;
+		long start = System.nanoTime();
+		try {
+			DBObject dbObject = readAheadBatches == 0 ? cursor.next() : readAhead.next();
+			readNanos += System.nanoTime() - start;
+			readDocuments++;
+			return dbObject;
+		} catch (RuntimeException e) {
+			readNanos += System.nanoTime() - start;
+			record(true);
+			throw e;
+		}
+	}
+	
+	/**
+	 * Records the reading of the documents as one find operation, once the
+	 * cursor is exhausted, closed or failed.
+	 */
+	private void record(boolean failed){
+		if (recorded || !read){
+			return;
+		}
+		recorded = true;
+		String collectionName = cursor.getCollection().getName();
+		long start = System.nanoTime() - readNanos;
+		if (failed){
+			MongoMetrics.failed(collectionName, MongoMetrics.FIND, start);
+		}
+		else{
+			MongoMetrics.record(collectionName, MongoMetrics.FIND, start, readDocuments);
+			if (MongoSlowLog.isSlow(readNanos)){
+				MongoSlowLog.find(cursor, queryString, params, sort, skip, readNanos, readDocuments);
+			}
+		}
+	}
+	
+	/**
+	 * Keeps the query string the cursor was created with, for the slow
+	 * query log.
+	 */
+	MongoCursor queryString(String queryString, Object[] params){
+		this.queryString = queryString;
+		this.params = params;
+		return this;
+	}
+	
 	/**
 	 * Retrieves a list of MongoModels.
 	 * 
@@ -100,11 +332,89 @@ public class MongoCursor {
 	/**
 	 * Return the first model in 
 	 * @param <T> - the specific MongoModel type
-	 * @return - one instance of a MongoModel
+	 * @return - one instance of a MongoModel, null when there is none
 	 */
-	@SuppressWarnings("unchecked")
 	public <T extends MongoModel> T first(){
-		return (T)fetch(1,1).get(0);
+		List<T> models = fetch(1,1);
+		return models.isEmpty() ? null : models.get(0);
+	}
+	
+	/**
+	 * Decodes the documents straight into models while they are read,
+	 * without building a DBObject for each of them first. Worth it for
+	 * large results, see {@link MongoDecoder}.
+	 * 
+	 * @return - the cursor
+	 */
+	public MongoCursor streaming(){
+		cursor.setDecoderFactory(MongoDecoder.factory(clazz));
+		return this;
+	}
+	
+	/**
+	 * Only reads the given fields of the documents, and their _id. Embedded
+	 * fields are selected with dotted paths. The other fields of the models
+	 * keep their default values, see {@link MongoModel#isLoaded(String)}.
+	 * 
+	 * @param fields - the comma separated names of the fields
+	 * @return - the cursor
+	 */
+	public MongoCursor select(String fields){
+		return project(fields, false);
+	}
+	
+	/**
+	 * Reads the documents without the given fields. The fields of the models
+	 * keep their default values, see {@link MongoModel#isLoaded(String)}.
+	 * 
+	 * @param fields - the comma separated names of the fields
+	 * @return - the cursor
+	 */
+	public MongoCursor exclude(String fields){
+		return project(fields, true);
+	}
+	
+	/**
+	 * Loads the rest of the documents of a projection when the getter of a
+	 * field which was not read is first called.
+	 * 
+	 * @return - the cursor
+	 */
+	public MongoCursor lazy(){
+		lazy = true;
+		return this;
+	}
+	
+	private MongoCursor project(String fields, boolean exclude){
+		DBObject keys = cursor.getKeysWanted();
+		if (keys == null){
+			throw new IllegalStateException("The DBCursor was created without a projection");
+		}
+		if (projectedFields != null && projectionExcludes != exclude){
+			throw new IllegalArgumentException("Fields can not be both selected and excluded");
+		}
+		
+		if (projectedFields == null){
+			projectedFields = new HashSet<String>();
+		}
+		projectionExcludes = exclude;
+		for (String field : fields.split(",")){
+			field = field.trim();
+			if (field.length() == 0){
+				continue;
+			}
+			keys.put(field, exclude ? 0 : 1);
+			
+			int dot = field.indexOf('.');
+			if (dot < 0){
+				projectedFields.add(field);
+			}
+			else if (!exclude){
+				// partly selected
+				projectedFields.add(field.substring(0, dot));
+			}
+		}
+		return this;
 	}
 	
 	/**
@@ -114,6 +424,7 @@ public class MongoCursor {
 	 * @return - the cursor
 	 */
 	public MongoCursor from(int from){
+		skip = from;
 		cursor.skip(from);
 		return this;
 	}
@@ -125,8 +436,267 @@ public class MongoCursor {
 	 * @return - the cursor
 	 */
 	public MongoCursor order(String orderBy){
-		DBObject order = MongoDB.createOrderDbObject(orderBy);
+		order = MongoDB.createOrderDbObject(orderBy);
+		sort = order;
 		cursor.sort(order);
 		return this;
 	}
+	
+	/**
+	 * Retrieves a page of models following the order of the cursor, starting
+	 * after the last model of the previous page instead of skipping all the
+	 * models before it. The _id is added to the sort keys when missing, so
+	 * that models with the same values are not skipped or read twice. The
+	 * sort keys should not be null, and be indexed, see {@link #hasIndex()}.
+	 * The sort keys are added to the fields given to {@link #select(String)},
+	 * and can not be given to {@link #exclude(String)}.
+	 * 
+	 * @param <T> - the specific type of MongoModel
+	 * @param pageToken - the token of the previous page, null for the first page
+	 * @param length - the length of a page
+	 * @return - the page
+	 */
+	@SuppressWarnings("unchecked")
+	public <T extends MongoModel> MongoPage<T> fetchPage(String pageToken, int length){
+		if (length <= 0){
+			throw new IllegalArgumentException("The length of a page must be positive");
+		}
+		DBObject keys = getKeysetOrder();
+		sort = keys;
+		cursor.sort(keys);
+		if (projectedFields != null){
+			projectSortKeys(keys);
+		}
+		
+		if (pageToken != null){
+			List<?> values = MongoPage.decodeToken(pageToken, keys);
+			DBObject query = cursor.getQuery();
+			BasicDBList and = (BasicDBList) query.get("$and");
+			if (and == null){
+				and = new BasicDBList();
+				query.put("$and", and);
+			}
+			and.add(createRangeDbObject(keys, values));
+		}
+		
+		// one more to know whether there is a next page
+		List<T> models = fetch(1, length + 1);
+		if (models.size() <= length){
+			return new MongoPage<T>(models, null);
+		}
+		models.remove(length);
+		
+		DBObject last = MongoCodec.toDBObject(models.get(length - 1));
+		BasicDBList values = new BasicDBList();
+		for (String key : keys.keySet()){
+			values.add(getPath(last, key));
+		}
+		return new MongoPage<T>(models, MongoPage.encodeToken(keys, values));
+	}
+	
+	/**
+	 * Reads the sort keys along with the selected fields, the token of the
+	 * next page is made of their values in the last model.
+	 */
+	private void projectSortKeys(DBObject keys){
+		DBObject wanted = cursor.getKeysWanted();
+		for (String key : keys.keySet()){
+			boolean read = key.equals("_id");
+			for (String field : wanted.keySet()){
+				if (projectionExcludes){
+					if (key.equals(field) || key.startsWith(field + ".") || field.startsWith(key + ".")){
+						throw new IllegalArgumentException("The sort key " + key + " of the pages can not be excluded");
+					}
+				}
+				else if (key.equals(field) || key.startsWith(field + ".")){
+					read = true;
+				}
+			}
+			if (!projectionExcludes && !read){
+				wanted.put(key, 1);
+				int dot = key.indexOf('.');
+				projectedFields.add(dot < 0 ? key : key.substring(0, dot));
+			}
+		}
+	}
+	
+	/**
+	 * Tells whether an index of the collection can be used by
+	 * {@link #fetchPage(String, int)}, that is an index starting with its
+	 * sort keys, in the same or the opposite directions.
+	 * 
+	 * @return - true when there is such an index
+	 */
+	public boolean hasIndex(){
+		return MongoDB.hasIndex(cursor.getCollection().getName(), getKeysetOrder());
+	}
+	
+	private DBObject getKeysetOrder(){
+		DBObject keys = new BasicDBObject();
+		Object direction = 1;
+		if (order != null){
+			for (String key : order.keySet()){
+				direction = order.get(key);
+				keys.put(key, direction);
+			}
+		}
+		if (!keys.containsField("_id")){
+			keys.put("_id", direction);
+		}
+		return keys;
+	}
+	
+	/**
+	 * Matches the documents after the given values of the sort keys:
+	 * { $or : [ { a : { $gt : va } }, { a : va, b : { $gt : vb } }, ... ] }
+	 */
+	private static DBObject createRangeDbObject(DBObject keys, List<?> values){
+		if (values.size() != keys.keySet().size()){
+			throw new IllegalArgumentException("The page token does not match the order of the cursor");
+		}
+		BasicDBList or = new BasicDBList();
+		DBObject equal = new BasicDBObject();
+		int i = 0;
+		for (String key : keys.keySet()){
+			Object value = values.get(i++);
+			boolean ascending = ((Number) keys.get(key)).intValue() > 0;
+			
+			DBObject branch = new BasicDBObject(equal.toMap());
+			branch.put(key, new BasicDBObject(ascending ? "$gt" : "$lt", value));
+			or.add(branch);
+			equal.put(key, value);
+		}
+		return new BasicDBObject("$or", or);
+	}
+	
+	private static Object getPath(DBObject dbObject, String path){
+		Object value = dbObject;
+		for (String key : path.split("\\.")){
+			if (!(value instanceof DBObject)){
+				return null;
+			}
+			value = ((DBObject) value).get(key);
+		}
+		return value;
+	}
+	
+	/**
+	 * Reads the documents of a DBCursor on another thread, into a bounded
+	 * queue. The reading thread waits while the queue is full.
+	 */
+	private static class ReadAhead implements Runnable {
+		private static final int DEFAULT_BATCH_SIZE = 100;
+		
+		// marks the end of the documents
+		private static final DBObject END = new BasicDBObject();
+		
+		private final DBCursor cursor;
+		private final BlockingQueue<DBObject> queue;
+		private final Future<?> future;
+		private volatile boolean started;
+		private volatile boolean closed;
+		private volatile RuntimeException error;
+		private final AtomicBoolean cursorClosed = new AtomicBoolean();
+		
+		// the documents taken from the queue at once, read by the calling thread only
+		private final List<DBObject> taken;
+		private int index;
+		private boolean done;
+		
+		ReadAhead(DBCursor cursor, int batches) {
+			this.cursor = cursor;
+			int batchSize = cursor.getBatchSize() > 0 ? cursor.getBatchSize() : DEFAULT_BATCH_SIZE;
+			this.queue = new ArrayBlockingQueue<DBObject>(batches * batchSize);
+			this.taken = new ArrayList<DBObject>(batchSize);
+			this.future = MongoDB.workers().submit(this);
+		}
+		
+		public void run() {
+			started = true;
+			try {
+				while (!closed && cursor.hasNext()){
+					queue.put(cursor.next());
+				}
+				if (!closed){
+					queue.put(END);
+				}
+			} catch (InterruptedException e) {
+				// closed
+			} catch (RuntimeException e) {
+				// thrown to the caller once it read the documents before it
+				error = e;
+				try {
+					queue.put(END);
+				} catch (InterruptedException interrupted) {
+					// closed
+				}
+			} finally {
+				closeCursor();
+			}
+		}
+		
+		boolean hasNext() {
+			if (closed){
+				return false;
+			}
+			if (index < taken.size()){
+				return true;
+			}
+			if (done){
+				if (error != null){
+					throw error;
+				}
+				return false;
+			}
+			taken.clear();
+			index = 0;
+			try {
+				if (queue.drainTo(taken) == 0){
+					taken.add(queue.take());
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				close();
+				throw new MongoException("Interrupted while reading " + cursor.getCollection().getName());
+			}
+			if (taken.get(taken.size() - 1) == END){
+				taken.remove(taken.size() - 1);
+				done = true;
+				if (taken.isEmpty()){
+					return hasNext();
+				}
+			}
+			return true;
+		}
+		
+		DBObject next() {
+			return taken.get(index++);
+		}
+		
+		void close() {
+			closed = true;
+			done = true;
+			future.cancel(true);
+			if (!started){
+				// the reading thread will not touch the cursor
+				closeCursor();
+			}
+			queue.clear();
+		}
+		
+		private void closeCursor() {
+			if (cursorClosed.compareAndSet(false, true)){
+				cursor.close();
+			}
+		}
+	}
+	
+	/**
+	 * Called back by {@link MongoCursor#each(Callback)}.
+	 * 
+	 * @param <T> - the specific type of MongoModel
+	 */
+	public interface Callback<T extends MongoModel> {
+		void call(T model);
+	}
 }
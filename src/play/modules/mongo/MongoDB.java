@@ -1,12 +1,29 @@
 package play.modules.mongo;
 
-import java.net.UnknownHostException;
 import java.util.ArrayList;
-import java.util.LinkedList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.regex.Pattern;
-import java.util.regex.PatternSyntaxException;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.lang.StringUtils;
 import org.bson.types.ObjectId;
@@ -16,81 +33,70 @@ import play.Play;
 
 import com.mongodb.BasicDBList;
 import com.mongodb.BasicDBObject;
+import com.mongodb.BulkWriteError;
+import com.mongodb.BulkWriteException;
+import com.mongodb.BulkWriteOperation;
+import com.mongodb.BulkWriteRequestBuilder;
 import com.mongodb.DB;
 import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
 import com.mongodb.DBObject;
+import com.mongodb.DefaultDBDecoder;
 import com.mongodb.Mongo;
 import com.mongodb.MongoClient;
+import com.mongodb.MongoClientOptions;
 import com.mongodb.MongoException;
+import com.mongodb.ServerAddress;
+import com.mongodb.WriteConcern;
+import com.mongodb.WriteResult;
 
 
 public class MongoDB {
 	
-    private static Mongo mongo;
-    private static DB db;
-    
-    private static String host;
-    private static Integer port;
-    private static String dbname;
-
+	// the number of ids of a query of findByIds
+	static final int IDS_PER_QUERY = 500;
+	
+	// the number of models of a bulk write of saveAll
+	static final int MODELS_PER_BULK_WRITE = 1000;
+	
+	// the threads reading from the database on behalf of the calling thread, started on first use
+	private static ExecutorService workers;
+	
+	public static final long DEFAULT_ESTIMATED_COUNT_TTL = 10000;
+	
+	private static final ConcurrentMap<String, EstimatedCount> estimatedCounts = new ConcurrentHashMap<String, EstimatedCount>();
+	private static volatile long estimatedCountTtl = DEFAULT_ESTIMATED_COUNT_TTL;
+	
     /**
      * Obtain a reference to the mongo database.
      * 
      * @return - a reference to the Mongo database
+     * @throws MongoException - when the database cannot be reached
      */
 	public static DB db() {
-		if (db == null) {
-			if (Play.configuration.containsKey("mongo.username") && Play.configuration.containsKey("mongo.password")) {
-				String username = Play.configuration.getProperty("mongo.username");
-				String passwd = Play.configuration.getProperty("mongo.password");
-				init(username, passwd);
-			} else {
-				init();
-			}
-		}
-		
-		return db;
+		return MongoConnection.db();
 	}
 
     /**
-     * Refresh connection to MongoDB.
+     * Refresh connection to MongoDB, the previous client is closed.
      */
     public static void reset() {
-        db = null;
-        host = null;
-        port = null;
-        dbname = null;
-        init();
+        MongoConnection.reset();
     }
 
 	/**
-	 * Static initialiser.
-	 * 
-	 * @throws UnknownHostException
-	 * @throws MongoException
+	 * Connects to the servers of the configuration with the options read
+	 * by {@link MongoOptions}, replacing the current connection. A list of
+	 * several servers is taken as the seeds of a replica set, or as mongos
+	 * routers.
 	 */
 	public static void init() {		
-		if (host == null || port == null || dbname == null) {
-			host = Play.configuration.getProperty("mongo.host", "localhost");
-			port = Integer.parseInt(Play.configuration.getProperty("mongo.port", "27017"));
-			dbname = Play.configuration.getProperty("mongo.database", "play." + Play.configuration.getProperty("application.name"));
-		}
-		
-		Logger.info("initializing DB ["+host+"]["+port+"]["+dbname+"]");
-		
-		try {
-			mongo = new MongoClient(host, port);
-			db = mongo.getDB(dbname);
-		} catch (UnknownHostException e) {
-			e.printStackTrace();
-		} catch (MongoException e) {
-			e.printStackTrace();
-		}
+		MongoConnection.reset();
 	}
 	
 	public static void init(String username, String password){
 		init();
-		db.authenticate(username, password.toCharArray());
+		db().authenticate(username, password.toCharArray());
 	}
 	
 	/**
@@ -100,7 +106,7 @@ public class MongoDB {
 	 * @param indexString
 	 */
 	public static void index(String collectionName, String indexString) {
-		DBCollection c = db().getCollection(collectionName);
+		DBCollection c = MongoRegistry.collection(collectionName);
 		DBObject indexKeys = createOrderDbObject(indexString);
 		c.createIndex(indexKeys);
 	}
@@ -112,7 +118,7 @@ public class MongoDB {
 	 * @param indexString
 	 */
 	public static void dropIndex(String collectionName, String indexString) {
-		DBCollection c = db().getCollection(collectionName);
+		DBCollection c = MongoRegistry.collection(collectionName);
 		DBObject indexKeys = createOrderDbObject(indexString);
 		c.dropIndex(indexKeys);
 	}
@@ -123,7 +129,7 @@ public class MongoDB {
 	 * @param collectionName
 	 */
 	public static void dropIndexes(String collectionName) {
-		DBCollection c = db().getCollection(collectionName);
+		DBCollection c = MongoRegistry.collection(collectionName);
 		c.dropIndexes();
 	}
 	
@@ -135,7 +141,7 @@ public class MongoDB {
 	 */
 	public static String[] getIndexes(String collectionName) {
 		List<String> indexNames = new ArrayList<String>();
-		DBCollection c = db().getCollection(collectionName);
+		DBCollection c = MongoRegistry.collection(collectionName);
 		List<DBObject> indexes = c.getIndexInfo();
 		for (DBObject o : indexes) {
 			indexNames.add((String)o.get("name"));
@@ -144,6 +150,52 @@ public class MongoDB {
 		return indexNames.toArray(new String[indexNames.size()]);
 	}
 	
+	/**
+	 * Tells whether a collection has an index starting with the given keys,
+	 * in the same or the opposite directions.
+	 * 
+	 * @param collectionName - the collection
+	 * @param indexString - the keys, as given to {@link #index(String, String)}
+	 * @return - true when there is such an index
+	 */
+	public static boolean hasIndex(String collectionName, String indexString) {
+		return hasIndex(collectionName, createOrderDbObject(indexString));
+	}
+	
+	/**
+	 * Tells whether a collection has an index starting with the given keys,
+	 * in the same or the opposite directions.
+	 * 
+	 * @param collectionName - the collection
+	 * @param keys - the keys and their directions
+	 * @return - true when there is such an index
+	 */
+	public static boolean hasIndex(String collectionName, DBObject keys) {
+		for (DBObject index : MongoRegistry.collection(collectionName).getIndexInfo()) {
+			DBObject indexKeys = (DBObject) index.get("key");
+			if (startsWith(indexKeys, keys, 1) || startsWith(indexKeys, keys, -1)) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	private static boolean startsWith(DBObject indexKeys, DBObject keys, int direction) {
+		Iterator<String> indexed = indexKeys.keySet().iterator();
+		for (String key : keys.keySet()) {
+			if (!indexed.hasNext()) {
+				return false;
+			}
+			String indexKey = indexed.next();
+			Object indexDirection = indexKeys.get(indexKey);
+			if (!indexKey.equals(key) || !(indexDirection instanceof Number)
+					|| Math.signum(((Number) indexDirection).doubleValue()) != direction * Math.signum(((Number) keys.get(key)).doubleValue())) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
 	/**
 	 * Adds a user to the database. We must manually set the readOnly parameter
 	 * because the java mongo API does not yet support it. It will only work
@@ -155,7 +207,7 @@ public class MongoDB {
 	 */
 	public static void addUser(String username, String passwd, boolean readOnly) {
 		db().addUser(username, passwd.toCharArray());
-		DBCollection c = db().getCollection("system.users");
+		DBCollection c = MongoRegistry.collection("system.users");
 		
 		DBObject userObj = c.findOne(new BasicDBObject("user", username));
 		if (userObj != null) {
@@ -170,7 +222,7 @@ public class MongoDB {
 	 * @param username
 	 */
 	public static void removeUser(String username) {
-		DBCollection c = db().getCollection("system.users");
+		DBCollection c = MongoRegistry.collection("system.users");
 		
 		DBObject userObj = c.findOne(new BasicDBObject("user", username));
 		if (userObj != null) {
@@ -196,7 +248,7 @@ public class MongoDB {
 	 * @return - number of records in the collection
 	 */
 	public static long count(String collectionName) {
-		return db().getCollection(collectionName).getCount();
+		return count(collectionName, new BasicDBObject(), 0, null, null);
 	}
 	
 	/**
@@ -208,7 +260,149 @@ public class MongoDB {
 	 * @return
 	 */
 	public static long count(String collectionName, String query, Object[] params) {
-		return db().getCollection(collectionName).getCount(createQueryDbObject(query, params));
+		return count(collectionName, createQueryDbObject(query, params), 0, query, params);
+	}
+	
+	/**
+	 * Counts the records in the collection matching the query object.
+	 * 
+	 * @param collectionName - the queried collection
+	 * @param query - the query object
+	 * @return
+	 */
+	public static long count(String collectionName, DBObject query) {
+		return count(collectionName, query, 0, null, null);
+	}
+	
+	/**
+	 * Counts the records in the collection matching the query string, up to
+	 * a limit. The server stops counting at the limit.
+	 * 
+	 * @param collectionName - the queried collection
+	 * @param query - the query string
+	 * @param params - parameters for the query string
+	 * @param limit - the largest count needed
+	 * @return - the number of records, at most the limit
+	 */
+	public static long count(String collectionName, String query, Object[] params, long limit) {
+		return count(collectionName, createQueryDbObject(query, params), limit, query, params);
+	}
+	
+	/**
+	 * Counts the records in the collection matching the query object, up to
+	 * a limit. The server stops counting at the limit.
+	 * 
+	 * @param collectionName - the queried collection
+	 * @param query - the query object
+	 * @param limit - the largest count needed
+	 * @return - the number of records, at most the limit
+	 */
+	public static long count(String collectionName, DBObject query, long limit) {
+		return count(collectionName, query, limit, null, null);
+	}
+	
+	/**
+	 * Counts the records matching a query object, recording the count and
+	 * logging it when it is slow.
+	 * 
+	 * @param limit - the largest count needed, 0 for none
+	 * @param queryString - the query string of the query object, null when there is none
+	 * @param params - parameters for the query string
+	 */
+	private static long count(String collectionName, DBObject query, long limit, String queryString, Object[] params) {
+		DBCollection collection = MongoRegistry.collection(collectionName);
+		long start = MongoMetrics.start();
+		long count;
+		try {
+			count = collection.getCount(query, null, limit, 0);
+		} catch (RuntimeException e) {
+			MongoMetrics.failed(collectionName, MongoMetrics.COUNT, start);
+			throw e;
+		}
+		MongoMetrics.record(collectionName, MongoMetrics.COUNT, start, 0);
+		long nanos = System.nanoTime() - start;
+		if (MongoSlowLog.isSlow(nanos)) {
+			MongoSlowLog.count(collection, query, queryString, params, limit, nanos, count);
+		}
+		return count;
+	}
+	
+	/**
+	 * Tells whether a record of the collection matches the query string,
+	 * reading the _id of the first one only.
+	 * 
+	 * @param collectionName - the queried collection
+	 * @param query - the query string
+	 * @param params - parameters for the query string
+	 * @return - true when a record matches
+	 */
+	public static boolean exists(String collectionName, String query, Object[] params) {
+		return exists(collectionName, createQueryDbObject(query, params));
+	}
+	
+	/**
+	 * Tells whether a record of the collection matches the query object,
+	 * reading the _id of the first one only.
+	 * 
+	 * @param collectionName - the queried collection
+	 * @param query - the query object
+	 * @return - true when a record matches
+	 */
+	public static boolean exists(String collectionName, DBObject query) {
+		long start = MongoMetrics.start();
+		DBCursor cursor = MongoRegistry.collection(collectionName).find(query, new BasicDBObject("_id", 1)).limit(1);
+		try {
+			boolean exists = cursor.hasNext();
+			MongoMetrics.record(collectionName, MongoMetrics.FIND, start, exists ? 1 : 0);
+			return exists;
+		} catch (RuntimeException e) {
+			MongoMetrics.failed(collectionName, MongoMetrics.FIND, start);
+			throw e;
+		} finally {
+			cursor.close();
+		}
+	}
+	
+	/**
+	 * Returns the number of records in the collection according to its
+	 * statistics, which are read again once the previous count is older than
+	 * mongo.estimatedCount.ttl milliseconds. Fast on large collections, but
+	 * it can be off after an unclean shutdown or while chunks migrate.
+	 * 
+	 * @param collectionName - the collection
+	 * @return - the estimated number of records
+	 */
+	public static long estimatedCount(String collectionName) {
+		long now = System.currentTimeMillis();
+		EstimatedCount estimated = estimatedCounts.get(collectionName);
+		if (estimated == null || estimated.expires <= now) {
+			DBCollection collection = MongoRegistry.collection(collectionName);
+			Object count = collection.getStats().get("count");
+			long value = count instanceof Number ? ((Number) count).longValue() : collection.getCount();
+			estimated = new EstimatedCount(value, now + estimatedCountTtl);
+			estimatedCounts.put(collectionName, estimated);
+		}
+		return estimated.count;
+	}
+	
+	/**
+	 * Sets how long the estimated counts are kept.
+	 * 
+	 * @param ttl - the time to live of an estimated count, in milliseconds, 0 to always read the statistics
+	 */
+	public static void setEstimatedCountTtl(long ttl) {
+		estimatedCountTtl = ttl;
+		estimatedCounts.clear();
+	}
+	
+	private static class EstimatedCount {
+		final long count;
+		final long expires;
+		
+		EstimatedCount(long count, long expires) {
+			this.count = count;
+			this.expires = expires;
+		}
 	}
 	
 	/**
@@ -222,7 +416,21 @@ public class MongoDB {
 	 */
 	@SuppressWarnings("rawtypes")
 	public static MongoCursor find(String collectionName, String query, Object[] params, Class clazz) {
-		return new MongoCursor(db().getCollection(collectionName).find(createQueryDbObject(query, params)),clazz);
+		return find(collectionName, createQueryDbObject(query, params), clazz).queryString(query, params);
+	}
+	
+	/**
+	 * Provides a cursor to the objects in a collection, matching the query object.
+	 * 
+	 * @param collectionName - the target collection
+	 * @param query - the query object
+	 * @param clazz - the type of MongoModel
+	 * @return - a mongo cursor
+	 */
+	@SuppressWarnings("rawtypes")
+	public static MongoCursor find(String collectionName, DBObject query, Class clazz) {
+		// an empty projection, which MongoCursor.select and exclude fill in
+		return new MongoCursor(MongoRegistry.collection(collectionName).find(query, new BasicDBObject()),clazz);
 	}
 	
 	/**
@@ -234,15 +442,323 @@ public class MongoDB {
 	 */
 	@SuppressWarnings("rawtypes") 
 	public static MongoCursor find(String collectionName, Class clazz) {
-		return new MongoCursor(db().getCollection(collectionName).find(), clazz);
+		return find(collectionName, new BasicDBObject(), clazz);
 	}
 
+	/**
+	 * Calls back for each model matching the query string, reading the
+	 * collection with several cursors at once, see
+	 * {@link #parallelScan(String, DBObject, Class, int, MongoCursor.Callback)}.
+	 * 
+	 * @param <T> - the type of MongoModel
+	 * @param collectionName - the collection
+	 * @param query - the query string
+	 * @param params - parameters for the query
+	 * @param clazz - the type of MongoModel
+	 * @param partitions - the number of cursors read at once
+	 * @param callback - called with each model, from several threads
+	 * @return - the number of models
+	 */
+	public static <T extends MongoModel> long parallelScan(String collectionName, String query, Object[] params, Class<T> clazz, int partitions, MongoCursor.Callback<T> callback) {
+		return parallelScan(collectionName, createQueryDbObject(query, params), clazz, partitions, callback);
+	}
+	
+	/**
+	 * Calls back for each model matching the query, reading the collection
+	 * with several cursors at once. The _id space is split in ranges, by
+	 * the timestamps of the ObjectIds or else by sampling the _id index,
+	 * and each range is read and decoded on one of the workers, or on the
+	 * calling thread when they are all busy. The callback must be thread
+	 * safe. When it throws, the other ranges stop and the exception is
+	 * thrown back.
+	 * 
+	 * @param <T> - the type of MongoModel
+	 * @param collectionName - the collection
+	 * @param query - the query object
+	 * @param clazz - the type of MongoModel
+	 * @param partitions - the number of cursors read at once
+	 * @param callback - called with each model, from several threads
+	 * @return - the number of models
+	 */
+	public static <T extends MongoModel> long parallelScan(String collectionName, DBObject query, final Class<T> clazz, int partitions, final MongoCursor.Callback<T> callback) {
+		final DBCollection collection = MongoRegistry.collection(collectionName);
+		List<Object> splitPoints = getSplitPoints(collection, partitions);
+		
+		final AtomicBoolean failed = new AtomicBoolean();
+		List<Future<Long>> results = new ArrayList<Future<Long>>();
+		try {
+			for (int i = 0; i <= splitPoints.size(); i++){
+				DBObject id = new BasicDBObject();
+				if (i > 0){
+					id.put("$gte", splitPoints.get(i - 1));
+				}
+				if (i < splitPoints.size()){
+					id.put("$lt", splitPoints.get(i));
+				}
+				BasicDBList and = new BasicDBList();
+				and.add(query);
+				and.add(new BasicDBObject("_id", id));
+				final DBObject range = splitPoints.isEmpty() ? query : new BasicDBObject("$and", and);
+				
+				// on the workers, or the calling thread when they are all busy
+				results.add(submit(new Callable<Long>() {
+					@SuppressWarnings("unchecked")
+					public Long call() {
+						MongoCursor cursor = new MongoCursor(collection.find(range, new BasicDBObject()), clazz).streaming();
+						long count = 0;
+						try {
+							for (MongoModel model : cursor){
+								if (failed.get()){
+									break;
+								}
+								callback.call((T) model);
+								count++;
+							}
+						} catch (RuntimeException e) {
+							failed.set(true);
+							throw e;
+						} catch (Error e) {
+							failed.set(true);
+							throw e;
+						} finally {
+							cursor.close();
+						}
+						return count;
+					}
+				}));
+			}
+			
+			long count = 0;
+			for (Future<Long> result : results){
+				count += result.get();
+			}
+			return count;
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException){
+				throw (RuntimeException) cause;
+			}
+			if (cause instanceof Error){
+				throw (Error) cause;
+			}
+			throw new MongoException("Parallel scan of " + collectionName + " failed", cause);
+		} catch (InterruptedException e) {
+			failed.set(true);
+			Thread.currentThread().interrupt();
+			throw new MongoException("Parallel scan of " + collectionName + " interrupted", e);
+		} finally {
+			failed.set(true);
+			cancel(results);
+		}
+	}
+	
+	/**
+	 * Splits the _id space of a collection in ranges of about the same size.
+	 * 
+	 * @return - the first _id of each range but the first one
+	 */
+	private static List<Object> getSplitPoints(DBCollection collection, int partitions) {
+		List<Object> splitPoints = new ArrayList<Object>();
+		if (partitions < 2){
+			return splitPoints;
+		}
+		DBObject all = new BasicDBObject();
+		DBObject keys = new BasicDBObject("_id", 1);
+		DBObject first = collection.findOne(all, keys, new BasicDBObject("_id", 1));
+		DBObject last = collection.findOne(all, keys, new BasicDBObject("_id", -1));
+		if (first == null || last == null){
+			return splitPoints;
+		}
+		
+		Object min = first.get("_id");
+		Object max = last.get("_id");
+		if (min instanceof ObjectId && max instanceof ObjectId){
+			// the smallest ObjectId of evenly spread timestamps
+			long from = ((ObjectId) min).getTimestamp();
+			long to = ((ObjectId) max).getTimestamp() + 1L;
+			for (int i = 1; i < partitions; i++){
+				ObjectId splitPoint = ObjectId.createFromLegacyFormat((int) (from + (to - from) * i / partitions), 0, 0);
+				if (splitPoint.compareTo((ObjectId) min) > 0 && (splitPoints.isEmpty() || !splitPoint.equals(splitPoints.get(splitPoints.size() - 1)))){
+					splitPoints.add(splitPoint);
+				}
+			}
+		}
+		else{
+			// sampled from the _id index
+			long count = collection.getCount();
+			for (int i = 1; i < partitions; i++){
+				DBCursor cursor = collection.find(all, keys).sort(keys).skip((int) (count * i / partitions)).limit(1);
+				try {
+					if (cursor.hasNext()){
+						Object splitPoint = cursor.next().get("_id");
+						if (!splitPoint.equals(min) && (splitPoints.isEmpty() || !splitPoint.equals(splitPoints.get(splitPoints.size() - 1)))){
+							splitPoints.add(splitPoint);
+						}
+					}
+				} finally {
+					cursor.close();
+				}
+			}
+		}
+		return splitPoints;
+	}
+	
+	/**
+	 * Reads models by their ids, with one $in query for each chunk of
+	 * {@value #IDS_PER_QUERY} ids, the chunks being read at once.
+	 * 
+	 * @param <T> - the type of MongoModel
+	 * @param collectionName - the collection
+	 * @param clazz - the type of MongoModel
+	 * @param ids - the ids of the models
+	 * @return - the models found, in the order of their ids
+	 */
+	public static <T extends MongoModel> List<T> findByIds(String collectionName, Class<T> clazz, Collection<ObjectId> ids) {
+		return new ArrayList<T>(findMapByIds(collectionName, clazz, ids).values());
+	}
+	
+	/**
+	 * Reads models by their ids, see {@link #findByIds(String, Class, Collection)}.
+	 * 
+	 * @param <T> - the type of MongoModel
+	 * @param collectionName - the collection
+	 * @param clazz - the type of MongoModel
+	 * @param ids - the ids of the models
+	 * @return - the models found by their id, in the order of the ids
+	 */
+	public static <T extends MongoModel> Map<ObjectId, T> findMapByIds(String collectionName, final Class<T> clazz, Collection<ObjectId> ids) {
+		final DBCollection collection = MongoRegistry.collection(collectionName);
+		List<ObjectId> unique = new ArrayList<ObjectId>(new LinkedHashSet<ObjectId>(ids));
+		
+		List<Future<List<T>>> results = new ArrayList<Future<List<T>>>();
+		List<T> models = new ArrayList<T>(unique.size());
+		for (int from = 0; from < unique.size(); from += IDS_PER_QUERY){
+			final List<ObjectId> chunk = unique.subList(from, Math.min(from + IDS_PER_QUERY, unique.size()));
+			if (from + IDS_PER_QUERY < unique.size()){
+				results.add(submit(new Callable<List<T>>() {
+					public List<T> call() {
+						return findChunk(collection, clazz, chunk);
+					}
+				}));
+			}
+			else{
+				// the last chunk is read by the calling thread
+				try {
+					models.addAll(findChunk(collection, clazz, chunk));
+				} catch (RuntimeException e) {
+					cancel(results);
+					throw e;
+				}
+			}
+		}
+		for (Future<List<T>> result : results){
+			models.addAll(get(result, results));
+		}
+		
+		Map<ObjectId, T> byId = new HashMap<ObjectId, T>(models.size() * 2);
+		for (T model : models){
+			byId.put(model.get_id(), model);
+		}
+		Map<ObjectId, T> ordered = new LinkedHashMap<ObjectId, T>(byId.size() * 2);
+		for (ObjectId id : unique){
+			T model = byId.get(id);
+			if (model != null){
+				ordered.put(id, model);
+			}
+		}
+		return ordered;
+	}
+	
+	/**
+	 * Returns the threads reading from the database on behalf of the calling
+	 * threads, at most one by connection of the pool of the client, see
+	 * <code>mongo.connectionsPerHost</code>.
+	 */
+	static synchronized ExecutorService workers() {
+		if (workers == null) {
+			int max = MongoOptions.options(Play.configuration).getConnectionsPerHost();
+			workers = new ThreadPoolExecutor(0, Math.max(max, 1), 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new ThreadFactory() {
+				private final AtomicInteger count = new AtomicInteger();
+				
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "mongo-worker-" + count.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return workers;
+	}
+	
+	/**
+	 * Stops the threads reading from the database, they are started again
+	 * on next use.
+	 */
+	static synchronized void shutdownWorkers() {
+		if (workers != null) {
+			workers.shutdownNow();
+			workers = null;
+		}
+	}
+	
+	/**
+	 * Runs a task on one of the workers, or on the calling thread when they
+	 * are all busy.
+	 */
+	static <V> Future<V> submit(Callable<V> task) {
+		FutureTask<V> future = new FutureTask<V>(task);
+		try {
+			workers().execute(future);
+		} catch (RejectedExecutionException e) {
+			future.run();
+		}
+		return future;
+	}
+	
+	private static <T extends MongoModel> List<T> findChunk(DBCollection collection, Class<T> clazz, List<ObjectId> ids) {
+		DBObject query = new BasicDBObject("_id", new BasicDBObject("$in", ids));
+		return new MongoCursor(collection.find(query, new BasicDBObject()), clazz).fetch();
+	}
+	
+	private static <V> V get(Future<V> result, List<? extends Future<?>> all) {
+		try {
+			return result.get();
+		} catch (ExecutionException e) {
+			cancel(all);
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException){
+				throw (RuntimeException) cause;
+			}
+			if (cause instanceof Error){
+				throw (Error) cause;
+			}
+			throw new MongoException("Unable to read from the database", cause);
+		} catch (InterruptedException e) {
+			cancel(all);
+			Thread.currentThread().interrupt();
+			throw new MongoException("Interrupted while reading from the database", e);
+		}
+	}
+	
+	private static void cancel(List<? extends Future<?>> results) {
+		for (Future<?> result : results){
+			result.cancel(true);
+		}
+	}
+	
     public static <T extends MongoModel> T findById(String collectionName, Class clazz, ObjectId id) {
         DBObject query = new BasicDBObject("_id", id);
-        DBObject dbObject = db().getCollection(collectionName).findOne(query);
+        long start = MongoMetrics.start();
+        DBObject dbObject;
+        try {
+            dbObject = MongoRegistry.collection(collectionName).findOne(query);
+        } catch (RuntimeException e) {
+            MongoMetrics.failed(collectionName, MongoMetrics.FIND_BY_ID, start);
+            throw e;
+        }
+        MongoMetrics.record(collectionName, MongoMetrics.FIND_BY_ID, start, dbObject != null ? 1 : 0);
         if (dbObject != null) {
-            Map map = dbObject.toMap();
-            return (T) MongoMapper.convertValue(map, clazz);
+            return (T) MongoCodec.fromDBObject(dbObject, clazz);
         } else {
             return null;
         }
@@ -257,20 +773,360 @@ public class MongoDB {
 	 * @return - an instance of the model saved
 	 */
 	public static <T extends MongoModel> T save(String collectionName, T model) {
-		/* 
-		 * Perhaps it would be better to immediately save the object to the database and assign its id. 
-		 * 
-		 */
-		DBObject dbObject = new BasicDBObject(MongoMapper.convertValue(model, Map.class));
+		if (MongoWriteBehind.save(collectionName, model)){
+			// written at the end of the invocation
+			return model;
+		}
+		return save(collectionName, model, null);
+	}
+	
+	/**
+	 * Saves a model to its collection now, with a given write concern.
+	 * @param <T> - the type of MongoModel to save
+	 * @param collectionName - the collection to save it to
+	 * @param model - the model to save
+	 * @param writeConcern - the write concern, null for the one of the collection
+	 * @return - an instance of the model saved
+	 */
+	public static <T extends MongoModel> T save(String collectionName, T model, WriteConcern writeConcern) {
+		DBCollection collection = MongoRegistry.collection(collectionName);
+		if (writeConcern == null){
+			writeConcern = collection.getWriteConcern();
+		}
+		DBObject dbObject = MongoCodec.toDBObject(model);
 		
 		if (model.get_id() == null){
-			db().getCollection(collectionName).insert(dbObject);
+			long start = MongoMetrics.start();
+			try {
+				collection.insert(dbObject, writeConcern);
+			} catch (RuntimeException e) {
+				MongoMetrics.failed(collectionName, MongoMetrics.INSERT, start);
+				throw e;
+			}
+			MongoMetrics.record(collectionName, MongoMetrics.INSERT, start, 1);
 			model.set_id((ObjectId)(dbObject.get("_id")));
 		}
 		else{
-			dbObject.removeField("_id");
-			db().getCollection(collectionName).update(new BasicDBObject("_id",model.get_id()), dbObject);
+			dbObject = getSavedFields(model, dbObject);
+			DBObject update = createSaveDbObject(model, dbObject);
+			if (update.keySet().isEmpty()){
+				// nothing changed
+				return model;
+			}
+			long start = MongoMetrics.start();
+			try {
+				collection.update(new BasicDBObject("_id",model.get_id()), update, false, false, writeConcern);
+			} catch (RuntimeException e) {
+				MongoMetrics.failed(collectionName, MongoMetrics.UPDATE, start);
+				throw e;
+			}
+			MongoMetrics.record(collectionName, MongoMetrics.UPDATE, start, 1);
 		}
+		model.setSnapshot(dbObject);
+		
+		return model;
+	}
+	
+	/**
+	 * Saves models to their collection with bulk writes, the models being
+	 * sent {@value #MODELS_PER_BULK_WRITE} at a time, in any order.
+	 * 
+	 * @param <T> - the type of MongoModel to save
+	 * @param collectionName - the collection to save them to
+	 * @param models - the models to save
+	 * @return - the models saved
+	 * @throws MongoBulkSaveException - when some of the models could not be saved, the others are saved
+	 */
+	public static <T extends MongoModel> List<T> saveAll(String collectionName, List<T> models) {
+		return saveAll(collectionName, models, false);
+	}
+	
+	/**
+	 * Saves models to their collection with bulk writes, the models being
+	 * sent {@value #MODELS_PER_BULK_WRITE} at a time. New models are
+	 * inserted and given an _id, the others are updated as by
+	 * {@link #save(String, MongoModel)}.
+	 * 
+	 * @param <T> - the type of MongoModel to save
+	 * @param collectionName - the collection to save them to
+	 * @param models - the models to save
+	 * @param ordered - true to save the models in order and stop at the first failure, false to save them in any order and carry on after failures
+	 * @return - the models saved
+	 * @throws MongoBulkSaveException - when some of the models could not be saved
+	 */
+	public static <T extends MongoModel> List<T> saveAll(String collectionName, List<T> models, boolean ordered) {
+		return saveAll(collectionName, models, ordered, Collections.<ObjectId>emptySet());
+	}
+	
+	/**
+	 * Saves models with bulk writes, inserting those given their _id before
+	 * they were stored.
+	 * 
+	 * @param inserts - the ids of the models to insert though they have an _id
+	 */
+	static <T extends MongoModel> List<T> saveAll(String collectionName, List<T> models, boolean ordered, Set<ObjectId> inserts) {
+		DBCollection collection = MongoRegistry.collection(collectionName);
+		List<MongoBulkSaveException.Failure> failures = new ArrayList<MongoBulkSaveException.Failure>();
+		
+		for (int from = 0; from < models.size(); from += MODELS_PER_BULK_WRITE){
+			List<T> batch = models.subList(from, Math.min(from + MODELS_PER_BULK_WRITE, models.size()));
+			BulkWriteOperation bulk = ordered ? collection.initializeOrderedBulkOperation() : collection.initializeUnorderedBulkOperation();
+			// the models and documents of the requests, by index
+			List<T> written = new ArrayList<T>(batch.size());
+			List<DBObject> snapshots = new ArrayList<DBObject>(batch.size());
+			List<Boolean> inserted = new ArrayList<Boolean>(batch.size());
+			
+			for (T model : batch){
+				DBObject dbObject = MongoCodec.toDBObject(model);
+				if (model.get_id() == null || inserts.contains(model.get_id())){
+					ObjectId id = model.get_id() != null ? model.get_id() : new ObjectId();
+					dbObject.put("_id", id);
+					model.set_id(id);
+					bulk.insert(dbObject);
+					inserted.add(true);
+				}
+				else{
+					dbObject = getSavedFields(model, dbObject);
+					DBObject update = createSaveDbObject(model, dbObject);
+					if (update.keySet().isEmpty()){
+						continue;
+					}
+					BulkWriteRequestBuilder request = bulk.find(new BasicDBObject("_id", model.get_id()));
+					if (update.containsField("$set") || update.containsField("$unset")){
+						request.updateOne(update);
+					}
+					else{
+						request.replaceOne(update);
+					}
+					inserted.add(false);
+				}
+				written.add(model);
+				snapshots.add(dbObject);
+			}
+			if (written.isEmpty()){
+				continue;
+			}
+			
+			// the requests which were not written
+			Map<Integer, BulkWriteError> errors = new HashMap<Integer, BulkWriteError>();
+			int executed = written.size();
+			long start = MongoMetrics.start();
+			try {
+				bulk.execute();
+				MongoMetrics.record(collectionName, MongoMetrics.SAVE_ALL, start, written.size());
+			} catch (BulkWriteException e) {
+				MongoMetrics.failed(collectionName, MongoMetrics.SAVE_ALL, start);
+				for (BulkWriteError error : e.getWriteErrors()){
+					errors.put(error.getIndex(), error);
+				}
+				if (ordered && !errors.isEmpty()){
+					// the requests after the first failure were not sent
+					executed = Collections.min(errors.keySet()) + 1;
+				}
+			} catch (RuntimeException e) {
+				MongoMetrics.failed(collectionName, MongoMetrics.SAVE_ALL, start);
+				// the network failed or timed out, the new models are not taken as stored
+				for (int i = 0; i < written.size(); i++){
+					if (inserted.get(i)){
+						written.get(i).set_id(null);
+					}
+				}
+				throw e;
+			}
+
+			for (int i = 0; i < written.size(); i++){
+				T model = written.get(i);
+				BulkWriteError error = errors.get(i);
+				if (error == null && i < executed){
+					model.setSnapshot(snapshots.get(i));
+					continue;
+				}
+				if (inserted.get(i)){
+					model.set_id(null);
+				}
+				if (error != null){
+					failures.add(new MongoBulkSaveException.Failure(model, error.getCode(), error.getMessage()));
+				}
+				else{
+					failures.add(new MongoBulkSaveException.Failure(model, -1, "Not saved after the failure of a previous model"));
+				}
+			}
+			if (ordered && !errors.isEmpty()){
+				for (T model : models.subList(from + batch.size(), models.size())){
+					failures.add(new MongoBulkSaveException.Failure(model, -1, "Not saved after the failure of a previous model"));
+				}
+				break;
+			}
+		}
+		
+		if (!failures.isEmpty()){
+			throw new MongoBulkSaveException(failures);
+		}
+		return models;
+	}
+	
+	/**
+	 * The fields of a stored model written by save: all of them but the _id,
+	 * or only those which were read for a partly loaded model.
+	 */
+	private static DBObject getSavedFields(MongoModel model, DBObject dbObject) {
+		dbObject.removeField("_id");
+		if (model.getProjectedFields() == null){
+			return dbObject;
+		}
+		// the fields which were not read must be left as they are
+		DBObject loaded = new BasicDBObject();
+		for (String key : dbObject.keySet()){
+			if (model.isLoaded(key)){
+				loaded.put(key, dbObject.get(key));
+			}
+		}
+		return loaded;
+	}
+	
+	/**
+	 * The update saving a stored model: the changes since it was read, or
+	 * the whole document when it was not read from the database.
+	 * 
+	 * @return - the update, empty when nothing changed
+	 */
+	private static DBObject createSaveDbObject(MongoModel model, DBObject dbObject) {
+		boolean partial = model.getProjectedFields() != null;
+		DBObject snapshot = getSnapshot(model);
+		if (snapshot != null){
+			return createUpdateDbObject(snapshot, dbObject, partial);
+		}
+		if (partial){
+			return dbObject.keySet().isEmpty() ? dbObject : new BasicDBObject("$set", dbObject);
+		}
+		return dbObject;
+	}
+	
+	/**
+	 * Builds the update of a document from the values it was read with
+	 * and its current values. Changed values are $set, using dotted paths
+	 * into embedded documents, and values which are gone are $unset.
+	 * 
+	 * @param original - the document as it was read or last saved
+	 * @param current - the document as it is now, without its _id
+	 * @param partial - true when the document was read through a projection, values missing from the embedded documents which were read are then left alone
+	 * @return - the update, empty when nothing changed
+	 */
+	public static DBObject createUpdateDbObject(DBObject original, DBObject current, boolean partial) {
+		DBObject set = new BasicDBObject();
+		DBObject unset = new BasicDBObject();
+		diff("", original, current, partial, set, unset);
+		
+		DBObject update = new BasicDBObject();
+		if (!set.keySet().isEmpty()){
+			update.put("$set", set);
+		}
+		if (!unset.keySet().isEmpty()){
+			update.put("$unset", unset);
+		}
+		return update;
+	}
+	
+	private static void diff(String prefix, DBObject original, DBObject current, boolean partial, DBObject set, DBObject unset) {
+		for (String key : current.keySet()){
+			Object value = current.get(key);
+			if (!original.containsField(key)){
+				if (!partial || prefix.length() == 0){
+					set.put(prefix + key, value);
+				}
+				continue;
+			}
+			Object previous = original.get(key);
+			if (isDocument(value) && isDocument(previous)){
+				diff(prefix + key + ".", (DBObject) previous, (DBObject) value, partial, set, unset);
+			}
+			else if (!isSame(previous, value)){
+				set.put(prefix + key, value);
+			}
+		}
+		for (String key : original.keySet()){
+			if (!current.containsField(key) && !(prefix.length() == 0 && key.equals("_id"))){
+				unset.put(prefix + key, 1);
+			}
+		}
+	}
+	
+	private static boolean isSame(Object previous, Object value) {
+		if (value instanceof Number && previous instanceof Number){
+			// floats and shorts are read back as doubles and ints
+			Number a = (Number) previous;
+			Number b = (Number) value;
+			if (isIntegral(a) && isIntegral(b)){
+				return a.longValue() == b.longValue();
+			}
+			return a.doubleValue() == b.doubleValue();
+		}
+		return value == null ? previous == null : value.equals(previous);
+	}
+	
+	private static boolean isIntegral(Number number) {
+		return number instanceof Integer || number instanceof Long || number instanceof Short || number instanceof Byte;
+	}
+	
+	private static boolean isDocument(Object value) {
+		return value instanceof DBObject && !(value instanceof List);
+	}
+	
+	/**
+	 * Returns the document a model was read with or last saved as.
+	 */
+	private static DBObject getSnapshot(MongoModel model) {
+		Object snapshot = model.getSnapshot();
+		if (snapshot instanceof byte[]){
+			snapshot = new DefaultDBDecoder().decode((byte[]) snapshot, (DBCollection) null);
+			model.setSnapshot(snapshot);
+		}
+		return (DBObject) snapshot;
+	}
+	
+	/**
+	 * Reads the fields of a model which were left out by the projection
+	 * of its cursor.
+	 * 
+	 * @param <T> - the type of model
+	 * @param collectionName - the collection
+	 * @param model - the model
+	 * @return - the model, fully loaded
+	 */
+	public static <T extends MongoModel> T load(String collectionName, T model) {
+		Set<String> fields = model.getProjectedFields();
+		if (fields == null || model.get_id() == null){
+			return model;
+		}
+		
+		// only read what is missing
+		DBObject keys = new BasicDBObject();
+		for (String field : fields){
+			if (!field.equals("_id")){
+				keys.put(field, model.isProjectionExcludes() ? 1 : 0);
+			}
+		}
+		long start = MongoMetrics.start();
+		DBObject dbObject;
+		try {
+			dbObject = MongoRegistry.collection(collectionName).findOne(new BasicDBObject("_id", model.get_id()), keys);
+		} catch (RuntimeException e) {
+			MongoMetrics.failed(collectionName, MongoMetrics.FIND_BY_ID, start);
+			throw e;
+		}
+		MongoMetrics.record(collectionName, MongoMetrics.FIND_BY_ID, start, dbObject != null ? 1 : 0);
+		if (dbObject != null){
+			MongoCodec.copyUnloaded(MongoCodec.fromDBObject(dbObject, model.getClass()), model);
+			DBObject snapshot = getSnapshot(model);
+			if (snapshot != null){
+				for (String key : dbObject.keySet()){
+					if (!snapshot.containsField(key)){
+						snapshot.put(key, dbObject.get(key));
+					}
+				}
+			}
+		}
+		model.setProjection(null, false, false);
 		
 		return model;
 	}
@@ -283,8 +1139,16 @@ public class MongoDB {
 	 * @param model - the model
 	 */
 	public static <T extends MongoModel> void delete (String collectionName, T model) {
+		MongoWriteBehind.delete(collectionName, model);
 		DBObject dbObject = new BasicDBObject("_id", model.get_id());
-		db().getCollection(collectionName).remove(dbObject);
+		long start = MongoMetrics.start();
+		try {
+			MongoRegistry.collection(collectionName).remove(dbObject);
+		} catch (RuntimeException e) {
+			MongoMetrics.failed(collectionName, MongoMetrics.DELETE, start);
+			throw e;
+		}
+		MongoMetrics.record(collectionName, MongoMetrics.DELETE, start, 1);
 	}
 	
 	/**
@@ -296,9 +1160,17 @@ public class MongoDB {
 	 * @return - the number of models deleted
 	 */
 	public static long delete(String collectionName, String query, Object[] params) {
+		MongoWriteBehind.flush(collectionName);
 		DBObject dbObject = createQueryDbObject(query, params);
-		long deleteCount = db().getCollection(collectionName).getCount(dbObject);
-		db().getCollection(collectionName).remove(dbObject);
+		long deleteCount = count(collectionName, dbObject);
+		long start = MongoMetrics.start();
+		try {
+			MongoRegistry.collection(collectionName).remove(dbObject);
+		} catch (RuntimeException e) {
+			MongoMetrics.failed(collectionName, MongoMetrics.DELETE, start);
+			throw e;
+		}
+		MongoMetrics.record(collectionName, MongoMetrics.DELETE, start, deleteCount);
 		
 		return deleteCount;
 	}
@@ -310,39 +1182,140 @@ public class MongoDB {
 	 * @return - the number of models deleted
 	 */
 	public static long deleteAll(String collectionName) {
+		MongoWriteBehind.flush(collectionName);
 		long deleteCount = count(collectionName);
-		db().getCollection(collectionName).drop();
+		long start = MongoMetrics.start();
+		try {
+			MongoRegistry.collection(collectionName).drop();
+		} catch (RuntimeException e) {
+			MongoMetrics.failed(collectionName, MongoMetrics.DELETE, start);
+			throw e;
+		}
+		MongoMetrics.record(collectionName, MongoMetrics.DELETE, start, deleteCount);
 		return deleteCount;
 	}
 	
 	/**
-	 * Creates a query object for use with other methods
+	 * Updates the models matching a query string in place, without reading
+	 * them. The query and the update share their parameters, for example
+	 * <code>update("car", "name = ?1", "inc topSpeed 5, set colour ?2", new Object[]{"Toyota", "red"})</code>.
+	 * 
+	 * @param collectionName - the collection
+	 * @param query - the query string
+	 * @param update - the update string, see {@link MongoUpdate}
+	 * @param params - parameters for the query and update strings
+	 * @return - the number of models matched, -1 when the write concern of the collection is unacknowledged
+	 */
+	public static long update(String collectionName, String query, String update, Object[] params) {
+		return update(collectionName, createQueryDbObject(query, params), createUpdateDbObject(update, params));
+	}
+	
+	/**
+	 * Updates the models matching a query object in place.
+	 * 
+	 * @param collectionName - the collection
+	 * @param query - the query object
+	 * @param update - the update object
+	 * @return - the number of models matched, -1 when the write concern of the collection is unacknowledged
+	 */
+	public static long update(String collectionName, DBObject query, DBObject update) {
+		MongoWriteBehind.flush(collectionName);
+		DBCollection collection = MongoRegistry.collection(collectionName);
+		long start = MongoMetrics.start();
+		try {
+			// sent with the write concern of the collection, getN() would ask the server
+			// for the last error, which an unacknowledged write does not wait for
+			boolean acknowledged = collection.getWriteConcern().callGetLastError();
+			WriteResult result = collection.update(query, update, false, true);
+			long n = acknowledged ? result.getN() : -1;
+			MongoMetrics.record(collectionName, MongoMetrics.MODIFY, start, Math.max(n, 0));
+			return n;
+		} catch (RuntimeException e) {
+			MongoMetrics.failed(collectionName, MongoMetrics.MODIFY, start);
+			throw e;
+		}
+	}
+	
+	/**
+	 * Updates a model in place, without reading it.
+	 * 
+	 * @param collectionName - the collection
+	 * @param id - the id of the model
+	 * @param update - the update string, see {@link MongoUpdate}
+	 * @param params - parameters for the update string
+	 * @return - false when there is no model with this id, true when the write concern of the collection is unacknowledged
+	 */
+	public static boolean updateById(String collectionName, ObjectId id, String update, Object[] params) {
+		return update(collectionName, new BasicDBObject("_id", id), createUpdateDbObject(update, params)) != 0;
+	}
+	
+	/**
+	 * Updates the first model matching a query string and returns it, in
+	 * one atomic operation.
+	 * 
+	 * @param <T> - the type of the model
+	 * @param collectionName - the collection
+	 * @param query - the query string
+	 * @param update - the update string, see {@link MongoUpdate}
+	 * @param params - parameters for the query and update strings
+	 * @param returnNew - true to return the model as updated, false as it was before
+	 * @param clazz - the type of the model
+	 * @return - the model, null when none matched
+	 */
+	public static <T extends MongoModel> T findAndModify(String collectionName, String query, String update, Object[] params, boolean returnNew, Class<T> clazz) {
+		return findAndModify(collectionName, createQueryDbObject(query, params), null, createUpdateDbObject(update, params), returnNew, false, clazz);
+	}
+	
+	/**
+	 * Updates the first model matching a query object in a given order and
+	 * returns it, in one atomic operation.
+	 * 
+	 * @param <T> - the type of the model
+	 * @param collectionName - the collection
+	 * @param query - the query object
+	 * @param order - the order in which the first model is taken, null for any
+	 * @param update - the update object
+	 * @param returnNew - true to return the model as updated, false as it was before
+	 * @param upsert - true to insert a model when none matched
+	 * @param clazz - the type of the model
+	 * @return - the model, null when none matched
+	 */
+	public static <T extends MongoModel> T findAndModify(String collectionName, DBObject query, DBObject order, DBObject update, boolean returnNew, boolean upsert, Class<T> clazz) {
+		MongoWriteBehind.flush(collectionName);
+		long start = MongoMetrics.start();
+		DBObject dbObject;
+		try {
+			dbObject = MongoRegistry.collection(collectionName).findAndModify(query, null, order, false, update, returnNew, upsert);
+		} catch (RuntimeException e) {
+			MongoMetrics.failed(collectionName, MongoMetrics.MODIFY, start);
+			throw e;
+		}
+		MongoMetrics.record(collectionName, MongoMetrics.MODIFY, start, dbObject != null ? 1 : 0);
+		return dbObject == null ? null : MongoCodec.fromDBObject(dbObject, clazz);
+	}
+	
+	/**
+	 * Creates an update object for use with other methods. The update string
+	 * is compiled once and cached, see {@link MongoQueryCache}.
+	 * 
+	 * @param update - the update string
+	 * @param values - values for the update
+	 * @return - a DBObject representing the update
+	 */
+	public static DBObject createUpdateDbObject(String update, Object[] values) {
+		return MongoQueryCache.getUpdate(update).bind(values);
+	}
+	
+	/**
+	 * Creates a query object for use with other methods. The query string
+	 * is compiled once and cached, see {@link MongoQueryCache}.
 	 * 
 	 * @param query - the query string
 	 * @param values - values for the query
 	 * @return - a DBObject representing the query
 	 */
 	public static DBObject createQueryDbObject(String query, Object[] values) {
-		
-		DBObject object = null;
-
-		if (query.startsWith("by")) {
-	    	String keys = extractKeys(query);
-	    	
-			object = new BasicDBObject(); 	
-	    	String [] keyList = keys.split(",");
-	    	if (keyList.length > values.length){
-	    		throw new IllegalArgumentException("Not enough values for the keys provided");
-	    	}
-			for (int i = 0; i < keyList.length; i++){
-				object.put(keyList[i].trim(), values[i]);
-			}
-		}
-		else {
-			object = parseQuery(query, values);
-		}
-		
-    	return object;
+		return MongoQueryCache.get(query).bind(values);
     }
 	
 	/**
@@ -378,7 +1351,7 @@ public class MongoDB {
 	 * @param queryString - the query string
 	 * @return - a comma seperated string of parameter names
 	 */
-	private static String extractKeys(String queryString) {
+	static String extractKeys(String queryString) {
 		queryString = queryString.substring(2);
 		List<String> keys = new ArrayList<String>();
         String[] parts = queryString.split("And");
@@ -393,406 +1366,4 @@ public class MongoDB {
         return StringUtils.join(keys.toArray(), ",");
 	}
 
-	/**
-	 * A class to link a list of conditions and the logic applied 
-	 * (required if more than one condition in the list)   
-	 */
-	private static class LogicalBlock {
-		private BasicDBList conds = new BasicDBList();
-		private String logic;
-	}
-	
-	/**
-	 * Extracts parameter names from a query string
-	 * 
-	 * @param queryString - the query string
-	 * @return The BasicDBObject representing the query in Java Mongo DB format
-	 */
-	private static DBObject parseQuery(String queryString, Object[] values) {
-		
-		LinkedList<LogicalBlock> lExprQueue = new LinkedList<LogicalBlock>();
-		lExprQueue.add(new LogicalBlock());
-		
-		String lLastKey = null;
-		String lLastOperator = null;
-		Object lLastValue = null;
-		boolean lLastNegative = false;
-		
-		String lParsedQuery = queryString;
-		
-        while (lParsedQuery.length() > 0) {
-    		if (lLastKey == null) {
-        		// space
-    			while (lParsedQuery.startsWith(" ")) {
-    				lParsedQuery = lParsedQuery.substring(1);
-    			}
-            	if (lParsedQuery.toUpperCase().startsWith("OR")) {
-    				if (lExprQueue.getLast().logic == null) {
-    					lExprQueue.getLast().logic = "$or";
-    				}
-    				else if (!lExprQueue.getLast().logic.equals("$or")) {
-    		        	throw new IllegalArgumentException("Brackets needded to mix AND and OR operators at " + lParsedQuery + ", in " + queryString);
-    				}
-    				lParsedQuery = lParsedQuery.substring(2);
-    			}
-            	else if (lParsedQuery.toUpperCase().startsWith("AND")) {
-    				if (lExprQueue.getLast().logic == null) {
-    					lExprQueue.getLast().logic = "$and";
-    				}
-    				else if (!lExprQueue.getLast().logic.equals("$and")) {
-    		        	throw new IllegalArgumentException("Brackets needded to mix AND and OR operators at " + lParsedQuery + ", in " + queryString);
-    				}
-    				lParsedQuery = lParsedQuery.substring(3);
-            	}
-            	else if (lParsedQuery.startsWith("(")) { // logical parenthesis
-        			lExprQueue.add(new LogicalBlock());
-        			lParsedQuery = lParsedQuery.substring(1);
-        		}
-            	else {
-                	int lFirstSpace = lParsedQuery.indexOf(' ');
-            		if (lFirstSpace > 0) {
-            			lLastKey = lParsedQuery.substring(0, lFirstSpace);
-            			lParsedQuery = lParsedQuery.substring(lFirstSpace);
-            		}
-            		else {
-            			throw new IllegalArgumentException("Missing space after key it at " + lParsedQuery + " , in " + queryString);
-            		}
-            	}
-    		}
-    		else if (lLastOperator == null) {
-    			String part = null;
-        		int lFirstSpace = lParsedQuery.indexOf(' ');
-        		if (lFirstSpace > 0) {
-        			part = lParsedQuery.substring(0, lFirstSpace);
-        		}
-        		else {
-        			throw new IllegalArgumentException("Missing space after operator at " + lParsedQuery + ", in " + queryString);
-        		}
-    			
-    			if (part.equals("=") || part.equals("==")) {
-    				lLastOperator = "";  // default operator
-    			}
-    			else if (part.equals("!=") || part.equals("<>")) {
-    				lLastOperator = "$ne";
-    			}
-    			else if (part.equals(">")) {
-    				lLastOperator = "$gt";
-    			}
-    			else if (part.equals(">=")) {
-    				lLastOperator = "$gte";
-    			}
-    			else if (part.equals("<")) {
-    				lLastOperator = "$lt";
-    			}
-    			else if (part.equals("<=")) {
-    				lLastOperator = "$lte";
-    			}
-    			else if (part.equalsIgnoreCase("LIKE")) {
-    				lLastOperator = "$regex";
-    			}
-    			else if (part.equalsIgnoreCase("IN")) {
-    				lLastOperator = "$in";
-    			}
-    			else if (part.equalsIgnoreCase("IS")) {
-    				lLastOperator = "IS";
-    			}
-    			else if (part.equalsIgnoreCase("NOT")) {
-    				lLastOperator = "NOT";
-    			}
-    			else {
-    				throw new IllegalArgumentException("Unsupported operator at " + lParsedQuery + ", in " + queryString);
-    			}
-    			lParsedQuery = lParsedQuery.substring(lFirstSpace);
-    		}
-    		else if (lLastOperator.equals("IS")) {
-    			if (lParsedQuery.toUpperCase().startsWith("NULL")) { 
-    				lLastOperator = ""; // default operator 
-    				lLastValue = ""; // default value => change into null when building object
-    				lParsedQuery = lParsedQuery.substring(4);
-    			}
-    			else if (lParsedQuery.toUpperCase().startsWith("NOT")) {
-    				lLastOperator = "ISNOT";
-    				lParsedQuery = lParsedQuery.substring(3);
-    			}
-    			else {
-    				throw new IllegalArgumentException("Unsupported operator after IS at " + lParsedQuery + ", in " + queryString);
-    			}
-    		}
-    		else if (lLastOperator.equals("NOT")) {
-    			if (lParsedQuery.toUpperCase().startsWith("LIKE")) { // native mongo operator
-    				lLastOperator = "$regex";
-    				lLastNegative = true;
-    				lParsedQuery = lParsedQuery.substring(4);
-    			}
-    			else if (lParsedQuery.toUpperCase().startsWith("IN")) {
-    				lLastOperator = "$nin";
-    				lParsedQuery = lParsedQuery.substring(2);
-    			}
-    			else {
-    				throw new IllegalArgumentException("Unsupported operator after NOT at " + lParsedQuery + ", in " + queryString);
-    			}
-    		}
-    		else if (lLastOperator.equals("ISNOT")) {
-    			if (lParsedQuery.toUpperCase().startsWith("NULL")) { 
-    				lLastOperator = "$ne";
-    				lLastValue = ""; // default value => change into null when building object
-        			lParsedQuery = lParsedQuery.substring(4);
-    			}
-    			else {
-    				throw new IllegalArgumentException("Unsupported operator after IS NOT at " + lParsedQuery + ", in " + queryString);
-    			}
-    		}
-    		else if (lLastValue == null) {
-    			if (lParsedQuery.startsWith("?")) { //JPA like param numbering
-        			int nb = 0;
-        			lParsedQuery = lParsedQuery.substring(1);
-        			String nbStr = lParsedQuery;
-        			
-					int lSp = lParsedQuery.indexOf(' ');
-					int lEnd = lParsedQuery.indexOf(')');
-					int lMin = -1;
-					if (lSp >= 0) lMin = lSp;
-					if (lEnd >= 0 && (lEnd < lMin || lMin < 0)) lMin = lEnd;
-					try {
-						if (lMin >= 0) {
-							nbStr = nbStr.substring(0, lMin);
-						}
-						nb = Integer.parseInt(nbStr);
-					}
-					catch (NumberFormatException nfe) {
-						throw new IllegalArgumentException("Unsupported parameter number at  " + lParsedQuery + ", in " + queryString);
-					}
-					if (nb > values.length) {
-        				throw new IllegalArgumentException("Missing parameter number at " + lParsedQuery + ", in " + queryString);
-					}
-					lLastValue = values[nb - 1];
-					lParsedQuery = lParsedQuery.substring(String.valueOf(nb).length());
-    			}
-    			else if (lParsedQuery.startsWith("(")) { // list
-    				lLastValue = new ArrayList();
-    				lParsedQuery = lParsedQuery.substring(1);
-    				while (!lParsedQuery.isEmpty()) {
-    					if (lParsedQuery.startsWith(")")) { // end
-							lParsedQuery = lParsedQuery.substring(1);
-							break;
-    					}
-    					else if (lParsedQuery.startsWith(",")) { // next
-							lParsedQuery = lParsedQuery.substring(1);
-    					}
-    					else if (lParsedQuery.startsWith(" ")) { // space
-							lParsedQuery = lParsedQuery.substring(1);
-    					}
-    					else if (lParsedQuery.startsWith("'")) { //chain 
-    	    				lParsedQuery = lParsedQuery.substring(1);
-    						char lLastChar = 0;
-    						StringBuilder lSb = new StringBuilder();
-    						while (!lParsedQuery.isEmpty()) {
-    							char lCurrChar = lParsedQuery.charAt(0);
-    							lParsedQuery = lParsedQuery.substring(1);
-    							if (lCurrChar == '\'' && lLastChar != '\\') {
-        							lLastChar = lCurrChar;
-    								break;
-    							}
-    							else {
-        							lLastChar = lCurrChar;
-    								lSb.append(lCurrChar);
-    							}
-    						}
-    						if (lLastChar == '\'') {
-        						((List)lLastValue).add(lSb.toString());
-    						}
-    						else {
-    							throw new IllegalArgumentException("Unsupported list string value at  " + lParsedQuery + ", in " + queryString);
-    						}
-    					}
-    					else { // number
-    						int lSp = lParsedQuery.indexOf(' ');
-    						int lNext = lParsedQuery.indexOf(',');
-    						int lEnd = lParsedQuery.indexOf(')');
-    						int lMin = -1;
-    						if (lSp >= 0) lMin = lSp;
-    						if (lNext >= 0 && (lNext < lMin  || lMin < 0)) lMin = lNext;
-    						if (lEnd >= 0 && (lEnd < lMin || lMin < 0)) lMin = lEnd;
-    						try {
-    							String lNumberStr = lParsedQuery;
-    							if (lMin >= 0) {
-    								lNumberStr = lNumberStr.substring(0, lMin);
-    							}
-    							((List)lLastValue).add(Double.valueOf(lNumberStr));
-    						}
-    						catch (NumberFormatException nfe) {
-    							throw new IllegalArgumentException("Unsupported list number value at  " + lParsedQuery + ", in " + queryString);
-    						}
-    						if (lMin >= 0) {
-    							lParsedQuery = lParsedQuery.substring(lMin);
-    						}
-    						else {
-    							lParsedQuery = "";
-    						}
-    					}
-    				}
-    			}
-    			else { // single/simple type
-    				if (lParsedQuery.startsWith("'")) { //chain 
-	    				lParsedQuery = lParsedQuery.substring(1);
-						char lLastChar = 0;
-						StringBuilder lSb = new StringBuilder();
-						while (!lParsedQuery.isEmpty()) {
-							char lCurrChar = lParsedQuery.charAt(0);
-							lParsedQuery = lParsedQuery.substring(1);
-							if (lCurrChar == '\'' && lLastChar != '\\') {
-    							lLastChar = lCurrChar;
-								break;
-							}
-							else {
-    							lLastChar = lCurrChar;
-								lSb.append(lCurrChar);
-							}
-						}
-						if (lLastChar == '\'') {
-							lLastValue = lSb.toString();
-						}
-						else {
-							throw new IllegalArgumentException("Unsupported string value at  " + lParsedQuery + ", in " + queryString);
-						}
-
-    				}
-    				else { // number
-						int lSp = lParsedQuery.indexOf(' ');
-						int lEnd = lParsedQuery.indexOf(')');
-						int lMin = -1;
-						if (lSp >= 0) lMin = lSp;
-						if (lEnd >= 0 && (lEnd < lMin || lMin < 0)) lMin = lEnd;
-						try {
-							String lNumberStr = lParsedQuery;
-							if (lMin >= 0) {
-								lNumberStr = lNumberStr.substring(0, lMin);
-							}
-							lLastValue = Double.valueOf(lNumberStr);
-						}
-						catch (NumberFormatException nfe) {
-							throw new IllegalArgumentException("Unsupported number value at  " + lParsedQuery + ", in " + queryString);
-						}
-						if (lMin >= 0) {
-							lParsedQuery = lParsedQuery.substring(lMin);
-						}
-						else {
-							lParsedQuery = "";
-						}
-    				}
-    			}
-    		}
-    		
-    		if (lLastValue != null) {
-    			// on a tout pour construire une condition
-    			BasicDBObject lCond = new BasicDBObject();
-    			if (lLastOperator.equals("") || lLastOperator.equals("$eq"))  { // default operator
-    				if (lLastValue.equals("")) {
-    					lCond.put(lLastKey, null); // x is null
-    				}
-    				else {
-    					lCond.put(lLastKey, lLastValue); // x = y
-    				}
-    			}
-    			else if (lLastOperator.equals("$ne"))  {
-    				if (lLastValue.equals("")) {
-    					lCond.put(lLastKey, new BasicDBObject("$ne", null)); // x is not null
-    				}
-    				else {
-    					lCond.put(lLastKey, new BasicDBObject("$ne", lLastValue)); // x != y
-    				}
-    			}
-    			else if (lLastOperator.equals("$regex"))  { 
-    				// transform sql syntax to Pattern
-    				String lExpr = (String)lLastValue;
-    				if (lExpr.startsWith("%")) {
-    					lExpr = ".*" + lExpr.substring(1);
-    				}
-    				else {
-    					lExpr = "^" + lExpr;
-    				}
-    				if (lExpr.endsWith("%")) {
-    					lExpr = lExpr.substring(0, lExpr.length()-1) + ".*";
-    				}
-    				else {
-    					lExpr = lExpr + "$";
-    				}
-    				// inside chars
-    				lExpr = lExpr.replace('?', '.');
-					lExpr = lExpr.replaceAll("%", ".*");
-    				if (lLastNegative) {
-    					lCond.put(lLastKey, new BasicDBObject("$not", Pattern.compile(lExpr))); // x not like y
-    				}
-    				else {
-    					lCond.put(lLastKey,  Pattern.compile(lExpr)); // x like y
-    				}
-    			}
-    			else if (lLastOperator.equals("$in") || lLastOperator.equals("$nin"))  {
-    				BasicDBList inList = new BasicDBList();
-    				inList.addAll((List)lLastValue);
-					lCond.put(lLastKey, new BasicDBObject(lLastOperator, inList)); // x not in (y, z)
-    			}
-    			else { // default case
-					lCond.put(lLastKey, new BasicDBObject(lLastOperator, lLastValue)); // x ? z
-    			}
-    			// add condition to the list of current logical block 
-    			lExprQueue.getLast().conds.add(lCond);
-    			
-        		lLastKey = null;
-				lLastOperator = null;
-				lLastValue = null;
-				lLastNegative = false;
-    		}
-    		// space
-			while (lParsedQuery.startsWith(" ")) {
-				lParsedQuery = lParsedQuery.substring(1);
-			}
-			// closing logical block
-        	if (lParsedQuery.startsWith(")")) {
-        		// requires at least two blocks : current and parent
-        		if (lExprQueue.size() <= 1) {
-		        	throw new IllegalArgumentException("Missing brackets at " + lParsedQuery + ", in " + queryString);
-        		}
-        		LogicalBlock lClosedBlock = lExprQueue.pollLast();
-        		LogicalBlock lParentBlock = lExprQueue.getLast();
-        		if (lClosedBlock.logic == null) {
-        			if (lClosedBlock.conds.size() == 1) {
-            			lParentBlock.conds.add(lClosedBlock.conds.iterator().next());
-        			}
-        			else {
-    		        	throw new IllegalArgumentException("Missing logic at " + lParsedQuery + ", in " + queryString);
-        			}
-        		}
-        		else {
-        			// encapsulate condidtion and logic in parent
-        			lParentBlock.conds.add(new BasicDBObject(lClosedBlock.logic, lClosedBlock.conds));
-        		}
-				lParsedQuery = lParsedQuery.substring(1);
-        	}
-        	// space
-			while (lParsedQuery.startsWith(" ")) {
-				lParsedQuery = lParsedQuery.substring(1);
-			}
-        }
-        
-        if (lExprQueue.size() != 1) {
-        	throw new IllegalArgumentException("Not enough closing brackets in global logic in " + queryString);
-        }
-        LogicalBlock lGlobalExpr = lExprQueue.pollLast();
-        
-        if (lGlobalExpr.logic == null) {
-        	// requires only one condition in the block
-        	if (lGlobalExpr.conds.size() == 1) {
-            	return (BasicDBObject)lGlobalExpr.conds.iterator().next();
-        	}
-        	else {
-            	throw new IllegalArgumentException("Missing logical operators in global logic in" + queryString);
-        	}
-        }
-        else {
-        	return new BasicDBObject(lGlobalExpr.logic, lGlobalExpr.conds);
-        }
-	}
-
-	
-} 
+}
\ No newline at end of file
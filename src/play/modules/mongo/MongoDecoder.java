@@ -0,0 +1,321 @@
+package play.modules.mongo;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Date;
+
+import org.bson.BSON;
+import org.bson.types.ObjectId;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBDecoder;
+import com.mongodb.DBDecoderFactory;
+import com.mongodb.DBObject;
+import com.mongodb.DefaultDBDecoder;
+
+/**
+ * Decodes the documents read by a cursor straight into models. The names
+ * of the values are matched against the fields of the model without
+ * creating Strings for them, and the values are set on the model as they
+ * are read, instead of building a DBObject first and converting it
+ * afterwards. Nested documents are read the same way when their class is
+ * mapped by the codec, other documents and arrays are built as DBObjects
+ * and converted.
+ *
+ * The cursor returns a {@link ModelObject} holding the model for each
+ * document, along with the values the model has no field for.
+ * {@link MongoCodec#fromDBObject} returns its model as is. Documents
+ * holding types other than the common ones (binary data, regular
+ * expressions, code, DBRefs...) are decoded by the driver as usual.
+ */
+public class MongoDecoder extends DefaultDBDecoder {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final byte DOUBLE = 0x01;
+	private static final byte STRING = 0x02;
+	private static final byte DOCUMENT = 0x03;
+	private static final byte ARRAY = 0x04;
+	private static final byte OBJECT_ID = 0x07;
+	private static final byte BOOLEAN = 0x08;
+	private static final byte DATE = 0x09;
+	private static final byte NULL = 0x0A;
+	private static final byte INT = 0x10;
+	private static final byte LONG = 0x12;
+
+	private final MongoCodec codec;
+
+	// the document being read, a decoder is only used by one cursor at a time
+	private byte[] buffer = new byte[1024];
+	private int pos;
+
+	private MongoDecoder(MongoCodec codec) {
+		this.codec = codec;
+	}
+
+	/**
+	 * Returns a factory of decoders creating instances of a class. Classes
+	 * mapped by Jackson are decoded as usual.
+	 *
+	 * @param clazz - the type of the decoded models
+	 * @return - the decoder factory to set on a DBCursor
+	 */
+	public static DBDecoderFactory factory(Class<?> clazz) {
+		final MongoCodec codec = MongoCodec.of(clazz);
+		if (!codec.isDirect()) {
+			return DefaultDBDecoder.FACTORY;
+		}
+		return new DBDecoderFactory() {
+			public DBDecoder create() {
+				return new MongoDecoder(codec);
+			}
+		};
+	}
+
+	@Override
+	public DBObject decode(byte[] b, DBCollection collection) {
+		if (collection != null) {
+			MongoMetrics.read(collection.getName(), b.length);
+		}
+		if (BSON.hasDecodeHooks()) {
+			return super.decode(b, collection);
+		}
+		try {
+			pos = 0;
+			byte[] previous = buffer;
+			buffer = b;
+			try {
+				return readModelObject();
+			} finally {
+				buffer = previous;
+			}
+		} catch (Unsupported e) {
+			return super.decode(b, collection);
+		}
+	}
+
+	@Override
+	public DBObject decode(InputStream in, DBCollection collection) throws IOException {
+		readFully(in, 0, 4);
+		pos = 0;
+		int length = readInt();
+		if (length > buffer.length) {
+			byte[] larger = new byte[Math.max(length, buffer.length * 2)];
+			System.arraycopy(buffer, 0, larger, 0, 4);
+			buffer = larger;
+		}
+		readFully(in, 4, length - 4);
+		if (collection != null) {
+			MongoMetrics.read(collection.getName(), length);
+		}
+
+		if (BSON.hasDecodeHooks()) {
+			return super.decode(buffer, collection);
+		}
+		try {
+			pos = 0;
+			return readModelObject();
+		} catch (Unsupported e) {
+			return super.decode(buffer, collection);
+		}
+	}
+
+	private void readFully(InputStream in, int offset, int length) throws IOException {
+		while (length > 0) {
+			int n = in.read(buffer, offset, length);
+			if (n < 0) {
+				throw new IOException("Unexpected end of the document");
+			}
+			offset += n;
+			length -= n;
+		}
+	}
+
+	private ModelObject readModelObject() {
+		ModelObject dbObject = new ModelObject();
+		dbObject.model = readObject(codec, dbObject);
+		if (dbObject.model instanceof MongoModel) {
+			// kept as is to find what changed when the model is saved
+			((MongoModel) dbObject.model).setSnapshot(Arrays.copyOf(buffer, pos));
+		}
+		return dbObject;
+	}
+
+	/**
+	 * Reads a document into a new instance of the class of a codec.
+	 *
+	 * @param codec - the codec of the class
+	 * @param extra - where to put the values the class has no field for, null to drop them
+	 * @return - the new instance
+	 */
+	private Object readObject(MongoCodec codec, BasicDBObject extra) {
+		int end = pos + readInt() - 1;
+		Object object = codec.newInstance();
+		byte[][] names = codec.getNameBytes();
+		while (pos < end) {
+			byte type = buffer[pos++];
+			int nameStart = pos;
+			int nameEnd = nameEnd();
+			int index = indexOf(names, nameStart, nameEnd);
+			if (index >= 0) {
+				Class<?> nested = codec.getNestedType(index);
+				if (type == DOCUMENT && nested != null) {
+					codec.setDecoded(object, index, readObject(MongoCodec.of(nested), null));
+				}
+				else {
+					codec.set(object, index, readValue(type));
+				}
+			}
+			else {
+				String name = new String(buffer, nameStart, nameEnd - nameStart, UTF8);
+				Object value = readValue(type);
+				if (!codec.set(object, name, value) && extra != null) {
+					extra.put(name, value);
+				}
+			}
+		}
+		pos++;
+		return object;
+	}
+
+	/**
+	 * Reads a document or an array which is not mapped to a class.
+	 */
+	private Object readDBObject(boolean array) {
+		int end = pos + readInt() - 1;
+		BasicDBList list = array ? new BasicDBList() : null;
+		BasicDBObject dbObject = array ? null : new BasicDBObject();
+		while (pos < end) {
+			byte type = buffer[pos++];
+			int nameStart = pos;
+			int nameEnd = nameEnd();
+			if (array) {
+				list.add(readValue(type));
+			}
+			else {
+				String name = new String(buffer, nameStart, nameEnd - nameStart, UTF8);
+				dbObject.put(name, readValue(type));
+			}
+		}
+		pos++;
+		if (array) {
+			return list;
+		}
+		if (dbObject.containsField("$ref") && dbObject.containsField("$id")) {
+			// DBRefs are resolved by the driver
+			throw Unsupported.INSTANCE;
+		}
+		return dbObject;
+	}
+
+	private Object readValue(byte type) {
+		switch (type) {
+		case DOUBLE:
+			return Double.longBitsToDouble(readLong());
+		case STRING:
+			int length = readInt();
+			String s = new String(buffer, pos, length - 1, UTF8);
+			pos += length;
+			return s;
+		case DOCUMENT:
+			return readDBObject(false);
+		case ARRAY:
+			return readDBObject(true);
+		case OBJECT_ID:
+			byte[] id = new byte[12];
+			System.arraycopy(buffer, pos, id, 0, 12);
+			pos += 12;
+			return new ObjectId(id);
+		case BOOLEAN:
+			return buffer[pos++] != 0;
+		case DATE:
+			return new Date(readLong());
+		case NULL:
+			return null;
+		case INT:
+			return readInt();
+		case LONG:
+			return readLong();
+		default:
+			throw Unsupported.INSTANCE;
+		}
+	}
+
+	/**
+	 * Skips the name of a value.
+	 *
+	 * @return - the position of the trailing 0 of the name
+	 */
+	private int nameEnd() {
+		int end = pos;
+		while (buffer[end] != 0) {
+			end++;
+		}
+		pos = end + 1;
+		return end;
+	}
+
+	private int indexOf(byte[][] names, int start, int end) {
+		int length = end - start;
+		for (int i = 0; i < names.length; i++) {
+			byte[] name = names[i];
+			if (name.length == length) {
+				int j = 0;
+				while (j < length && name[j] == buffer[start + j]) {
+					j++;
+				}
+				if (j == length) {
+					return i;
+				}
+			}
+		}
+		return -1;
+	}
+
+	private int readInt() {
+		int i = (buffer[pos] & 0xff) | ((buffer[pos + 1] & 0xff) << 8) | ((buffer[pos + 2] & 0xff) << 16) | ((buffer[pos + 3] & 0xff) << 24);
+		pos += 4;
+		return i;
+	}
+
+	private long readLong() {
+		long low = readInt() & 0xffffffffL;
+		long high = readInt();
+		return (high << 32) | low;
+	}
+
+	/**
+	 * Thrown on the types left to the driver.
+	 */
+	private static class Unsupported extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		static final Unsupported INSTANCE = new Unsupported();
+
+		@Override
+		public synchronized Throwable fillInStackTrace() {
+			return this;
+		}
+	}
+
+	/**
+	 * The document returned by the cursor in place of a DBObject, holding
+	 * the values the model has no field for.
+	 */
+	public static class ModelObject extends BasicDBObject {
+		private static final long serialVersionUID = 1L;
+
+		private transient Object model;
+
+		/**
+		 * @return - the model decoded from the document
+		 */
+		public Object getModel() {
+			return model;
+		}
+	}
+}
@@ -2,12 +2,19 @@ package play.modules.mongo;
 
 
 
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.commons.lang.StringUtils;
+
 import javassist.CtClass;
 import javassist.CtField;
 import javassist.CtMethod;
 import javassist.Modifier;
+import javassist.NotFoundException;
 import javassist.bytecode.AnnotationsAttribute;
 import javassist.bytecode.annotation.Annotation;
+import javassist.bytecode.annotation.StringMemberValue;
 import play.Logger;
 import play.classloading.ApplicationClasses.ApplicationClass;
 import play.classloading.enhancers.Enhancer;
@@ -24,6 +31,12 @@ public class MongoEnhancer extends Enhancer {
 	
 	public static final String ENTITY_ANNOTATION_NAME = "play.modules.mongo.MongoEntity";
 	public static final String ENTITY_ANNOTATION_VALUE = "value";
+	public static final String ENTITY_ANNOTATION_WRITE_CONCERN = "writeConcern";
+	public static final String ENTITY_ANNOTATION_READ_PREFERENCE = "readPreference";
+	
+	public static final String FIND_BY_PREFIX = "findBy";
+	public static final String COUNT_BY_PREFIX = "countBy";
+
 	
 	@Override
 	public void enhanceThisClass(ApplicationClass applicationClass) throws Exception {
@@ -62,6 +75,23 @@ public class MongoEnhancer extends Enhancer {
         	collectionName = annotation.getMemberValue(ENTITY_ANNOTATION_VALUE).toString();
         }
 
+        // fail now rather than when the collection is first used
+        for (String option : new String[] { ENTITY_ANNOTATION_WRITE_CONCERN, ENTITY_ANNOTATION_READ_PREFERENCE }) {
+        	if (annotation.getMemberValue(option) != null) {
+        		String name = ((StringMemberValue) annotation.getMemberValue(option)).getValue();
+        		try {
+        			if (option.equals(ENTITY_ANNOTATION_WRITE_CONCERN)) {
+        				MongoRegistry.writeConcern(name);
+        			}
+        			else {
+        				MongoRegistry.readPreference(name);
+        			}
+        		} catch (IllegalArgumentException e) {
+        			throw new IllegalArgumentException(entityName + " has an invalid " + option + " " + name, e);
+        		}
+        	}
+        }
+
         Logger.debug( this.getClass().getName() + "-->enhancing MongoEntity-->" + ctClass.getName() + "-->collection-->" + collectionName);
         
         // getCollectionName
@@ -81,6 +111,9 @@ public class MongoEnhancer extends Enhancer {
         CtMethod set_id = CtMethod.make("public void set_id(org.bson.types.ObjectId _id) { this._id = _id;}", ctClass);
         ctClass.addMethod(set_id);
         
+        // findByXxx / countByXxx, declared by the model, before findByIds is added
+        enhanceFinders(ctClass, entityName);
+        
         // count
         CtMethod count = CtMethod.make("public static long count() { return MongoDB.count(getCollectionName());}", ctClass);
         ctClass.addMethod(count);
@@ -89,6 +122,18 @@ public class MongoEnhancer extends Enhancer {
         CtMethod count2 = CtMethod.make("public static long count(java.lang.String query, java.lang.Object[] params) { return MongoDB.count(getCollectionName(), query, params); }", ctClass);
         ctClass.addMethod(count2);
 
+        // countUpTo
+        CtMethod countUpTo = CtMethod.make("public static long countUpTo(long limit, java.lang.String query, java.lang.Object[] params) { return MongoDB.count(getCollectionName(), query, params, limit); }", ctClass);
+        ctClass.addMethod(countUpTo);
+
+        // estimatedCount
+        CtMethod estimatedCount = CtMethod.make("public static long estimatedCount() { return MongoDB.estimatedCount(getCollectionName()); }", ctClass);
+        ctClass.addMethod(estimatedCount);
+
+        // exists
+        CtMethod exists = CtMethod.make("public static boolean exists(java.lang.String query, java.lang.Object[] params) { return MongoDB.exists(getCollectionName(), query, params); }", ctClass);
+        ctClass.addMethod(exists);
+
         // find        
         CtMethod find = CtMethod.make("public static MongoCursor find(String query, Object[] params){ return MongoDB.find(getCollectionName(),query,params,"+entityName+".class); }", ctClass);
         ctClass.addMethod(find);
@@ -97,6 +142,14 @@ public class MongoEnhancer extends Enhancer {
         CtMethod find2 = CtMethod.make("public static MongoCursor find(){ return MongoDB.find(getCollectionName(),"+entityName+".class); }", ctClass);
         ctClass.addMethod(find2);
       
+        // findByIds
+        CtMethod findByIds = CtMethod.make("public static java.util.List findByIds(java.util.Collection ids){ return MongoDB.findByIds(getCollectionName(),"+entityName+".class,ids); }", ctClass);
+        ctClass.addMethod(findByIds);
+        
+        // findMapByIds
+        CtMethod findMapByIds = CtMethod.make("public static java.util.Map findMapByIds(java.util.Collection ids){ return MongoDB.findMapByIds(getCollectionName(),"+entityName+".class,ids); }", ctClass);
+        ctClass.addMethod(findMapByIds);
+      
         // delete        
         CtMethod delete = CtMethod.make("public void delete() { MongoDB.delete(getCollectionName(), this); }", ctClass);
         ctClass.addMethod(delete);
@@ -113,6 +166,34 @@ public class MongoEnhancer extends Enhancer {
         CtMethod save = CtMethod.make("public MongoModel save() { return (MongoModel)MongoDB.save("+ entityName +".getCollectionName(), this); }", ctClass);
         ctClass.addMethod(save);
         
+        // save2
+        CtMethod save2 = CtMethod.make("public MongoModel save(com.mongodb.WriteConcern writeConcern) { return (MongoModel)MongoDB.save("+ entityName +".getCollectionName(), this, writeConcern); }", ctClass);
+        ctClass.addMethod(save2);
+        
+        // saveAll
+        CtMethod saveAll = CtMethod.make("public static java.util.List saveAll(java.util.List models) { return MongoDB.saveAll(getCollectionName(), models); }", ctClass);
+        ctClass.addMethod(saveAll);
+        
+        // saveAll2
+        CtMethod saveAll2 = CtMethod.make("public static java.util.List saveAll(java.util.List models, boolean ordered) { return MongoDB.saveAll(getCollectionName(), models, ordered); }", ctClass);
+        ctClass.addMethod(saveAll2);
+        
+        // update
+        CtMethod update = CtMethod.make("public static long update(String query, String update, Object[] params) { return MongoDB.update(getCollectionName(), query, update, params); }", ctClass);
+        ctClass.addMethod(update);
+        
+        // updateById
+        CtMethod updateById = CtMethod.make("public static boolean updateById(org.bson.types.ObjectId id, String update, Object[] params) { return MongoDB.updateById(getCollectionName(), id, update, params); }", ctClass);
+        ctClass.addMethod(updateById);
+        
+        // findAndModify
+        CtMethod findAndModify = CtMethod.make("public static MongoModel findAndModify(String query, String update, Object[] params) { return (MongoModel)MongoDB.findAndModify(getCollectionName(), query, update, params, true, "+ entityName +".class); }", ctClass);
+        ctClass.addMethod(findAndModify);
+        
+        // findAndModify2
+        CtMethod findAndModify2 = CtMethod.make("public static MongoModel findAndModify(boolean returnNew, String query, String update, Object[] params) { return (MongoModel)MongoDB.findAndModify(getCollectionName(), query, update, params, returnNew, "+ entityName +".class); }", ctClass);
+        ctClass.addMethod(findAndModify2);
+        
         // index
         CtMethod index = CtMethod.make("public static void index(String indexString) { MongoDB.index("+ entityName +".getCollectionName(), indexString); }", ctClass);
         ctClass.addMethod(index);
@@ -129,8 +210,122 @@ public class MongoEnhancer extends Enhancer {
         CtMethod getIndexes = CtMethod.make("public static String[] getIndexes() { return MongoDB.getIndexes("+ entityName +".getCollectionName()); }", ctClass);
         ctClass.addMethod(getIndexes);
         
+        // load
+        CtMethod load = CtMethod.make("public MongoModel load() { return (MongoModel)MongoDB.load(getCollectionName(), this); }", ctClass);
+        ctClass.addMethod(load);
+        
+        // lazily loaded fields
+        enhanceGetters(ctClass);
+        
         // Done.
         applicationClass.enhancedByteCode = ctClass.toBytecode(); 
         ctClass.detach();
 	}
+	
+	/**
+	 * Provides the bodies of the findByXxxAndYyy and countByXxxAndYyy static 
+	 * methods declared by the entity. The keys are checked against the fields
+	 * of the entity and the query object is built directly from the parameters,
+	 * so nothing is left to parse when the method is called.
+	 * 
+	 * @param ctClass
+	 * @param entityName
+	 * @throws Exception
+	 */
+	private void enhanceFinders(CtClass ctClass, String entityName) throws Exception {
+		Set<String> fieldNames = null;
+		
+		for (CtMethod method : ctClass.getDeclaredMethods()) {
+			String methodName = method.getName();
+			boolean find = methodName.startsWith(FIND_BY_PREFIX) && methodName.length() > FIND_BY_PREFIX.length();
+			boolean count = methodName.startsWith(COUNT_BY_PREFIX) && methodName.length() > COUNT_BY_PREFIX.length();
+			if ((!find && !count) || !Modifier.isStatic(method.getModifiers())) {
+				continue;
+			}
+			
+			if (fieldNames == null) {
+				fieldNames = getFieldNames(ctClass);
+			}
+			
+			String finder = entityName + "." + methodName;
+			String[] keys = MongoDB.extractKeys(methodName.substring(find ? 4 : 5)).split(",");
+			CtClass[] parameterTypes = method.getParameterTypes();
+			if (keys.length != parameterTypes.length) {
+				throw new IllegalArgumentException(finder + " has " + parameterTypes.length + " parameters for " + keys.length + " keys");
+			}
+			for (String key : keys) {
+				if (!fieldNames.contains(key)) {
+					throw new IllegalArgumentException(finder + " refers to the unknown field " + key);
+				}
+			}
+			
+			String returnType = method.getReturnType().getName();
+			if (find && !returnType.equals(PACKAGE_NAME + ".MongoCursor")) {
+				throw new IllegalArgumentException(finder + " must return a MongoCursor");
+			}
+			if (count && !returnType.equals("long")) {
+				throw new IllegalArgumentException(finder + " must return a long");
+			}
+			
+			StringBuilder body = new StringBuilder("{ com.mongodb.DBObject query = new com.mongodb.BasicDBObject()");
+			for (int i = 0; i < keys.length; i++) {
+				body.append(".append(\"").append(keys[i]).append("\", ($w)$").append(i + 1).append(")");
+			}
+			if (find) {
+				body.append("; return MongoDB.find(getCollectionName(), query, ").append(entityName).append(".class); }");
+			}
+			else {
+				body.append("; return MongoDB.count(getCollectionName(), query); }");
+			}
+			
+			Logger.debug("enhancing finder %s", finder);
+			method.setBody(body.toString());
+		}
+	}
+	
+	/**
+	 * Makes the getters of the public fields, usually generated by Play, 
+	 * load the rest of the document first when the model was read lazily 
+	 * with only some of its fields.
+	 * 
+	 * @param ctClass
+	 * @throws Exception
+	 */
+	private void enhanceGetters(CtClass ctClass) throws Exception {
+		for (CtField field : ctClass.getDeclaredFields()) {
+			int modifiers = field.getModifiers();
+			if (!Modifier.isPublic(modifiers) || Modifier.isStatic(modifiers)) {
+				continue;
+			}
+			
+			String getterName = "get" + StringUtils.capitalize(field.getName());
+			try {
+				CtMethod getter = ctClass.getDeclaredMethod(getterName);
+				if (getter.getParameterTypes().length == 0) {
+					getter.insertBefore("loadField(\"" + field.getName() + "\");");
+				}
+			} catch (NotFoundException e) {
+				// no getter
+			}
+		}
+	}
+	
+	/**
+	 * Returns the names of the fields of a class and of its super classes.
+	 * 
+	 * @param ctClass
+	 * @return
+	 * @throws Exception
+	 */
+	private Set<String> getFieldNames(CtClass ctClass) throws Exception {
+		Set<String> fieldNames = new HashSet<String>();
+		for (CtClass c = ctClass; c != null && !c.getName().equals(Object.class.getName()); c = c.getSuperclass()) {
+			for (CtField field : c.getDeclaredFields()) {
+				if (!Modifier.isStatic(field.getModifiers())) {
+					fieldNames.add(field.getName());
+				}
+			}
+		}
+		return fieldNames;
+	}
 }
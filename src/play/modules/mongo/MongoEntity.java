@@ -19,4 +19,20 @@ public @interface MongoEntity {
 	 */
 	String value() default "default";
 
+	/**
+	 * The write concern of the collection, the name of one of the
+	 * constants of com.mongodb.WriteConcern such as "UNACKNOWLEDGED" or
+	 * "MAJORITY". The default is the one of the connection.
+	 * @return
+	 */
+	String writeConcern() default "";
+
+	/**
+	 * The read preference of the collection, "primary", "primaryPreferred",
+	 * "secondary", "secondaryPreferred" or "nearest". The default is the
+	 * one of the connection.
+	 * @return
+	 */
+	String readPreference() default "";
+
 }
@@ -5,7 +5,6 @@ import play.Play;
 import play.classloading.ApplicationClasses;
 import play.db.Model;
 import play.test.Fixtures;
-import play.utils.Java;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -26,8 +25,7 @@ public class MongoFixtures extends Fixtures {
 
     private static void dropCollection(Class type) {
         try {
-            String collectionName = (String) Java.invokeStatic(type, "getCollectionName");
-            MongoDB.deleteAll(collectionName);
+            MongoDB.deleteAll(MongoRegistry.of(type).getCollectionName());
         } catch (Exception e) {
             Logger.error("Unable to delete collection for class: %s", type.getSimpleName());
         }
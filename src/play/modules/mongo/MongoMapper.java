@@ -1,5 +1,6 @@
 package play.modules.mongo;
 
+import java.lang.reflect.Type;
 import java.text.SimpleDateFormat;
 import java.util.GregorianCalendar;
 import java.util.Locale;
@@ -9,22 +10,32 @@ import java.util.TimeZone;
 import org.codehaus.jackson.map.DeserializationConfig;
 import org.codehaus.jackson.map.SerializationConfig;
 import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.type.JavaType;
 
 
 public class MongoMapper {
 
-	private static ObjectMapper mapper;
+	// created once, an ObjectMapper is thread safe once configured
+	private static final ObjectMapper mapper = new ObjectMapper();
+	
+	static {
+		mapper.configure(DeserializationConfig.Feature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+		mapper.configure(SerializationConfig.Feature.WRITE_DATES_AS_OBJECTS, true);
+	}
 	
 	public static <T> T convertValue(Object fromValue, Class<T> toValueType){
 		return mapper().convertValue(fromValue, toValueType);
 	}
 	
+	public static <T> T convertValue(Object fromValue, JavaType toValueType){
+		return mapper().<T>convertValue(fromValue, toValueType);
+	}
+	
+	static JavaType constructType(Type type){
+		return mapper().getTypeFactory().constructType(type);
+	}
+	
 	private static ObjectMapper mapper(){
-		if (mapper == null){
-			mapper = new ObjectMapper();
-			mapper.configure(DeserializationConfig.Feature.FAIL_ON_UNKNOWN_PROPERTIES, false);
-			mapper.configure(SerializationConfig.Feature.WRITE_DATES_AS_OBJECTS, true);
-		}
 		return mapper;
 	}
 	
@@ -0,0 +1,384 @@
+package play.modules.mongo;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+/**
+ * Counts the operations of each collection, their failures, the documents
+ * they read or wrote and their latency, shown on the /@status page. Turned
+ * off by <code>mongo.metrics=false</code>.
+ *
+ * The counters are recorded on the hot path by many threads at once: each
+ * thread adds to one of several stripes, on its own cache line, and the
+ * stripes are only summed when the metrics are read. The latencies are kept
+ * in a histogram of buckets growing by a quarter of a power of two, so that
+ * the percentiles are off by at most a quarter.
+ */
+public class MongoMetrics {
+
+	public static final String FIND = "find";
+	public static final String FIND_BY_ID = "findById";
+	public static final String COUNT = "count";
+	public static final String INSERT = "save-insert";
+	public static final String UPDATE = "save-update";
+	public static final String SAVE_ALL = "saveAll";
+	public static final String DELETE = "delete";
+	public static final String MODIFY = "update";
+
+	// the counters of a stripe, each stripe on a 64 bytes cache line of its own
+	private static final int OPERATIONS = 0;
+	private static final int ERRORS = 1;
+	private static final int DOCUMENTS = 2;
+	private static final int NANOS = 3;
+	private static final int BYTES = 4;
+	private static final int PADDING = 8;
+
+	// 4 buckets by power of two of microseconds, up to 2^32 microseconds, over an hour
+	private static final int SUB_BUCKETS = 4;
+	private static final int MAX_POWER = 32;
+	private static final int BUCKETS = MAX_POWER * SUB_BUCKETS;
+
+	private static final int STRIPES = stripes();
+
+	// by collection then operation, looked up without building a key
+	private static final ConcurrentMap<String, ConcurrentMap<String, Metric>> metrics = new ConcurrentHashMap<String, ConcurrentMap<String, Metric>>();
+
+	private static volatile boolean enabled = true;
+
+	/**
+	 * @param enabled - false to stop recording the operations
+	 */
+	static void setEnabled(boolean enabled) {
+		MongoMetrics.enabled = enabled;
+	}
+
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * @return - the start of an operation, to pass to {@link #record}
+	 */
+	static long start() {
+		return System.nanoTime();
+	}
+
+	/**
+	 * Records an operation which succeeded.
+	 *
+	 * @param collectionName - the collection
+	 * @param operation - the operation, FIND, COUNT...
+	 * @param start - the time the operation started, see {@link #start()}
+	 * @param documents - the number of documents read or written
+	 */
+	static void record(String collectionName, String operation, long start, long documents) {
+		if (enabled) {
+			metric(collectionName, operation).add(System.nanoTime() - start, documents, false);
+		}
+	}
+
+	/**
+	 * Records an operation which failed.
+	 *
+	 * @param collectionName - the collection
+	 * @param operation - the operation, FIND, COUNT...
+	 * @param start - the time the operation started, see {@link #start()}
+	 */
+	static void failed(String collectionName, String operation, long start) {
+		if (enabled) {
+			metric(collectionName, operation).add(System.nanoTime() - start, 0, true);
+		}
+	}
+
+	/**
+	 * Records the size of a document read from a collection.
+	 *
+	 * @param collectionName - the collection
+	 * @param bytes - the size of the BSON document
+	 */
+	static void read(String collectionName, long bytes) {
+		if (enabled) {
+			metric(collectionName, FIND).addBytes(bytes);
+		}
+	}
+
+	/**
+	 * Forgets the recorded operations.
+	 */
+	public static void reset() {
+		metrics.clear();
+	}
+
+	/**
+	 * @return - the metrics of the operations recorded so far, by collection and operation
+	 */
+	public static List<Snapshot> snapshot() {
+		List<Snapshot> snapshots = new ArrayList<Snapshot>();
+		for (ConcurrentMap<String, Metric> operations : metrics.values()) {
+			for (Metric metric : operations.values()) {
+				snapshots.add(metric.snapshot());
+			}
+		}
+		Collections.sort(snapshots);
+		return snapshots;
+	}
+
+	/**
+	 * @return - the metrics as a text table, for the /@status page
+	 */
+	static String getStatus() {
+		StringWriter sw = new StringWriter();
+		PrintWriter out = new PrintWriter(sw);
+		out.println("MongoDB operations:");
+		out.println("~~~~~~~~~~~~~~~~~~~");
+		if (!enabled) {
+			out.println("Disabled, see mongo.metrics");
+			return sw.toString();
+		}
+		out.println(String.format("%-30s %-12s %10s %8s %12s %14s %10s %10s %10s %10s",
+				"Collection", "Operation", "Count", "Errors", "Documents", "Bytes", "Mean (ms)", "p50 (ms)", "p95 (ms)", "p99 (ms)"));
+		for (Snapshot s : snapshot()) {
+			out.println(String.format("%-30s %-12s %10d %8d %12d %14d %10.3f %10.3f %10.3f %10.3f",
+					s.getCollection(), s.getOperation(), s.getCount(), s.getErrors(), s.getDocuments(), s.getBytes(),
+					s.getMeanMillis(), s.getPercentileMillis(50), s.getPercentileMillis(95), s.getPercentileMillis(99)));
+		}
+		return sw.toString();
+	}
+
+	/**
+	 * @return - the metrics as JSON, an array of one object by collection and operation
+	 */
+	static JsonObject getJsonStatus() {
+		JsonObject status = new JsonObject();
+		JsonArray operations = new JsonArray();
+		for (Snapshot s : snapshot()) {
+			JsonObject operation = new JsonObject();
+			operation.addProperty("collection", s.getCollection());
+			operation.addProperty("operation", s.getOperation());
+			operation.addProperty("count", s.getCount());
+			operation.addProperty("errors", s.getErrors());
+			operation.addProperty("documents", s.getDocuments());
+			operation.addProperty("bytes", s.getBytes());
+			operation.addProperty("mean", s.getMeanMillis());
+			operation.addProperty("p50", s.getPercentileMillis(50));
+			operation.addProperty("p95", s.getPercentileMillis(95));
+			operation.addProperty("p99", s.getPercentileMillis(99));
+			operations.add(operation);
+		}
+		status.addProperty("enabled", enabled);
+		status.add("operations", operations);
+		return status;
+	}
+
+	private static Metric metric(String collectionName, String operation) {
+		ConcurrentMap<String, Metric> operations = metrics.get(collectionName);
+		if (operations == null) {
+			ConcurrentMap<String, Metric> created = new ConcurrentHashMap<String, Metric>(16, 0.75f, 4);
+			operations = metrics.putIfAbsent(collectionName, created);
+			if (operations == null) {
+				operations = created;
+			}
+		}
+		Metric metric = operations.get(operation);
+		if (metric == null) {
+			Metric created = new Metric(collectionName, operation);
+			metric = operations.putIfAbsent(operation, created);
+			if (metric == null) {
+				metric = created;
+			}
+		}
+		return metric;
+	}
+
+	/**
+	 * The number of stripes, a power of two at least the number of processors, up to 16 as each histogram has a copy by stripe.
+	 */
+	private static int stripes() {
+		int processors = Runtime.getRuntime().availableProcessors();
+		int stripes = 1;
+		while (stripes < processors && stripes < 16) {
+			stripes <<= 1;
+		}
+		return stripes;
+	}
+
+	private static int stripe() {
+		return (int) Thread.currentThread().getId() & (STRIPES - 1);
+	}
+
+	/**
+	 * The histogram bucket of a latency: the values under 4 microseconds have a bucket
+	 * each, the others are split into 4 buckets by power of two.
+	 */
+	static int bucket(long micros) {
+		if (micros < SUB_BUCKETS) {
+			return (int) Math.max(0, micros);
+		}
+		int power = 63 - Long.numberOfLeadingZeros(micros);
+		if (power >= MAX_POWER) {
+			return BUCKETS - 1;
+		}
+		int sub = (int) (micros >> (power - 2)) & (SUB_BUCKETS - 1);
+		return (power - 1) * SUB_BUCKETS + sub;
+	}
+
+	/**
+	 * @return - the largest latency of a bucket, in microseconds
+	 */
+	static long bucketLimit(int bucket) {
+		if (bucket < SUB_BUCKETS) {
+			return bucket;
+		}
+		int power = bucket / SUB_BUCKETS + 1;
+		int sub = bucket % SUB_BUCKETS;
+		return ((long) (SUB_BUCKETS + sub + 1) << (power - 2)) - 1;
+	}
+
+	/**
+	 * The striped counters and histogram of an operation on a collection.
+	 */
+	private static class Metric {
+		private final String collectionName;
+		private final String operation;
+		private final AtomicLongArray counters = new AtomicLongArray(STRIPES * PADDING);
+		private final AtomicLongArray histogram = new AtomicLongArray(STRIPES * BUCKETS);
+
+		Metric(String collectionName, String operation) {
+			this.collectionName = collectionName;
+			this.operation = operation;
+		}
+
+		void add(long nanos, long documents, boolean error) {
+			int stripe = stripe();
+			int base = stripe * PADDING;
+			counters.incrementAndGet(base + OPERATIONS);
+			if (error) {
+				counters.incrementAndGet(base + ERRORS);
+			}
+			if (documents > 0) {
+				counters.addAndGet(base + DOCUMENTS, documents);
+			}
+			counters.addAndGet(base + NANOS, nanos);
+			histogram.incrementAndGet(stripe * BUCKETS + bucket(nanos / 1000));
+		}
+
+		void addBytes(long bytes) {
+			counters.addAndGet(stripe() * PADDING + BYTES, bytes);
+		}
+
+		Snapshot snapshot() {
+			long[] sums = new long[PADDING];
+			for (int stripe = 0; stripe < STRIPES; stripe++) {
+				for (int i = 0; i < PADDING; i++) {
+					sums[i] += counters.get(stripe * PADDING + i);
+				}
+			}
+			long[] buckets = new long[BUCKETS];
+			for (int stripe = 0; stripe < STRIPES; stripe++) {
+				for (int i = 0; i < BUCKETS; i++) {
+					buckets[i] += histogram.get(stripe * BUCKETS + i);
+				}
+			}
+			return new Snapshot(collectionName, operation, sums[OPERATIONS], sums[ERRORS], sums[DOCUMENTS], sums[NANOS], sums[BYTES], buckets);
+		}
+	}
+
+	/**
+	 * The metrics of an operation on a collection at a point in time.
+	 */
+	public static class Snapshot implements Comparable<Snapshot> {
+		private final String collectionName;
+		private final String operation;
+		private final long count;
+		private final long errors;
+		private final long documents;
+		private final long nanos;
+		private final long bytes;
+		private final long[] buckets;
+
+		Snapshot(String collectionName, String operation, long count, long errors, long documents, long nanos, long bytes, long[] buckets) {
+			this.collectionName = collectionName;
+			this.operation = operation;
+			this.count = count;
+			this.errors = errors;
+			this.documents = documents;
+			this.nanos = nanos;
+			this.bytes = bytes;
+			this.buckets = buckets;
+		}
+
+		public String getCollection() {
+			return collectionName;
+		}
+
+		public String getOperation() {
+			return operation;
+		}
+
+		/**
+		 * @return - the number of operations, including the failed ones
+		 */
+		public long getCount() {
+			return count;
+		}
+
+		public long getErrors() {
+			return errors;
+		}
+
+		/**
+		 * @return - the number of documents read or written
+		 */
+		public long getDocuments() {
+			return documents;
+		}
+
+		/**
+		 * @return - the size of the documents read by streaming cursors, see {@link MongoCursor#streaming()}
+		 */
+		public long getBytes() {
+			return bytes;
+		}
+
+		public double getMeanMillis() {
+			return count == 0 ? 0 : nanos / 1e6 / count;
+		}
+
+		/**
+		 * @param percent - the percentage of operations, 50 for the median
+		 * @return - the latency under which the percentage of operations fall, in milliseconds
+		 */
+		public double getPercentileMillis(double percent) {
+			long total = 0;
+			for (long n : buckets) {
+				total += n;
+			}
+			if (total == 0) {
+				return 0;
+			}
+			long rank = (long) Math.ceil(total * percent / 100);
+			long seen = 0;
+			for (int i = 0; i < buckets.length; i++) {
+				seen += buckets[i];
+				if (seen >= rank) {
+					return bucketLimit(i) / 1000.0;
+				}
+			}
+			return bucketLimit(buckets.length - 1) / 1000.0;
+		}
+
+		public int compareTo(Snapshot other) {
+			int c = collectionName.compareTo(other.collectionName);
+			return c != 0 ? c : operation.compareTo(other.operation);
+		}
+	}
+}
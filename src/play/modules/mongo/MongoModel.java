@@ -1,9 +1,16 @@
 package play.modules.mongo;
 
 import org.bson.types.ObjectId;
+
+import com.mongodb.WriteConcern;
+
 import play.db.Model;
 
 import java.io.Serializable;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * This class provides the abstract declarations for all MongoModels.
@@ -13,6 +20,14 @@ import java.io.Serializable;
  */
 public class MongoModel implements Model, Serializable {
 	
+    // the fields selected or excluded by the projection of the cursor, null once the whole document is read
+    private transient Set<String> projectedFields;
+    private transient boolean projectionExcludes;
+    private transient boolean lazy;
+    
+    // the document as it was read or last saved, a DBObject or its BSON bytes, to find what changed on save
+    private transient Object snapshot;
+	
     public ObjectId get_id() {
         throw new UnsupportedOperationException("Please annotate your model with @MongoEntity annotation.");
     }
@@ -33,6 +48,37 @@ public class MongoModel implements Model, Serializable {
         throw new UnsupportedOperationException("Please annotate your model with @MongoEntity annotation.");
     }
     
+    /**
+     * Counts the models matching a query string, the server stops counting
+     * at the limit.
+     * 
+     * @param limit - the largest count needed
+     * @param query - the query string
+     * @param params - parameters for the query string
+     * @return - the number of models, at most the limit
+     */
+    public static long countUpTo(long limit, String query, Object... params) {
+        throw new UnsupportedOperationException("Please annotate your model with @MongoEntity annotation.");
+    }
+    
+    /**
+     * @return - the number of models according to the statistics of the collection, read again every few seconds
+     */
+    public static long estimatedCount() {
+        throw new UnsupportedOperationException("Please annotate your model with @MongoEntity annotation.");
+    }
+    
+    /**
+     * Tells whether a model matches a query string.
+     * 
+     * @param query - the query string
+     * @param params - parameters for the query string
+     * @return - true when a model matches
+     */
+    public static boolean exists(String query, Object... params) {
+        throw new UnsupportedOperationException("Please annotate your model with @MongoEntity annotation.");
+    }
+    
     public static MongoCursor find(String query, Object... params) {
         throw new UnsupportedOperationException("Please annotate your model with @MongoEntity annotation.");
     }
@@ -41,14 +87,174 @@ public class MongoModel implements Model, Serializable {
         throw new UnsupportedOperationException("Please annotate your model with @MongoEntity annotation.");
     }
     
+    /**
+     * Reads models by their ids, a few queries at once instead of one query
+     * per id.
+     * 
+     * @param ids - the ids of the models
+     * @return - the models found, in the order of their ids
+     */
+    public static <T extends MongoModel> List<T> findByIds(Collection<ObjectId> ids) {
+        throw new UnsupportedOperationException("Please annotate your model with @MongoEntity annotation.");
+    }
+    
+    /**
+     * Reads models by their ids, see {@link #findByIds(Collection)}.
+     * 
+     * @param ids - the ids of the models
+     * @return - the models found by their id, in the order of the ids
+     */
+    public static <T extends MongoModel> Map<ObjectId, T> findMapByIds(Collection<ObjectId> ids) {
+        throw new UnsupportedOperationException("Please annotate your model with @MongoEntity annotation.");
+    }
+    
     public <T extends MongoModel> T save() {
         throw new UnsupportedOperationException("Please annotate your model with @MongoEntity annotation.");
     }
     
+    /**
+     * Saves models with bulk writes instead of one request per model, in
+     * any order. New models are given an _id.
+     * 
+     * @param models - the models to save
+     * @return - the models saved
+     * @throws MongoBulkSaveException - when some of the models could not be saved, the others are saved
+     */
+    public static <T extends MongoModel> List<T> saveAll(List<T> models) {
+        throw new UnsupportedOperationException("Please annotate your model with @MongoEntity annotation.");
+    }
+    
+    /**
+     * Saves models with bulk writes, see {@link #saveAll(List)}.
+     * 
+     * @param models - the models to save
+     * @param ordered - true to save the models in order and stop at the first failure
+     * @return - the models saved
+     * @throws MongoBulkSaveException - when some of the models could not be saved
+     */
+    public static <T extends MongoModel> List<T> saveAll(List<T> models, boolean ordered) {
+        throw new UnsupportedOperationException("Please annotate your model with @MongoEntity annotation.");
+    }
+    
+    /**
+     * Updates the models matching a query string in place, without reading
+     * them, for example <code>update("byName", "inc topSpeed 5, set colour ?2", "Toyota", "red")</code>.
+     * 
+     * @param query - the query string
+     * @param update - the update string, see {@link MongoUpdate}
+     * @param params - parameters for the query and update strings
+     * @return - the number of models matched, -1 when the write concern of the collection is unacknowledged
+     */
+    public static long update(String query, String update, Object... params) {
+        throw new UnsupportedOperationException("Please annotate your model with @MongoEntity annotation.");
+    }
+    
+    /**
+     * Updates a model in place, without reading it.
+     * 
+     * @param id - the id of the model
+     * @param update - the update string, see {@link MongoUpdate}
+     * @param params - parameters for the update string
+     * @return - false when there is no model with this id, true when the write concern of the collection is unacknowledged
+     */
+    public static boolean updateById(ObjectId id, String update, Object... params) {
+        throw new UnsupportedOperationException("Please annotate your model with @MongoEntity annotation.");
+    }
+    
+    /**
+     * Updates the first model matching a query string and returns it as
+     * updated, in one atomic operation.
+     * 
+     * @param query - the query string
+     * @param update - the update string, see {@link MongoUpdate}
+     * @param params - parameters for the query and update strings
+     * @return - the updated model, null when none matched
+     */
+    public static <T extends MongoModel> T findAndModify(String query, String update, Object... params) {
+        throw new UnsupportedOperationException("Please annotate your model with @MongoEntity annotation.");
+    }
+    
+    /**
+     * Updates the first model matching a query string and returns it, see
+     * {@link #findAndModify(String, String, Object...)}.
+     * 
+     * @param returnNew - true to return the model as updated, false as it was before
+     * @param query - the query string
+     * @param update - the update string, see {@link MongoUpdate}
+     * @param params - parameters for the query and update strings
+     * @return - the model, null when none matched
+     */
+    public static <T extends MongoModel> T findAndModify(boolean returnNew, String query, String update, Object... params) {
+        throw new UnsupportedOperationException("Please annotate your model with @MongoEntity annotation.");
+    }
+    
+    /**
+     * Saves the model now with a given write concern, instead of the one
+     * of its collection.
+     * 
+     * @param writeConcern - the write concern
+     * @return - the model saved
+     */
+    public <T extends MongoModel> T save(WriteConcern writeConcern) {
+        throw new UnsupportedOperationException("Please annotate your model with @MongoEntity annotation.");
+    }
+    
     public void delete() {
         throw new UnsupportedOperationException("Please annotate your model with @MongoEntity annotation.");
     }
     
+    public <T extends MongoModel> T load() {
+        throw new UnsupportedOperationException("Please annotate your model with @MongoEntity annotation.");
+    }
+    
+    /**
+     * Tells whether a field was read from the database. Fields left out by
+     * {@link MongoCursor#select} or {@link MongoCursor#exclude} are not, until
+     * {@link #load()} reads the rest of the document. Fields of which only
+     * some paths were selected count as loaded.
+     * 
+     * @param field - the name of the field
+     * @return - false when the field was left out by a projection
+     */
+    public boolean isLoaded(String field) {
+        Set<String> fields = projectedFields;
+        return fields == null || fields.contains(field) != projectionExcludes;
+    }
+    
+    /**
+     * Called by the getters of the fields, loads the rest of the document
+     * when the model comes from a {@link MongoCursor#lazy()} cursor.
+     * 
+     * @param field - the name of the field
+     */
+    protected void loadField(String field) {
+        if (lazy && !isLoaded(field)) {
+            load();
+        }
+    }
+    
+    void setProjection(Set<String> fields, boolean excludes, boolean lazy) {
+        this.projectedFields = fields;
+        this.projectionExcludes = excludes;
+        this.lazy = lazy;
+    }
+    
+    Set<String> getProjectedFields() {
+        return projectedFields;
+    }
+    
+    boolean isProjectionExcludes() {
+        return projectionExcludes;
+    }
+    
+    void setSnapshot(Object snapshot) {
+        this.snapshot = snapshot;
+    }
+    
+    Object getSnapshot() {
+        return snapshot;
+    }
+    
     public static long delete(String query, Object... params) {
         throw new UnsupportedOperationException("Please annotate your model with @MongoEntity annotation.");
     }
@@ -0,0 +1,169 @@
+package play.modules.mongo;
+
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import play.exceptions.ConfigurationException;
+
+import com.mongodb.MongoClientOptions;
+import com.mongodb.ServerAddress;
+
+/**
+ * Reads the connection settings from the application configuration.
+ *
+ * <pre>
+ * # the servers, mongo.host and mongo.port when not set
+ * mongo.hosts=db1:27017,db2:27017,db3
+ * mongo.replicaSet=rs0
+ *
+ * # the pool of each server
+ * mongo.connectionsPerHost=100
+ * mongo.minConnectionsPerHost=0
+ * mongo.threadsAllowedToBlockForConnectionMultiplier=5
+ * mongo.maxWaitTime=120000
+ * mongo.maxConnectionIdleTime=0
+ * mongo.maxConnectionLifeTime=0
+ *
+ * # the sockets
+ * mongo.connectTimeout=10000
+ * mongo.socketTimeout=0
+ * mongo.socketKeepAlive=false
+ * mongo.heartbeatFrequency=5000
+ *
+ * # the defaults of the collections
+ * mongo.writeConcern=ACKNOWLEDGED
+ * mongo.readPreference=primary
+ * </pre>
+ *
+ * The times are in milliseconds. The options which are not set keep the
+ * defaults of the driver.
+ */
+public class MongoOptions {
+
+	static final int DEFAULT_PORT = 27017;
+
+	/**
+	 * Reads the servers to connect to: the comma separated host[:port] list
+	 * of <code>mongo.hosts</code>, or <code>mongo.host</code> and
+	 * <code>mongo.port</code>. An IPv6 address is given with a port as
+	 * [address]:port, or alone as is.
+	 *
+	 * @param configuration - the application configuration
+	 * @return - the addresses of the servers
+	 */
+	public static List<ServerAddress> seeds(Properties configuration) {
+		List<ServerAddress> seeds = new ArrayList<ServerAddress>();
+		String hosts = configuration.getProperty("mongo.hosts");
+		try {
+			if (hosts == null || hosts.trim().length() == 0) {
+				String host = configuration.getProperty("mongo.host", "localhost");
+				seeds.add(new ServerAddress(host, getInt(configuration, "mongo.port", DEFAULT_PORT)));
+				return seeds;
+			}
+			for (String seed : hosts.split(",")) {
+				seed = seed.trim();
+				if (seed.length() == 0) {
+					continue;
+				}
+				String host = seed;
+				int port = DEFAULT_PORT;
+				if (seed.startsWith("[")) {
+					int bracket = seed.indexOf(']');
+					if (bracket < 0 || (bracket + 1 < seed.length() && seed.charAt(bracket + 1) != ':')) {
+						throw new ConfigurationException("mongo.hosts has a malformed IPv6 address: " + seed);
+					}
+					host = seed.substring(1, bracket);
+					if (bracket + 1 < seed.length()) {
+						port = parseInt("mongo.hosts", seed.substring(bracket + 2));
+					}
+				}
+				else {
+					int colon = seed.indexOf(':');
+					// more than one colon, an IPv6 address without port
+					if (colon >= 0 && colon == seed.lastIndexOf(':')) {
+						host = seed.substring(0, colon);
+						port = parseInt("mongo.hosts", seed.substring(colon + 1));
+					}
+				}
+				seeds.add(new ServerAddress(host, port));
+			}
+		} catch (UnknownHostException e) {
+			throw new ConfigurationException("Unknown MongoDB host: " + e.getMessage());
+		}
+		if (seeds.isEmpty()) {
+			throw new ConfigurationException("No MongoDB host in mongo.hosts");
+		}
+		return seeds;
+	}
+
+	/**
+	 * Reads the options of the client.
+	 *
+	 * @param configuration - the application configuration
+	 * @return - the options
+	 */
+	public static MongoClientOptions options(Properties configuration) {
+		MongoClientOptions.Builder builder = MongoClientOptions.builder();
+		builder.description(configuration.getProperty("application.name"));
+
+		if (configuration.containsKey("mongo.connectionsPerHost")) {
+			builder.connectionsPerHost(getInt(configuration, "mongo.connectionsPerHost", 0));
+		}
+		if (configuration.containsKey("mongo.minConnectionsPerHost")) {
+			builder.minConnectionsPerHost(getInt(configuration, "mongo.minConnectionsPerHost", 0));
+		}
+		if (configuration.containsKey("mongo.threadsAllowedToBlockForConnectionMultiplier")) {
+			builder.threadsAllowedToBlockForConnectionMultiplier(getInt(configuration, "mongo.threadsAllowedToBlockForConnectionMultiplier", 0));
+		}
+		if (configuration.containsKey("mongo.maxWaitTime")) {
+			builder.maxWaitTime(getInt(configuration, "mongo.maxWaitTime", 0));
+		}
+		if (configuration.containsKey("mongo.maxConnectionIdleTime")) {
+			builder.maxConnectionIdleTime(getInt(configuration, "mongo.maxConnectionIdleTime", 0));
+		}
+		if (configuration.containsKey("mongo.maxConnectionLifeTime")) {
+			builder.maxConnectionLifeTime(getInt(configuration, "mongo.maxConnectionLifeTime", 0));
+		}
+		if (configuration.containsKey("mongo.connectTimeout")) {
+			builder.connectTimeout(getInt(configuration, "mongo.connectTimeout", 0));
+		}
+		if (configuration.containsKey("mongo.socketTimeout")) {
+			builder.socketTimeout(getInt(configuration, "mongo.socketTimeout", 0));
+		}
+		if (configuration.containsKey("mongo.socketKeepAlive")) {
+			builder.socketKeepAlive(Boolean.parseBoolean(configuration.getProperty("mongo.socketKeepAlive").trim()));
+		}
+		if (configuration.containsKey("mongo.heartbeatFrequency")) {
+			builder.heartbeatFrequency(getInt(configuration, "mongo.heartbeatFrequency", 0));
+		}
+		if (configuration.containsKey("mongo.replicaSet")) {
+			builder.requiredReplicaSetName(configuration.getProperty("mongo.replicaSet").trim());
+		}
+		try {
+			if (configuration.containsKey("mongo.writeConcern")) {
+				builder.writeConcern(MongoRegistry.writeConcern(configuration.getProperty("mongo.writeConcern").trim()));
+			}
+			if (configuration.containsKey("mongo.readPreference")) {
+				builder.readPreference(MongoRegistry.readPreference(configuration.getProperty("mongo.readPreference").trim()));
+			}
+			return builder.build();
+		} catch (IllegalArgumentException e) {
+			throw new ConfigurationException("Invalid MongoDB option: " + e.getMessage());
+		}
+	}
+
+	private static int getInt(Properties configuration, String key, int defaultValue) {
+		String value = configuration.getProperty(key);
+		return value == null ? defaultValue : parseInt(key, value);
+	}
+
+	private static int parseInt(String key, String value) {
+		try {
+			return Integer.parseInt(value.trim());
+		} catch (NumberFormatException e) {
+			throw new ConfigurationException(key + " must be a number: " + value);
+		}
+	}
+}
@@ -0,0 +1,96 @@
+package play.modules.mongo;
+
+import java.util.List;
+
+import org.bson.BSONObject;
+import org.bson.BasicBSONDecoder;
+import org.bson.BasicBSONEncoder;
+
+import play.libs.Codec;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import com.mongodb.util.JSON;
+
+/**
+ * A page of models read by {@link MongoCursor#fetchPage(String, int)}, with
+ * the token to read the next one.
+ *
+ * The token holds the sort keys of the cursor and their values in the last
+ * model of the page. The next page starts right after these values instead
+ * of skipping the models of all the previous pages, so reading page 5000
+ * costs the same as reading the first one when the sort keys are indexed.
+ *
+ * @param <T> - the type of the models
+ */
+public class MongoPage<T extends MongoModel> {
+
+	private final List<T> models;
+	private final String nextPageToken;
+
+	MongoPage(List<T> models, String nextPageToken) {
+		this.models = models;
+		this.nextPageToken = nextPageToken;
+	}
+
+	/**
+	 * @return - the models of the page
+	 */
+	public List<T> getModels() {
+		return models;
+	}
+
+	/**
+	 * @return - the token to pass to {@link MongoCursor#fetchPage(String, int)} for the next page, null on the last page
+	 */
+	public String getNextPageToken() {
+		return nextPageToken;
+	}
+
+	/**
+	 * @return - true when there is a page after this one
+	 */
+	public boolean hasNext() {
+		return nextPageToken != null;
+	}
+
+	/**
+	 * Encodes the values of the sort keys of the last model of a page.
+	 *
+	 * @param order - the sort of the cursor
+	 * @param values - the values of its keys, in order
+	 * @return - a token which can be used in a URL
+	 */
+	static String encodeToken(DBObject order, BasicDBList values) {
+		byte[] bytes = new BasicBSONEncoder().encode(new BasicDBObject("o", order).append("v", values));
+		String token = Codec.encodeBASE64(bytes);
+		return token.replace('+', '-').replace('/', '_').replace("=", "");
+	}
+
+	/**
+	 * Decodes the values held by a token, checking it was made for the same
+	 * sort.
+	 *
+	 * @param token - the token of a page
+	 * @param order - the sort of the cursor
+	 * @return - the values of the sort keys
+	 */
+	static List<?> decodeToken(String token, DBObject order) {
+		BSONObject decoded;
+		try {
+			StringBuilder base64 = new StringBuilder(token.replace('-', '+').replace('_', '/'));
+			while (base64.length() % 4 != 0) {
+				base64.append('=');
+			}
+			decoded = new BasicBSONDecoder().readObject(Codec.decodeBASE64(base64.toString()));
+		} catch (RuntimeException e) {
+			throw new IllegalArgumentException("Invalid page token " + token, e);
+		}
+		// same keys in the same order
+		if (!JSON.serialize(order).equals(JSON.serialize(decoded.get("o")))) {
+			throw new IllegalArgumentException("The page token was made for another order than " + order);
+		}
+		return (List<?>) decoded.get("v");
+	}
+}
@@ -1,18 +1,16 @@
 package play.modules.mongo;
 
+import com.google.gson.JsonObject;
 import com.mongodb.MongoException;
 
 import org.bson.types.ObjectId;
 
 import play.Logger;
+import play.Play;
 import play.PlayPlugin;
 import play.classloading.ApplicationClasses.ApplicationClass;
 import play.db.Model;
-import play.utils.Java;
-
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
 /**
  * The plugin for the Mongo module.
@@ -32,17 +30,81 @@ public class MongoPlugin extends PlayPlugin {
     @Override
     public void onConfigurationRead() {
         Logger.info("application configuration read, now configuring MongoDB connection ...");
-        MongoDB.reset();
+        MongoQueryCache.setMaxSize(Integer.parseInt(Play.configuration.getProperty("mongo.queryCache.size", String.valueOf(MongoQueryCache.DEFAULT_MAX_SIZE))));
+        MongoDB.setEstimatedCountTtl(Long.parseLong(Play.configuration.getProperty("mongo.estimatedCount.ttl", String.valueOf(MongoDB.DEFAULT_ESTIMATED_COUNT_TTL))));
+        MongoWriteBehind.configure(Boolean.parseBoolean(Play.configuration.getProperty("mongo.writeBehind", "false")),
+                Boolean.parseBoolean(Play.configuration.getProperty("mongo.writeBehind.background", "false")),
+                Integer.parseInt(Play.configuration.getProperty("mongo.writeBehind.maxSize", String.valueOf(MongoWriteBehind.DEFAULT_MAX_SIZE))),
+                Long.parseLong(Play.configuration.getProperty("mongo.writeBehind.maxLatency", String.valueOf(MongoWriteBehind.DEFAULT_MAX_LATENCY))));
+        MongoMetrics.setEnabled(Boolean.parseBoolean(Play.configuration.getProperty("mongo.metrics", "true")));
+        MongoSlowLog.configure(Long.parseLong(Play.configuration.getProperty("mongo.slowQuery.threshold", "-1")),
+                Double.parseDouble(Play.configuration.getProperty("mongo.slowQuery.explain", "0")),
+                Integer.parseInt(Play.configuration.getProperty("mongo.slowQuery.maxPerMinute", String.valueOf(MongoSlowLog.DEFAULT_MAX_PER_MINUTE))));
+        // a new client only when the connection settings changed
+        MongoConnection.configure();
+    }
+
+    @Override
+    public void onApplicationStart() {
+        // the codecs refer to the classes of the previous run
+        MongoCodec.clear();
+        MongoRegistry.clear();
+        for (Class<?> clazz : Play.classloader.getAnnotatedClasses(MongoEntity.class)) {
+            if (MongoModel.class.isAssignableFrom(clazz)) {
+                MongoRegistry.of(clazz.asSubclass(MongoModel.class));
+            }
+        }
+    }
+
+    @Override
+    public void onApplicationStop() {
+        // write the saves left to the background thread
+        MongoWriteBehind.stop();
+        MongoDB.shutdownWorkers();
+        // kept across the reloads of dev mode, see MongoConnection.configure()
+        if (Play.mode.isProd()) {
+            MongoConnection.close();
+        }
+    }
+
+    @Override
+    public void beforeInvocation() {
+        MongoWriteBehind.begin();
+    }
+
+    @Override
+    public void afterInvocation() {
+        MongoWriteBehind.end();
+    }
+
+    @Override
+    public void invocationFinally() {
+        // the batch loaders and buffered saves live as long as the request
+        MongoBatchLoader.clear();
+        MongoWriteBehind.clear();
     }
 
     @Override
     public void onInvocationException(Throwable e) {
-        if (e instanceof MongoException.Network) {
-            Logger.error("MongoException.Network encountered. Trying to get new MongoDB connection ...");
-            MongoDB.reset();
+        MongoWriteBehind.discard();
+        MongoException failure = MongoConnection.networkFailure(e);
+        if (failure != null) {
+            Logger.error("%s encountered. Trying to get new MongoDB connection ...", failure.getClass().getSimpleName());
+            // the next use reconnects, once for all the threads
+            MongoConnection.failed(failure);
         }
     }
 
+    @Override
+    public String getStatus() {
+        return MongoMetrics.getStatus();
+    }
+
+    @Override
+    public JsonObject getJsonStatus() {
+        return MongoMetrics.getJsonStatus();
+    }
+
     /*
     @Override
     @SuppressWarnings("unchecked")
@@ -81,33 +143,16 @@ public class MongoPlugin extends PlayPlugin {
 
     public static class MongoLoader implements MongoModel.Factory {
 
-        private static Map<Class<? extends Model>, Model.Factory> m_ = new HashMap<Class<? extends Model>, Model.Factory>();
-
         private Class<? extends Model> clazz;
         private String collectionName;
 
-        private MongoLoader(Class<? extends Model> clazz) {
+        MongoLoader(Class<? extends Model> clazz, String collectionName) {
             this.clazz = clazz;
-            this.collectionName = getCollectionName();
-            m_.put(clazz, this);
-        }
-
-        private String getCollectionName() {
-            try {
-                return (String) Java.invokeStatic(clazz, "getCollectionName");
-            } catch (Exception e) {
-                throw new RuntimeException("Unable to get collection name for " + clazz, e);
-            }
+            this.collectionName = collectionName;
         }
 
         public static Model.Factory getFactory(Class<? extends MongoModel> modelClass) {
-            synchronized (m_) {
-                Model.Factory factory = m_.get(modelClass);
-                if (factory == null) {
-                    factory = new MongoLoader(modelClass);
-                }
-                return factory;
-            }
+            return MongoRegistry.of(modelClass).getFactory();
         }
 
         @Override
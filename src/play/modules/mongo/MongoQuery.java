@@ -0,0 +1,663 @@
+package play.modules.mongo;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+/**
+ * A query string compiled into a reusable template. The query string is
+ * parsed only once; literal values are kept as they are and <code>?n</code>
+ * parameters are kept as slots which are bound on every call to
+ * {@link #bind(Object[])}.
+ *
+ * Compiled queries are immutable and may be shared between threads, see
+ * {@link MongoQueryCache}.
+ */
+public class MongoQuery {
+
+	private final String query;
+	private final Node root;
+
+	private MongoQuery(String query, Node root) {
+		this.query = query;
+		this.root = root;
+	}
+
+	/**
+	 * @return - the query string this template was compiled from
+	 */
+	public String getQuery() {
+		return query;
+	}
+
+	/**
+	 * Binds the parameters into a new query object.
+	 *
+	 * @param values - values for the <code>?n</code> parameters of the query
+	 * @return - a new DBObject representing the query
+	 */
+	public DBObject bind(Object[] values) {
+		return (DBObject) root.bind(values, query);
+	}
+
+	/**
+	 * Compiles a query string, either a "byXxxAndYyy" key list or a
+	 * JPA like expression.
+	 *
+	 * @param query - the query string
+	 * @return - the compiled query
+	 */
+	public static MongoQuery compile(String query) {
+		if (query.startsWith("by")) {
+			String[] keyList = MongoDB.extractKeys(query).split(",");
+			for (int i = 0; i < keyList.length; i++) {
+				keyList[i] = keyList[i].trim();
+			}
+			return new MongoQuery(query, new KeyList(keyList));
+		}
+		return new MongoQuery(query, parseQuery(query));
+	}
+
+	/**
+	 * Replaces the values of a query object by placeholders, so that the
+	 * queries which differ only by their values have the same shape, for
+	 * example <code>{ "name" : "?" , "topSpeed" : { "$gt" : "?"}}</code>.
+	 * A list of values, as given to IN, is a single placeholder.
+	 *
+	 * @param query - the query object
+	 * @return - the shape of the query
+	 */
+	public static String shape(DBObject query) {
+		return String.valueOf(shapeOf(query));
+	}
+
+	@SuppressWarnings("rawtypes")
+	private static Object shapeOf(Object value) {
+		if (value instanceof List) {
+			// the conditions of $and and $or, else values
+			BasicDBList conds = new BasicDBList();
+			for (Object item : (List) value) {
+				if (item instanceof DBObject && !(item instanceof List)) {
+					conds.add(shapeOf(item));
+				}
+			}
+			return conds.isEmpty() ? "?" : conds;
+		}
+		if (value instanceof DBObject) {
+			DBObject object = (DBObject) value;
+			BasicDBObject shape = new BasicDBObject();
+			for (String key : object.keySet()) {
+				shape.put(key, shapeOf(object.get(key)));
+			}
+			return shape;
+		}
+		return "?";
+	}
+
+	/**
+	 * A part of a compiled query.
+	 */
+	private static abstract class Node {
+		abstract Object bind(Object[] values, String queryString);
+	}
+
+	/**
+	 * The "byXxxAndYyy" form : one equality per key, with values taken in order.
+	 */
+	private static class KeyList extends Node {
+		private final String[] keys;
+
+		KeyList(String[] keys) {
+			this.keys = keys;
+		}
+
+		@Override
+		Object bind(Object[] values, String queryString) {
+			if (keys.length > values.length) {
+				throw new IllegalArgumentException("Not enough values for the keys provided");
+			}
+			BasicDBObject object = new BasicDBObject();
+			for (int i = 0; i < keys.length; i++) {
+				object.put(keys[i], values[i]);
+			}
+			return object;
+		}
+	}
+
+	/**
+	 * Conditions linked by a logical operator ($and, $or).
+	 */
+	private static class Logical extends Node {
+		private final String logic;
+		private final Node[] conds;
+
+		Logical(String logic, List<Node> conds) {
+			this.logic = logic;
+			this.conds = conds.toArray(new Node[conds.size()]);
+		}
+
+		@Override
+		Object bind(Object[] values, String queryString) {
+			BasicDBList list = new BasicDBList();
+			for (Node cond : conds) {
+				list.add(cond.bind(values, queryString));
+			}
+			return new BasicDBObject(logic, list);
+		}
+	}
+
+	/**
+	 * A single "key operator value" condition. The value is either a literal
+	 * or the number of the parameter to bind, paramPos being its position in
+	 * the query string for error messages.
+	 */
+	private static class Condition extends Node {
+		private final String key;
+		private final String operator;
+		private final boolean negative;
+		private final Object literal;
+		private final int param;
+		private final int paramPos;
+		private final Pattern pattern;
+
+		Condition(String key, String operator, boolean negative, Object literal, int param, int paramPos) {
+			this.key = key;
+			this.operator = operator;
+			this.negative = negative;
+			this.literal = literal;
+			this.param = param;
+			this.paramPos = paramPos;
+			// a literal LIKE expression only needs to be compiled once
+			this.pattern = (param == 0 && isLike(operator)) ? likePattern((String) literal, operator.equals("$iregex")) : null;
+		}
+
+		@Override
+		@SuppressWarnings("rawtypes")
+		Object bind(Object[] values, String queryString) {
+			Object value = literal;
+			if (param > 0) {
+				if (param > values.length) {
+					throw new IllegalArgumentException("Missing parameter number at " + queryString.substring(paramPos) + ", in " + queryString);
+				}
+				value = values[param - 1];
+			}
+
+			BasicDBObject lCond = new BasicDBObject();
+			if (operator.equals("") || operator.equals("$eq")) { // default operator
+				if (value == null || value.equals("")) {
+					lCond.put(key, null); // x is null
+				}
+				else {
+					lCond.put(key, value); // x = y
+				}
+			}
+			else if (operator.equals("$ne")) {
+				if (value == null || value.equals("")) {
+					lCond.put(key, new BasicDBObject("$ne", null)); // x is not null
+				}
+				else {
+					lCond.put(key, new BasicDBObject("$ne", value)); // x != y
+				}
+			}
+			else if (isLike(operator)) {
+				Pattern lPattern = pattern;
+				if (lPattern == null) {
+					if (!(value instanceof String)) {
+						throw new IllegalArgumentException("Unsupported LIKE value at " + queryString.substring(paramPos) + ", in " + queryString);
+					}
+					lPattern = MongoQueryCache.likePattern((String) value, operator.equals("$iregex"));
+				}
+				if (negative) {
+					lCond.put(key, new BasicDBObject("$not", lPattern)); // x not like y
+				}
+				else {
+					lCond.put(key, lPattern); // x like y
+				}
+			}
+			else if (operator.equals("$in") || operator.equals("$nin")) {
+				BasicDBList inList = new BasicDBList();
+				for (Object lElement : (Collection<?>) value) {
+					inList.add(lElement);
+				}
+				lCond.put(key, new BasicDBObject(operator, inList)); // x not in (y, z)
+			}
+			else { // default case
+				lCond.put(key, new BasicDBObject(operator, value)); // x ? z
+			}
+			return lCond;
+		}
+	}
+
+	/**
+	 * @return - true for the LIKE and ILIKE operators
+	 */
+	private static boolean isLike(String operator) {
+		return operator.equals("$regex") || operator.equals("$iregex");
+	}
+
+	/**
+	 * Transforms a sql LIKE expression into a Pattern.
+	 *
+	 * @param like - the LIKE expression
+	 * @param ignoreCase - true for ILIKE
+	 * @return - the compiled pattern
+	 */
+	static Pattern likePattern(String like, boolean ignoreCase) {
+		return Pattern.compile(likeToRegex(like), ignoreCase ? Pattern.CASE_INSENSITIVE : 0);
+	}
+
+	/**
+	 * Transforms a sql LIKE expression into a regular expression. '%' matches
+	 * any characters and '?' a single one. Only the ends of the expression
+	 * which are not wildcards are anchored, there is no leading or trailing
+	 * ".*" : a prefix expression like 'abc%' becomes ^abc, which Mongo can
+	 * serve from an index (unless the case is ignored).
+	 *
+	 * @param like - the LIKE expression
+	 * @return - the regular expression
+	 */
+	static String likeToRegex(String like) {
+		int lLength = like.length();
+		int lStart = like.startsWith("%") ? 1 : 0;
+		int lEnd = (lLength > lStart && like.endsWith("%")) ? lLength - 1 : lLength;
+
+		StringBuilder lSb = new StringBuilder(lLength + 8);
+		if (lStart == 0) {
+			lSb.append('^');
+		}
+		for (int i = lStart; i < lEnd; i++) {
+			// inside chars
+			char c = like.charAt(i);
+			if (c == '%') {
+				lSb.append(".*");
+			}
+			else if (c == '?') {
+				lSb.append('.');
+			}
+			else {
+				lSb.append(c);
+			}
+		}
+		if (lEnd == lLength) {
+			lSb.append('$');
+		}
+		return lSb.toString();
+	}
+
+	/**
+	 * Parses a JPA like query string.
+	 *
+	 * @param queryString - the query string
+	 * @return The compiled condition tree
+	 */
+	private static Node parseQuery(String queryString) {
+		return new Parser(queryString).parse();
+	}
+
+	/**
+	 * A class to link a list of conditions and the logic applied
+	 * (required if more than one condition in the list)
+	 */
+	private static class LogicalBlock {
+		private List<Node> conds = new ArrayList<Node>();
+		private String logic;
+	}
+
+	/**
+	 * Single pass recursive descent parser. The query string is never copied
+	 * while parsing, the scanner only moves an index over it and values are
+	 * cut out once they have been delimited.
+	 *
+	 * <pre>
+	 * block     := item ( ( AND | OR ) item )*
+	 * item      := '(' block ')' | condition
+	 * condition := key operator value
+	 * value     := ?n | 'string' | number | '(' value ( ',' value )* ')'
+	 * </pre>
+	 */
+	private static class Parser {
+		private final String query;
+		private final int length;
+		private int pos;
+
+		Parser(String query) {
+			this.query = query;
+			this.length = query.length();
+		}
+
+		Node parse() {
+			LogicalBlock lGlobalExpr = parseBlock(false);
+
+			if (lGlobalExpr.logic == null) {
+				// requires only one condition in the block
+				if (lGlobalExpr.conds.size() == 1) {
+					return lGlobalExpr.conds.get(0);
+				}
+				else {
+					throw new IllegalArgumentException("Missing logical operators in global logic in" + query);
+				}
+			}
+			else {
+				return new Logical(lGlobalExpr.logic, lGlobalExpr.conds);
+			}
+		}
+
+		/**
+		 * Parses conditions and sub blocks linked by one logical operator, up to the
+		 * closing bracket of a nested block or to the end of the query.
+		 */
+		private LogicalBlock parseBlock(boolean nested) {
+			LogicalBlock lBlock = new LogicalBlock();
+			while (true) {
+				skipSpaces();
+				if (pos >= length) {
+					if (nested) {
+						throw new IllegalArgumentException("Not enough closing brackets in global logic in " + query);
+					}
+					return lBlock;
+				}
+
+				char c = query.charAt(pos);
+				if (c == ')') {
+					if (!nested) {
+						throw new IllegalArgumentException("Missing brackets at " + rest() + ", in " + query);
+					}
+					pos++;
+					return lBlock;
+				}
+				else if (isKeyword("OR")) {
+					setLogic(lBlock, "$or");
+					pos += 2;
+				}
+				else if (isKeyword("AND")) {
+					setLogic(lBlock, "$and");
+					pos += 3;
+				}
+				else if (c == '(') { // logical parenthesis
+					pos++;
+					LogicalBlock lClosedBlock = parseBlock(true);
+					if (lClosedBlock.logic == null) {
+						if (lClosedBlock.conds.size() == 1) {
+							lBlock.conds.add(lClosedBlock.conds.get(0));
+						}
+						else {
+							throw new IllegalArgumentException("Missing logic at " + query.substring(pos - 1) + ", in " + query);
+						}
+					}
+					else {
+						// encapsulate condition and logic in parent
+						lBlock.conds.add(new Logical(lClosedBlock.logic, lClosedBlock.conds));
+					}
+				}
+				else {
+					lBlock.conds.add(parseCondition());
+				}
+			}
+		}
+
+		private void setLogic(LogicalBlock block, String logic) {
+			if (block.logic == null) {
+				block.logic = logic;
+			}
+			else if (!block.logic.equals(logic)) {
+				throw new IllegalArgumentException("Brackets needded to mix AND and OR operators at " + rest() + ", in " + query);
+			}
+		}
+
+		/**
+		 * Parses "key operator value".
+		 */
+		private Condition parseCondition() {
+			int lSpace = query.indexOf(' ', pos);
+			if (lSpace < 0) {
+				throw new IllegalArgumentException("Missing space after key it at " + rest() + " , in " + query);
+			}
+			String lKey = query.substring(pos, lSpace);
+			pos = lSpace;
+			skipSpaces();
+
+			String lOperator = parseOperator();
+			boolean lNegative = false;
+			skipSpaces();
+
+			if (lOperator.equals("IS")) {
+				if (startsWithIgnoreCase("NULL")) {
+					pos += 4;
+					return new Condition(lKey, "", false, "", 0, 0); // x is null
+				}
+				else if (startsWithIgnoreCase("NOT")) {
+					pos += 3;
+					skipSpaces();
+					if (startsWithIgnoreCase("NULL")) {
+						pos += 4;
+						return new Condition(lKey, "$ne", false, "", 0, 0); // x is not null
+					}
+					throw new IllegalArgumentException("Unsupported operator after IS NOT at " + rest() + ", in " + query);
+				}
+				throw new IllegalArgumentException("Unsupported operator after IS at " + rest() + ", in " + query);
+			}
+			else if (lOperator.equals("NOT")) {
+				if (startsWithIgnoreCase("LIKE")) { // native mongo operator
+					lOperator = "$regex";
+					lNegative = true;
+					pos += 4;
+				}
+				else if (startsWithIgnoreCase("ILIKE")) {
+					lOperator = "$iregex";
+					lNegative = true;
+					pos += 5;
+				}
+				else if (startsWithIgnoreCase("IN")) {
+					lOperator = "$nin";
+					pos += 2;
+				}
+				else {
+					throw new IllegalArgumentException("Unsupported operator after NOT at " + rest() + ", in " + query);
+				}
+				skipSpaces();
+			}
+
+			if (pos < length && query.charAt(pos) == '?') { //JPA like param numbering
+				pos++;
+				int lParamPos = pos;
+				int lEnd = indexOfAny(' ', ')');
+				int nb;
+				try {
+					nb = Integer.parseInt(query.substring(pos, lEnd));
+				}
+				catch (NumberFormatException nfe) {
+					throw new IllegalArgumentException("Unsupported parameter number at  " + rest() + ", in " + query);
+				}
+				if (nb < 1) {
+					throw new IllegalArgumentException("Unsupported parameter number at  " + rest() + ", in " + query);
+				}
+				pos += String.valueOf(nb).length();
+				// bound later, the value is checked against the parameters then
+				return new Condition(lKey, lOperator, lNegative, null, nb, lParamPos);
+			}
+
+			Object lValue;
+			if (pos < length && query.charAt(pos) == '(') { // list
+				pos++;
+				lValue = parseList();
+			}
+			else if (pos < length && query.charAt(pos) == '\'') { //chain
+				lValue = parseString("Unsupported string value at  ");
+			}
+			else { // number
+				lValue = parseNumber(indexOfAny(' ', ')'), "Unsupported number value at  ");
+			}
+
+			if (isLike(lOperator) && !(lValue instanceof String)) {
+				throw new IllegalArgumentException("Unsupported LIKE value at " + rest() + ", in " + query);
+			}
+			return new Condition(lKey, lOperator, lNegative, lValue, 0, 0);
+		}
+
+		private String parseOperator() {
+			int lSpace = query.indexOf(' ', pos);
+			if (lSpace <= pos) {
+				throw new IllegalArgumentException("Missing space after operator at " + rest() + ", in " + query);
+			}
+
+			String lOperator;
+			String part = query.substring(pos, lSpace);
+			if (part.equals("=") || part.equals("==")) {
+				lOperator = "";  // default operator
+			}
+			else if (part.equals("!=") || part.equals("<>")) {
+				lOperator = "$ne";
+			}
+			else if (part.equals(">")) {
+				lOperator = "$gt";
+			}
+			else if (part.equals(">=")) {
+				lOperator = "$gte";
+			}
+			else if (part.equals("<")) {
+				lOperator = "$lt";
+			}
+			else if (part.equals("<=")) {
+				lOperator = "$lte";
+			}
+			else if (part.equalsIgnoreCase("LIKE")) {
+				lOperator = "$regex";
+			}
+			else if (part.equalsIgnoreCase("ILIKE")) {
+				lOperator = "$iregex";
+			}
+			else if (part.equalsIgnoreCase("IN")) {
+				lOperator = "$in";
+			}
+			else if (part.equalsIgnoreCase("IS")) {
+				lOperator = "IS";
+			}
+			else if (part.equalsIgnoreCase("NOT")) {
+				lOperator = "NOT";
+			}
+			else {
+				throw new IllegalArgumentException("Unsupported operator at " + rest() + ", in " + query);
+			}
+			pos = lSpace;
+			return lOperator;
+		}
+
+		/**
+		 * Parses the values of a list, the opening bracket being already consumed.
+		 */
+		private List<Object> parseList() {
+			List<Object> lList = new ArrayList<Object>();
+			while (pos < length) {
+				char c = query.charAt(pos);
+				if (c == ')') { // end
+					pos++;
+					break;
+				}
+				else if (c == ',' || c == ' ') { // next
+					pos++;
+				}
+				else if (c == '\'') { //chain
+					lList.add(parseString("Unsupported list string value at  "));
+				}
+				else { // number
+					lList.add(parseNumber(indexOfAny(' ', ',', ')'), "Unsupported list number value at  "));
+				}
+			}
+			return lList;
+		}
+
+		/**
+		 * Parses a quoted string, a quote preceded by a backslash does not end it.
+		 */
+		private String parseString(String error) {
+			int lStart = ++pos;
+			int lEnd = query.indexOf('\'', lStart);
+			while (lEnd > 0 && query.charAt(lEnd - 1) == '\\') {
+				lEnd = query.indexOf('\'', lEnd + 1);
+			}
+			if (lEnd < 0) {
+				pos = length;
+				// an escaped quote ending the query is still taken as the end of the string
+				if (length > lStart && query.charAt(length - 1) == '\'') {
+					return query.substring(lStart);
+				}
+				throw new IllegalArgumentException(error + rest() + ", in " + query);
+			}
+			pos = lEnd + 1;
+			return query.substring(lStart, lEnd);
+		}
+
+		private Double parseNumber(int end, String error) {
+			try {
+				Double lNumber = Double.valueOf(query.substring(pos, end));
+				pos = end;
+				return lNumber;
+			}
+			catch (NumberFormatException nfe) {
+				throw new IllegalArgumentException(error + rest() + ", in " + query);
+			}
+		}
+
+		/**
+		 * @return - the index of the first of the given chars from the current
+		 * position, or the length of the query
+		 */
+		private int indexOfAny(char c1, char c2, char c3) {
+			for (int i = pos; i < length; i++) {
+				char c = query.charAt(i);
+				if (c == c1 || c == c2 || c == c3) {
+					return i;
+				}
+			}
+			return length;
+		}
+
+		/**
+		 * @return - the index of the first of the two chars from the current
+		 * position, or the length of the query
+		 */
+		private int indexOfAny(char c1, char c2) {
+			for (int i = pos; i < length; i++) {
+				char c = query.charAt(i);
+				if (c == c1 || c == c2) {
+					return i;
+				}
+			}
+			return length;
+		}
+
+		private void skipSpaces() {
+			while (pos < length && query.charAt(pos) == ' ') {
+				pos++;
+			}
+		}
+
+		private boolean startsWithIgnoreCase(String word) {
+			return query.regionMatches(true, pos, word, 0, word.length());
+		}
+
+		/**
+		 * A logical operator must be followed by a space or a bracket,
+		 * so that keys like "orderId" are not taken for operators.
+		 */
+		private boolean isKeyword(String word) {
+			if (!startsWithIgnoreCase(word)) {
+				return false;
+			}
+			int lNext = pos + word.length();
+			return lNext >= length || query.charAt(lNext) == ' ' || query.charAt(lNext) == '(';
+		}
+
+		/**
+		 * @return - the part of the query which remains to be parsed, for error messages
+		 */
+		private String rest() {
+			return query.substring(pos);
+		}
+	}
+}
@@ -0,0 +1,169 @@
+package play.modules.mongo;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * A bounded, thread-safe cache of compiled query strings. Applications
+ * usually issue the same few query strings over and over, only with
+ * different parameters, so each of them is parsed once and then only
+ * bound. Update strings are cached the same way, as are the Patterns
+ * of LIKE expressions passed as parameters.
+ *
+ * The size can be set with the <code>mongo.queryCache.size</code>
+ * configuration property, 0 disables the cache.
+ */
+public class MongoQueryCache {
+
+	public static final int DEFAULT_MAX_SIZE = 1000;
+
+	private static final ConcurrentMap<String, MongoQuery> cache = new ConcurrentHashMap<String, MongoQuery>();
+	private static final ConcurrentMap<String, MongoUpdate> updates = new ConcurrentHashMap<String, MongoUpdate>();
+
+	private static volatile int maxSize = DEFAULT_MAX_SIZE;
+
+	private static final ConcurrentMap<String, Pattern> likePatterns = new ConcurrentHashMap<String, Pattern>();
+	private static final ConcurrentMap<String, Pattern> ilikePatterns = new ConcurrentHashMap<String, Pattern>();
+
+	private static final AtomicLong hits = new AtomicLong();
+	private static final AtomicLong misses = new AtomicLong();
+	private static final AtomicLong evictions = new AtomicLong();
+
+	/**
+	 * Returns the compiled form of a query string, compiling
+	 * and caching it on first use.
+	 *
+	 * @param query - the query string
+	 * @return - the compiled query
+	 */
+	public static MongoQuery get(String query) {
+		MongoQuery compiled = cache.get(query);
+		if (compiled != null) {
+			hits.incrementAndGet();
+			return compiled;
+		}
+
+		misses.incrementAndGet();
+		compiled = MongoQuery.compile(query);
+		return put(cache, query, compiled);
+	}
+
+	/**
+	 * Returns the compiled form of an update string, compiling
+	 * and caching it on first use.
+	 *
+	 * @param update - the update string
+	 * @return - the compiled update
+	 */
+	public static MongoUpdate getUpdate(String update) {
+		MongoUpdate compiled = updates.get(update);
+		if (compiled != null) {
+			hits.incrementAndGet();
+			return compiled;
+		}
+
+		misses.incrementAndGet();
+		compiled = MongoUpdate.compile(update);
+		return put(updates, update, compiled);
+	}
+
+	/**
+	 * Returns the compiled Pattern of a LIKE expression bound as a parameter,
+	 * literal expressions are compiled along with their query.
+	 *
+	 * @param like - the LIKE expression
+	 * @param ignoreCase - true for ILIKE
+	 * @return - the compiled pattern
+	 */
+	static Pattern likePattern(String like, boolean ignoreCase) {
+		ConcurrentMap<String, Pattern> patterns = ignoreCase ? ilikePatterns : likePatterns;
+		Pattern pattern = patterns.get(like);
+		if (pattern == null) {
+			pattern = put(patterns, like, MongoQuery.likePattern(like, ignoreCase));
+		}
+		return pattern;
+	}
+
+	private static <V> V put(ConcurrentMap<String, V> map, String key, V value) {
+		int max = maxSize;
+		if (max > 0) {
+			// evict an arbitrary entry, the cache only has to stay bounded
+			if (map.size() >= max) {
+				Iterator<String> it = map.keySet().iterator();
+				while (map.size() >= max && it.hasNext()) {
+					it.next();
+					it.remove();
+					evictions.incrementAndGet();
+				}
+			}
+			V previous = map.putIfAbsent(key, value);
+			if (previous != null) {
+				return previous;
+			}
+		}
+		return value;
+	}
+
+	/**
+	 * Sets the maximum number of cached queries.
+	 *
+	 * @param size - the maximum number of queries, 0 to disable the cache
+	 */
+	public static void setMaxSize(int size) {
+		maxSize = Math.max(0, size);
+		if (maxSize == 0) {
+			cache.clear();
+			updates.clear();
+			likePatterns.clear();
+			ilikePatterns.clear();
+		}
+	}
+
+	public static int getMaxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * @return - the number of cached queries
+	 */
+	public static int size() {
+		return cache.size();
+	}
+
+	/**
+	 * @return - the number of lookups served from the cache
+	 */
+	public static long hits() {
+		return hits.get();
+	}
+
+	/**
+	 * @return - the number of lookups which required compiling the query
+	 */
+	public static long misses() {
+		return misses.get();
+	}
+
+	/**
+	 * @return - the number of queries removed to keep the cache bounded
+	 */
+	public static long evictions() {
+		return evictions.get();
+	}
+
+	/**
+	 * Removes all the cached queries and resets the counters.
+	 */
+	public static void clear() {
+		cache.clear();
+		updates.clear();
+		likePatterns.clear();
+		ilikePatterns.clear();
+		hits.set(0);
+		misses.set(0);
+		evictions.set(0);
+	}
+}
@@ -0,0 +1,184 @@
+package play.modules.mongo;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import play.db.Model;
+
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.ReadPreference;
+import com.mongodb.WriteConcern;
+
+/**
+ * The metadata of the model classes: their collection name, Play model
+ * factory, and the write concern and read preference set on their
+ * collection by {@link MongoEntity}. The entries are built when the
+ * application starts, classes loaded later are registered on first use,
+ * and they are read without any locking.
+ */
+public class MongoRegistry {
+
+	private static final ConcurrentMap<Class<?>, Entry> entries = new ConcurrentHashMap<Class<?>, Entry>();
+
+	// the collections by name, for the methods of MongoDB taking a collection name
+	private static final ConcurrentMap<String, Handle> collections = new ConcurrentHashMap<String, Handle>();
+
+	// the entries by collection name, for the options of the collections
+	private static final ConcurrentMap<String, Entry> byCollection = new ConcurrentHashMap<String, Entry>();
+
+	/**
+	 * Returns the metadata of a model class, registering it on first use.
+	 *
+	 * @param clazz - a model class annotated with @MongoEntity
+	 * @return - its metadata
+	 */
+	public static Entry of(Class<? extends MongoModel> clazz) {
+		Entry entry = entries.get(clazz);
+		if (entry == null) {
+			entry = new Entry(clazz);
+			Entry previous = entries.putIfAbsent(clazz, entry);
+			if (previous != null) {
+				entry = previous;
+			}
+			// before returning it, the next use of the collection sees its options
+			byCollection.put(entry.collectionName, entry);
+		}
+		return entry;
+	}
+
+	/**
+	 * Returns a collection of the current database.
+	 *
+	 * @param collectionName - the name of the collection
+	 * @return - the collection
+	 */
+	public static DBCollection collection(String collectionName) {
+		DB db = MongoDB.db();
+		Entry entry = byCollection.get(collectionName);
+		Handle handle = collections.get(collectionName);
+		if (handle == null || handle.collection.getDB() != db || handle.entry != entry) {
+			// first use, the connection was reset or the class registered since
+			DBCollection collection = db.getCollection(collectionName);
+			// the driver keeps the collection, options left by a previous run included
+			collection.setWriteConcern(entry == null ? null : entry.writeConcern);
+			collection.setReadPreference(entry == null ? null : entry.readPreference);
+			handle = new Handle(collection, entry);
+			collections.put(collectionName, handle);
+		}
+		return handle.collection;
+	}
+
+	/**
+	 * Forgets the classes of the previous run of the application.
+	 */
+	public static void clear() {
+		entries.clear();
+		collections.clear();
+		byCollection.clear();
+	}
+
+	/**
+	 * Reads the name of a write concern.
+	 *
+	 * @param name - the name of one of the constants of WriteConcern, case insensitive
+	 * @return - the write concern, null for an empty name
+	 */
+	static WriteConcern writeConcern(String name) {
+		if (name == null || name.length() == 0) {
+			return null;
+		}
+		WriteConcern writeConcern = WriteConcern.valueOf(name);
+		if (writeConcern == null) {
+			throw new IllegalArgumentException("Unknown write concern " + name);
+		}
+		return writeConcern;
+	}
+
+	/**
+	 * Reads the name of a read preference.
+	 *
+	 * @param name - primary, primaryPreferred, secondary, secondaryPreferred or nearest
+	 * @return - the read preference, null for an empty name
+	 */
+	static ReadPreference readPreference(String name) {
+		if (name == null || name.length() == 0) {
+			return null;
+		}
+		return ReadPreference.valueOf(name);
+	}
+
+	/**
+	 * A collection with the entry its options were read from.
+	 */
+	private static class Handle {
+		final DBCollection collection;
+		final Entry entry;
+
+		Handle(DBCollection collection, Entry entry) {
+			this.collection = collection;
+			this.entry = entry;
+		}
+	}
+
+	/**
+	 * The metadata of a model class.
+	 */
+	public static class Entry {
+		private final Class<? extends MongoModel> clazz;
+		private final String collectionName;
+		private final Model.Factory factory;
+		// null for the ones of the connection
+		private final WriteConcern writeConcern;
+		private final ReadPreference readPreference;
+
+		private Entry(Class<? extends MongoModel> clazz) {
+			this.clazz = clazz;
+			try {
+				// provided by the enhancer, read once
+				this.collectionName = (String) clazz.getMethod("getCollectionName").invoke(null);
+			} catch (Exception e) {
+				throw new IllegalArgumentException("Unable to get collection name for " + clazz, e);
+			}
+			// built now rather than by the first decoding
+			MongoCodec.of(clazz);
+			this.factory = new MongoPlugin.MongoLoader(clazz, collectionName);
+			MongoEntity entity = clazz.getAnnotation(MongoEntity.class);
+			this.writeConcern = entity == null ? null : writeConcern(entity.writeConcern());
+			this.readPreference = entity == null ? null : readPreference(entity.readPreference());
+		}
+
+		public Class<? extends MongoModel> getModelClass() {
+			return clazz;
+		}
+
+		public String getCollectionName() {
+			return collectionName;
+		}
+
+		/**
+		 * @return - the collection of the class in the current database
+		 */
+		public DBCollection getCollection() {
+			return MongoRegistry.collection(collectionName);
+		}
+
+		/**
+		 * @return - the write concern of the collection, null for the one of the connection
+		 */
+		public WriteConcern getWriteConcern() {
+			return writeConcern;
+		}
+
+		/**
+		 * @return - the read preference of the collection, null for the one of the connection
+		 */
+		public ReadPreference getReadPreference() {
+			return readPreference;
+		}
+
+		public Model.Factory getFactory() {
+			return factory;
+		}
+	}
+}
@@ -0,0 +1,205 @@
+package play.modules.mongo;
+
+import java.util.Arrays;
+
+import play.Logger;
+
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.DefaultDBDecoder;
+import com.mongodb.ReadPreference;
+
+/**
+ * Logs the finds and counts slower than <code>mongo.slowQuery.threshold</code>
+ * milliseconds, with their query string and parameters, the shape of the
+ * query, see {@link MongoQuery#shape(DBObject)}, the sort, skip and limit,
+ * the duration and the number of documents. The time of a find is the time
+ * spent reading its cursor.
+ *
+ * <pre>
+ * # off when not set
+ * mongo.slowQuery.threshold=100
+ * # the fraction of the slow operations logged with the plan of the server
+ * mongo.slowQuery.explain=0.1
+ * # the slow operations logged at most by minute, the others are counted
+ * mongo.slowQuery.maxPerMinute=60
+ * </pre>
+ *
+ * The plan is read by running the query again with explain, on the calling
+ * thread, which is why only a fraction of the slow operations are explained.
+ */
+public class MongoSlowLog {
+
+	static final int DEFAULT_MAX_PER_MINUTE = 60;
+
+	private static final long MINUTE = 60000;
+
+	// -1 when off
+	private static volatile long thresholdNanos = -1;
+	private static volatile double explainRate;
+	private static volatile int maxPerMinute = DEFAULT_MAX_PER_MINUTE;
+
+	// the rate limit, by minute
+	private static long windowStart;
+	private static int windowLogged;
+	private static int windowSkipped;
+	private static long logged;
+	private static long skipped;
+
+	/**
+	 * Sets the options read from the configuration.
+	 *
+	 * @param thresholdMillis - the duration from which an operation is slow, in milliseconds, negative to log none
+	 * @param explainRate - the fraction of the logged operations which are explained, between 0 and 1
+	 * @param maxPerMinute - the number of operations logged at most by minute
+	 */
+	static synchronized void configure(long thresholdMillis, double explainRate, int maxPerMinute) {
+		MongoSlowLog.thresholdNanos = thresholdMillis < 0 ? -1 : thresholdMillis * 1000000;
+		MongoSlowLog.explainRate = explainRate;
+		MongoSlowLog.maxPerMinute = maxPerMinute;
+		windowStart = 0;
+	}
+
+	/**
+	 * @param nanos - the duration of an operation
+	 * @return - true when it is logged
+	 */
+	static boolean isSlow(long nanos) {
+		long threshold = thresholdNanos;
+		return threshold >= 0 && nanos >= threshold;
+	}
+
+	/**
+	 * @return - the number of slow operations logged
+	 */
+	public static synchronized long getLogged() {
+		return logged;
+	}
+
+	/**
+	 * @return - the number of slow operations not logged because of the rate limit
+	 */
+	public static synchronized long getSkipped() {
+		return skipped;
+	}
+
+	/**
+	 * Logs a slow find.
+	 *
+	 * @param cursor - the cursor which was read
+	 * @param queryString - the query string, null when the query was given as an object
+	 * @param params - the parameters of the query string
+	 * @param sort - the sort of the cursor, null for none
+	 * @param skip - the number of documents skipped
+	 * @param nanos - the time spent reading the cursor
+	 * @param documents - the number of documents read
+	 */
+	static void find(DBCursor cursor, String queryString, Object[] params, DBObject sort, int skip, long nanos, long documents) {
+		if (allow()) {
+			log("find", cursor.getCollection(), cursor.getQuery(), cursor.getKeysWanted(), queryString, params, sort, skip, cursor.getLimit(),
+					cursor.getReadPreference(), nanos, documents);
+		}
+	}
+
+	/**
+	 * Logs a slow count.
+	 *
+	 * @param collection - the collection
+	 * @param query - the query object
+	 * @param queryString - the query string, null when the query was given as an object
+	 * @param params - the parameters of the query string
+	 * @param limit - the largest count needed, 0 for none
+	 * @param nanos - the duration of the count
+	 * @param count - the number of documents counted
+	 */
+	static void count(DBCollection collection, DBObject query, String queryString, Object[] params, long limit, long nanos, long count) {
+		if (allow()) {
+			log("count", collection, query, null, queryString, params, null, 0, (int) Math.min(limit, Integer.MAX_VALUE),
+					collection.getReadPreference(), nanos, count);
+		}
+	}
+
+	private static void log(String operation, DBCollection collection, DBObject query, DBObject keys, String queryString, Object[] params,
+			DBObject sort, int skip, int limit, ReadPreference readPreference, long nanos, long documents) {
+		StringBuilder message = new StringBuilder();
+		message.append("Slow ").append(operation).append(" on ").append(collection.getName())
+			.append(" (").append(nanos / 1000000).append(" ms, ").append(documents).append(" documents)");
+		if (queryString != null) {
+			message.append(" query \"").append(queryString).append("\"");
+			if (params != null && params.length > 0) {
+				message.append(" with ").append(Arrays.toString(params));
+			}
+		}
+		message.append(" shape ").append(MongoQuery.shape(query));
+		if (sort != null) {
+			message.append(" sort ").append(sort);
+		}
+		if (skip > 0) {
+			message.append(" skip ").append(skip);
+		}
+		if (limit != 0) {
+			message.append(" limit ").append(limit);
+		}
+		double rate = explainRate;
+		if (rate > 0 && Math.random() < rate) {
+			message.append(" explain ").append(explain(collection, query, keys, sort, skip, limit, readPreference));
+		}
+		Logger.warn("%s", message);
+	}
+
+	/**
+	 * Reads the plan of a query from the server, with a cursor of its own
+	 * decoding into plain DBObjects.
+	 */
+	private static Object explain(DBCollection collection, DBObject query, DBObject keys, DBObject sort, int skip, int limit, ReadPreference readPreference) {
+		DBCursor cursor = collection.find(query, keys);
+		try {
+			cursor.setDecoderFactory(DefaultDBDecoder.FACTORY);
+			if (readPreference != null) {
+				cursor.setReadPreference(readPreference);
+			}
+			if (sort != null) {
+				cursor.sort(sort);
+			}
+			cursor.skip(skip).limit(limit);
+			return cursor.explain();
+		} catch (RuntimeException e) {
+			return "failed: " + e.getMessage();
+		} finally {
+			cursor.close();
+		}
+	}
+
+	/**
+	 * Counts a slow operation against the limit of the current minute.
+	 *
+	 * @return - false when the operation is not logged
+	 */
+	private static boolean allow() {
+		int notLogged = 0;
+		boolean allowed;
+		synchronized (MongoSlowLog.class) {
+			long now = System.currentTimeMillis();
+			if (now - windowStart >= MINUTE) {
+				notLogged = windowSkipped;
+				windowStart = now;
+				windowLogged = 0;
+				windowSkipped = 0;
+			}
+			allowed = windowLogged < maxPerMinute;
+			if (allowed) {
+				windowLogged++;
+				logged++;
+			}
+			else {
+				windowSkipped++;
+				skipped++;
+			}
+		}
+		if (notLogged > 0) {
+			Logger.warn("%d slow MongoDB operations were not logged during the previous minute, see mongo.slowQuery.maxPerMinute", notLogged);
+		}
+		return allowed;
+	}
+}
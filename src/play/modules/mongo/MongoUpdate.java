@@ -0,0 +1,276 @@
+package play.modules.mongo;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+/**
+ * An update string compiled into a reusable template, the update
+ * counterpart of {@link MongoQuery}. An update string is a comma separated
+ * list of "operator key value" actions, for example
+ * <code>"inc topSpeed 5, set colour ?1, unset driver"</code>.
+ *
+ * The operators are set, unset, inc, mul, min, max, push, addToSet, pull,
+ * pop and rename, applied by the server to the matching documents in place.
+ * Values are <code>?n</code> parameters, 'strings', numbers, true, false or
+ * null. Numbers without a decimal point are integers, so that incrementing
+ * an int field keeps it an int. unset takes no value.
+ *
+ * Compiled updates are immutable and may be shared between threads, see
+ * {@link MongoQueryCache#getUpdate(String)}.
+ */
+public class MongoUpdate {
+
+	private static final Map<String, String> OPERATORS = new HashMap<String, String>();
+	static {
+		for (String operator : new String[] { "set", "unset", "inc", "mul", "min", "max", "push", "addToSet", "pull", "pop", "rename" }) {
+			OPERATORS.put(operator.toLowerCase(), "$" + operator);
+		}
+	}
+
+	private final String update;
+	private final Action[] actions;
+
+	private MongoUpdate(String update, List<Action> actions) {
+		this.update = update;
+		this.actions = actions.toArray(new Action[actions.size()]);
+	}
+
+	/**
+	 * @return - the update string this template was compiled from
+	 */
+	public String getUpdate() {
+		return update;
+	}
+
+	/**
+	 * Binds the parameters into a new update object.
+	 *
+	 * @param values - values for the <code>?n</code> parameters of the update
+	 * @return - a new DBObject representing the update
+	 */
+	public DBObject bind(Object[] values) {
+		BasicDBObject object = new BasicDBObject();
+		for (Action action : actions) {
+			DBObject fields = (DBObject) object.get(action.operator);
+			if (fields == null) {
+				fields = new BasicDBObject();
+				object.put(action.operator, fields);
+			}
+			fields.put(action.key, action.bind(values, update));
+		}
+		return object;
+	}
+
+	/**
+	 * Compiles an update string.
+	 *
+	 * @param update - the update string
+	 * @return - the compiled update
+	 */
+	public static MongoUpdate compile(String update) {
+		return new MongoUpdate(update, new Parser(update).parse());
+	}
+
+	/**
+	 * A single "operator key value" action. The value is either a literal
+	 * or the number of the parameter to bind, paramPos being its position in
+	 * the update string for error messages.
+	 */
+	private static class Action {
+		private final String operator;
+		private final String key;
+		private final Object literal;
+		private final int param;
+		private final int paramPos;
+
+		Action(String operator, String key, Object literal, int param, int paramPos) {
+			this.operator = operator;
+			this.key = key;
+			this.literal = literal;
+			this.param = param;
+			this.paramPos = paramPos;
+		}
+
+		Object bind(Object[] values, String updateString) {
+			if (param == 0) {
+				return literal;
+			}
+			if (param > values.length) {
+				throw new IllegalArgumentException("Missing parameter number at " + updateString.substring(paramPos) + ", in " + updateString);
+			}
+			return MongoCodec.toValue(values[param - 1]);
+		}
+	}
+
+	/**
+	 * Single pass parser, in the manner of the query parser.
+	 *
+	 * <pre>
+	 * update := action ( ',' action )*
+	 * action := operator key [ value ]
+	 * value  := ?n | 'string' | number | true | false | null
+	 * </pre>
+	 */
+	private static class Parser {
+		private final String update;
+		private final int length;
+		private int pos;
+
+		Parser(String update) {
+			this.update = update;
+			this.length = update.length();
+		}
+
+		List<Action> parse() {
+			List<Action> actions = new ArrayList<Action>();
+			List<String> keys = new ArrayList<String>();
+			while (true) {
+				Action action = parseAction();
+				String key = action.operator + " " + action.key;
+				if (keys.contains(key)) {
+					throw new IllegalArgumentException("Duplicate " + key.substring(1) + ", in " + update);
+				}
+				keys.add(key);
+				actions.add(action);
+
+				skipSpaces();
+				if (pos >= length) {
+					return actions;
+				}
+				if (update.charAt(pos) != ',') {
+					throw new IllegalArgumentException("Missing comma at " + rest() + ", in " + update);
+				}
+				pos++;
+			}
+		}
+
+		/**
+		 * Parses "operator key value".
+		 */
+		private Action parseAction() {
+			skipSpaces();
+			String word = parseWord();
+			String operator = OPERATORS.get(word.toLowerCase());
+			if (operator == null) {
+				throw new IllegalArgumentException("Unsupported operator at " + update.substring(pos - word.length()) + ", in " + update);
+			}
+			skipSpaces();
+			String key = parseWord();
+			if (key.length() == 0) {
+				throw new IllegalArgumentException("Missing key at " + rest() + ", in " + update);
+			}
+			skipSpaces();
+
+			boolean noValue = pos >= length || update.charAt(pos) == ',';
+			if (operator.equals("$unset")) {
+				if (!noValue) {
+					throw new IllegalArgumentException("Unexpected value at " + rest() + ", in " + update);
+				}
+				return new Action(operator, key, "", 0, 0);
+			}
+			if (noValue) {
+				throw new IllegalArgumentException("Missing value at " + rest() + ", in " + update);
+			}
+
+			if (update.charAt(pos) == '?') { //JPA like param numbering
+				pos++;
+				int paramPos = pos;
+				int nb;
+				try {
+					nb = Integer.parseInt(parseWord());
+				}
+				catch (NumberFormatException nfe) {
+					nb = 0;
+				}
+				if (nb < 1) {
+					throw new IllegalArgumentException("Unsupported parameter number at " + update.substring(paramPos) + ", in " + update);
+				}
+				// bound later, the value is checked against the parameters then
+				return new Action(operator, key, null, nb, paramPos);
+			}
+
+			Object value;
+			if (update.charAt(pos) == '\'') { //chain
+				value = parseString();
+			}
+			else {
+				int start = pos;
+				String literal = parseWord();
+				if (literal.equals("true") || literal.equals("false")) {
+					value = Boolean.valueOf(literal);
+				}
+				else if (literal.equals("null")) {
+					value = null;
+				}
+				else {
+					value = parseNumber(literal, start);
+				}
+			}
+			if (operator.equals("$rename") && !(value instanceof String)) {
+				throw new IllegalArgumentException("Unsupported new name of " + key + ", in " + update);
+			}
+			return new Action(operator, key, value, 0, 0);
+		}
+
+		/**
+		 * @return - the characters up to the next space or comma
+		 */
+		private String parseWord() {
+			int start = pos;
+			while (pos < length && update.charAt(pos) != ' ' && update.charAt(pos) != ',') {
+				pos++;
+			}
+			return update.substring(start, pos);
+		}
+
+		/**
+		 * Parses a quoted string, a quote preceded by a backslash does not end it.
+		 */
+		private String parseString() {
+			int start = ++pos;
+			int end = update.indexOf('\'', start);
+			while (end > 0 && update.charAt(end - 1) == '\\') {
+				end = update.indexOf('\'', end + 1);
+			}
+			if (end < 0) {
+				throw new IllegalArgumentException("Unsupported string value at " + update.substring(start - 1) + ", in " + update);
+			}
+			pos = end + 1;
+			return update.substring(start, end).replace("\\'", "'");
+		}
+
+		private Number parseNumber(String word, int start) {
+			try {
+				if (word.indexOf('.') >= 0 || word.indexOf('e') >= 0 || word.indexOf('E') >= 0) {
+					return Double.valueOf(word);
+				}
+				long number = Long.parseLong(word);
+				if (number == (int) number) {
+					return (int) number;
+				}
+				return number;
+			}
+			catch (NumberFormatException nfe) {
+				throw new IllegalArgumentException("Unsupported number value at " + update.substring(start) + ", in " + update);
+			}
+		}
+
+		private void skipSpaces() {
+			while (pos < length && update.charAt(pos) == ' ') {
+				pos++;
+			}
+		}
+
+		/**
+		 * @return - the part of the update which remains to be parsed, for error messages
+		 */
+		private String rest() {
+			return update.substring(pos);
+		}
+	}
+}
@@ -0,0 +1,342 @@
+package play.modules.mongo;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.bson.types.ObjectId;
+
+import play.Logger;
+
+/**
+ * Keeps the models saved during an invocation and writes them at its end,
+ * with one bulk write per collection instead of one request per save.
+ * Saving a model several times writes it once. Enabled by
+ * <code>mongo.writeBehind=true</code>.
+ *
+ * New models are given their _id when saved, so it can be used before
+ * they are written. The saved models are not seen by the queries of the
+ * invocation until they are written, {@link #flush()} writes them
+ * earlier. The writes of an invocation which fails are dropped.
+ *
+ * With <code>mongo.writeBehind.background=true</code> the writes are
+ * handed at the end of the invocation to a thread writing them at most
+ * <code>mongo.writeBehind.maxLatency</code> milliseconds later. Failures
+ * are then only logged, and the models must not be changed once saved.
+ * At most <code>mongo.writeBehind.maxSize</code> models wait to be
+ * written, the invocations ending wait for room beyond that.
+ */
+public class MongoWriteBehind {
+
+	static final int DEFAULT_MAX_SIZE = 10000;
+	static final long DEFAULT_MAX_LATENCY = 1000;
+
+	// the writes of the current invocation, null when they are not buffered
+	private static final ThreadLocal<Writes> current = new ThreadLocal<Writes>();
+
+	private static volatile boolean enabled;
+	private static volatile int maxSize = DEFAULT_MAX_SIZE;
+	private static volatile Background background;
+
+	/**
+	 * Sets the options read from the configuration, writing the models
+	 * left by a previous background thread.
+	 *
+	 * @param enabled - true to buffer the saves of the invocations
+	 * @param background - true to write them from a background thread
+	 * @param maxSize - the number of models buffered before they are written
+	 * @param maxLatency - the milliseconds a background write is delayed at most
+	 */
+	static synchronized void configure(boolean enabled, boolean background, int maxSize, long maxLatency) {
+		stop();
+		MongoWriteBehind.maxSize = maxSize;
+		MongoWriteBehind.enabled = enabled;
+		if (enabled && background) {
+			MongoWriteBehind.background = new Background(maxSize, maxLatency);
+		}
+	}
+
+	/**
+	 * Stops the background thread once it has written the models left.
+	 */
+	static synchronized void stop() {
+		if (background != null) {
+			background.stop();
+			background = null;
+		}
+	}
+
+	/**
+	 * Starts buffering the saves of the current thread, called when an
+	 * invocation starts.
+	 */
+	static void begin() {
+		if (enabled) {
+			current.set(new Writes());
+		}
+	}
+
+	/**
+	 * Writes the saves of the current thread, or hands them to the
+	 * background thread, called when an invocation ends.
+	 */
+	static void end() {
+		Writes writes = current.get();
+		if (writes != null) {
+			current.set(new Writes());
+			write(writes);
+		}
+	}
+
+	/**
+	 * Drops the saves of the current thread, called when an invocation
+	 * fails.
+	 */
+	static void discard() {
+		if (current.get() != null) {
+			current.set(new Writes());
+		}
+	}
+
+	/**
+	 * Stops buffering the saves of the current thread.
+	 */
+	static void clear() {
+		current.remove();
+	}
+
+	/**
+	 * Writes the models saved by the current invocation so far, so that
+	 * its queries see them. Does nothing when the saves are not buffered.
+	 */
+	public static void flush() {
+		end();
+	}
+
+	/**
+	 * Writes the models of a collection saved by the current invocation,
+	 * before the collection is changed otherwise.
+	 *
+	 * @param collectionName - the collection
+	 */
+	static void flush(String collectionName) {
+		Writes writes = current.get();
+		if (writes != null && writes.byCollection.containsKey(collectionName)) {
+			Writes flushed = new Writes();
+			flushed.add(collectionName, writes.byCollection.remove(collectionName));
+			writes.size = writes.size - flushed.size;
+			write(flushed);
+		}
+	}
+
+	/**
+	 * Buffers the save of a model when the saves of the current thread are
+	 * buffered, giving an _id to a new model.
+	 *
+	 * @param collectionName - the collection of the model
+	 * @param model - the model
+	 * @return - false when the model must be saved now
+	 */
+	static boolean save(String collectionName, MongoModel model) {
+		Writes writes = current.get();
+		if (writes == null) {
+			return false;
+		}
+		boolean insert = model.get_id() == null;
+		if (insert) {
+			model.set_id(new ObjectId());
+		}
+		writes.add(collectionName, new Pending(model, insert));
+		if (writes.size >= maxSize) {
+			end();
+		}
+		return true;
+	}
+
+	/**
+	 * Forgets the buffered save of a model which is deleted.
+	 *
+	 * @param collectionName - the collection of the model
+	 * @param model - the model
+	 */
+	static void delete(String collectionName, MongoModel model) {
+		Writes writes = current.get();
+		if (writes != null && model.get_id() != null) {
+			Map<ObjectId, Pending> pending = writes.byCollection.get(collectionName);
+			if (pending != null && pending.remove(model.get_id()) != null) {
+				writes.size--;
+			}
+		}
+	}
+
+	private static void write(Writes writes) {
+		if (writes.size == 0) {
+			return;
+		}
+		Background background = MongoWriteBehind.background;
+		if (background == null || !background.add(writes)) {
+			writes.write();
+		}
+	}
+
+	/**
+	 * A save waiting to be written.
+	 */
+	private static class Pending {
+		private final MongoModel model;
+		// the model is not stored yet though it has an _id
+		private final boolean insert;
+
+		Pending(MongoModel model, boolean insert) {
+			this.model = model;
+			this.insert = insert;
+		}
+	}
+
+	/**
+	 * The saves waiting to be written, the last one of each _id by
+	 * collection.
+	 */
+	private static class Writes {
+		private final Map<String, Map<ObjectId, Pending>> byCollection = new LinkedHashMap<String, Map<ObjectId, Pending>>();
+		private int size;
+
+		void add(String collectionName, Pending pending) {
+			Map<ObjectId, Pending> writes = byCollection.get(collectionName);
+			if (writes == null) {
+				writes = new LinkedHashMap<ObjectId, Pending>();
+				byCollection.put(collectionName, writes);
+			}
+			Pending previous = writes.get(pending.model.get_id());
+			if (previous == null) {
+				size++;
+			}
+			else if (previous.insert && !pending.insert) {
+				// still to be inserted
+				pending = new Pending(pending.model, true);
+			}
+			writes.put(pending.model.get_id(), pending);
+		}
+
+		void add(String collectionName, Map<ObjectId, Pending> pending) {
+			for (Pending p : pending.values()) {
+				add(collectionName, p);
+			}
+		}
+
+		void write() {
+			for (Map.Entry<String, Map<ObjectId, Pending>> entry : byCollection.entrySet()) {
+				List<MongoModel> models = new ArrayList<MongoModel>(entry.getValue().size());
+				Set<ObjectId> inserts = new HashSet<ObjectId>();
+				for (Pending pending : entry.getValue().values()) {
+					models.add(pending.model);
+					if (pending.insert) {
+						inserts.add(pending.model.get_id());
+					}
+				}
+				MongoDB.saveAll(entry.getKey(), models, false, inserts);
+			}
+		}
+	}
+
+	/**
+	 * The thread writing the saves of the invocations which ended, once
+	 * enough of them are waiting or when the oldest one waited long enough.
+	 */
+	private static class Background implements Runnable {
+		private final int maxSize;
+		private final long maxLatency;
+		private final Thread thread;
+		private Writes writes = new Writes();
+		// when the oldest waiting save was added
+		private long since;
+		private boolean stopped;
+
+		Background(int maxSize, long maxLatency) {
+			this.maxSize = maxSize;
+			this.maxLatency = maxLatency;
+			thread = new Thread(this, "mongo-write-behind");
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		/**
+		 * Adds saves to write, waiting while too many are waiting.
+		 *
+		 * @return - false when the thread is stopped
+		 */
+		synchronized boolean add(Writes added) {
+			try {
+				while (writes.size > 0 && writes.size + added.size > maxSize && !stopped) {
+					wait();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+			if (stopped) {
+				return false;
+			}
+			if (writes.size == 0) {
+				since = System.currentTimeMillis();
+			}
+			for (Map.Entry<String, Map<ObjectId, Pending>> entry : added.byCollection.entrySet()) {
+				writes.add(entry.getKey(), entry.getValue());
+			}
+			notifyAll();
+			return true;
+		}
+
+		void stop() {
+			synchronized (this) {
+				stopped = true;
+				notifyAll();
+			}
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		public void run() {
+			while (true) {
+				Writes taken;
+				synchronized (this) {
+					try {
+						while (!stopped && !isDue()) {
+							if (writes.size == 0) {
+								wait();
+							}
+							else {
+								wait(Math.max(1, since + maxLatency - System.currentTimeMillis()));
+							}
+						}
+					} catch (InterruptedException e) {
+						stopped = true;
+					}
+					if (writes.size == 0) {
+						// stopped
+						return;
+					}
+					taken = writes;
+					writes = new Writes();
+					notifyAll();
+				}
+				try {
+					taken.write();
+				} catch (RuntimeException e) {
+					Logger.error(e, "The saves of %d models could not all be written", taken.size);
+				}
+			}
+		}
+
+		private boolean isDue() {
+			return writes.size > 0
+				&& (writes.size >= MongoDB.MODELS_PER_BULK_WRITE || System.currentTimeMillis() - since >= maxLatency);
+		}
+	}
+}